@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.benchmark;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.eitchnet.dmedia.filestore.api.FileStoreConstants;
+
+/**
+ * Runs the benchmarks with the {@link GCProfiler} and prints a summary with the throughput in MB/s and the allocated
+ * bytes per operation. Accepts the same arguments as the JMH main class, e.g. a regular expression to select the
+ * benchmarks to run:
+ * 
+ * <pre>
+ * mvn -P benchmark package
+ * java -jar target/benchmarks.jar SkeinBenchmark -p blockSize=512
+ * </pre>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		Options options = new OptionsBuilder().parent(cmdOptions).addProfiler(GCProfiler.class).build();
+		Collection<RunResult> results = new Runner(options).run();
+
+		System.out.println();
+		System.out.println(String.format("%-70s %14s %10s %12s", "Benchmark", "Time/op", "MB/s", "Alloc B/op"));
+		for (RunResult result : results) {
+			BenchmarkParams params = result.getParams();
+			Result<?> primary = result.getPrimaryResult();
+
+			StringBuilder name = new StringBuilder(params.getBenchmark().replaceFirst(".*\\.benchmark\\.", ""));
+			for (String key : params.getParamsKeys()) {
+				name.append(" ").append(key).append("=").append(params.getParam(key));
+			}
+
+			double nanosPerOp = toNanos(primary.getScore(), params.getTimeUnit());
+			long bytesPerOp = getBytesPerOp(params);
+			String throughput = bytesPerOp > 0 ? String.format("%10.2f", bytesPerOp / nanosPerOp * 1000.0)
+					: String.format("%10s", "-");
+
+			String allocated = "-";
+			for (String key : result.getSecondaryResults().keySet()) {
+				if (key.endsWith("gc.alloc.rate.norm"))
+					allocated = String.format("%.1f", result.getSecondaryResults().get(key).getScore());
+			}
+
+			System.out.println(String.format("%-70s %11.1f ns %s %12s", name, nanosPerOp, throughput, allocated));
+		}
+	}
+
+	private static double toNanos(double score, TimeUnit timeUnit) {
+		return score * timeUnit.toNanos(1);
+	}
+
+	/**
+	 * @param params
+	 * @return the number of bytes processed by one operation of the benchmark, or 0 if unknown
+	 */
+	private static long getBytesPerOp(BenchmarkParams params) {
+		if (params.getParam("size") != null)
+			return Long.parseLong(params.getParam("size"));
+		if (params.getParam("leaves") != null)
+			return Long.parseLong(params.getParam("leaves")) * FileStoreConstants.DIGEST_B32LEN;
+		if (params.getParam("blockSize") != null)
+			return Long.parseLong(params.getParam("blockSize")) / 8;
+		return 0;
+	}
+}
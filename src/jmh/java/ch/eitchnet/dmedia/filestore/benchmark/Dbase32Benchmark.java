@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.eitchnet.dmedia.filestore.api.Dbase32;
+
+/**
+ * Encodes, decodes and validates D-Base32 data of the given binary size
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Dbase32Benchmark {
+
+	@Param({ "5", "15", "30", "55" })
+	public int size;
+
+	private byte[] data;
+	private byte[] encoded;
+	private byte[] encodeBuffer;
+	private byte[] decodeBuffer;
+
+	@Setup
+	public void setup() {
+		this.data = new byte[this.size];
+		new Random(42).nextBytes(this.data);
+		this.encoded = Dbase32.db32Enc(this.data);
+		this.encodeBuffer = new byte[this.encoded.length];
+		this.decodeBuffer = new byte[this.size];
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return Dbase32.db32Enc(this.data);
+	}
+
+	@Benchmark
+	public byte[] decode() {
+		return Dbase32.db32Dec(this.encoded);
+	}
+
+	@Benchmark
+	public byte[] encodeIntoBuffer() {
+		Dbase32.encode(this.data, 0, this.data.length, this.encodeBuffer, 0);
+		return this.encodeBuffer;
+	}
+
+	@Benchmark
+	public byte[] decodeIntoBuffer() {
+		Dbase32.decode(this.encoded, 0, this.encoded.length, this.decodeBuffer, 0);
+		return this.decodeBuffer;
+	}
+
+	@Benchmark
+	public boolean validate() {
+		return Dbase32.isValid(this.encoded, 0, this.encoded.length);
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.eitchnet.dmedia.filestore.api.DmediaFile;
+import ch.eitchnet.dmedia.filestore.api.FileStore;
+import ch.eitchnet.dmedia.filestore.api.ReadMode;
+
+/**
+ * Hashes a whole file with each {@link ReadMode}, sequentially and with an {@link ExecutorService} using all available
+ * processors. The file is read from the page cache after the first iteration, so this measures the hashing pipeline
+ * and not the disk
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 4)
+@Fork(1)
+public class FileHashBenchmark {
+
+	@Param({ "8388608", "67108864", "268435456" })
+	public long size;
+
+	@Param({ "STREAM", "MAPPED", "PIPELINED", "POSITIONAL" })
+	public ReadMode readMode;
+
+	@Param({ "0", "4" })
+	public int threads;
+
+	private File file;
+	private ExecutorService executor;
+	private FileStore fileStore;
+
+	@Setup
+	public void setup() throws IOException {
+		this.file = File.createTempFile("dmedia-benchmark", ".bin");
+		this.file.deleteOnExit();
+
+		Random random = new Random(42);
+		byte[] buffer = new byte[1024 * 1024];
+		try (FileOutputStream out = new FileOutputStream(this.file)) {
+			for (long written = 0; written < this.size; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, this.size - written));
+			}
+		}
+
+		this.fileStore = new FileStore();
+		this.fileStore.setReadMode(this.readMode);
+		if (this.threads > 0) {
+			this.executor = Executors.newFixedThreadPool(this.threads);
+			this.fileStore.setExecutor(this.executor);
+			this.fileStore.setMaxLeafBuffers(this.threads * 2);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (this.executor != null)
+			this.executor.shutdown();
+		if (!this.file.delete())
+			this.file.deleteOnExit();
+	}
+
+	@Benchmark
+	public DmediaFile hashFile() {
+		return this.fileStore.hashAndStoreFile(this.file);
+	}
+}
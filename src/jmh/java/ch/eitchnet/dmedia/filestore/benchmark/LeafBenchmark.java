@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.eitchnet.dmedia.filestore.api.FileStore;
+
+/**
+ * Hashes a single leaf of the given size from a heap array and from a direct buffer
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LeafBenchmark {
+
+	@Param({ "1024", "1048576", "8388608" })
+	public int size;
+
+	private FileStore fileStore;
+	private byte[] leafData;
+	private ByteBuffer directLeafData;
+
+	@Setup
+	public void setup() {
+		this.fileStore = new FileStore();
+
+		Random random = new Random(42);
+		this.leafData = new byte[this.size];
+		random.nextBytes(this.leafData);
+		this.directLeafData = ByteBuffer.allocateDirect(this.size);
+		this.directLeafData.put(this.leafData);
+	}
+
+	@Benchmark
+	public byte[] hashLeaf() {
+		return this.fileStore.hashLeaf(1, this.leafData);
+	}
+
+	@Benchmark
+	public byte[] hashLeafDirect() {
+		this.directLeafData.clear();
+		return this.fileStore.hashLeaf(1, this.directLeafData);
+	}
+}
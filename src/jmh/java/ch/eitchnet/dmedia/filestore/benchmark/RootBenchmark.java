@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.eitchnet.dmedia.filestore.api.FileStore;
+import ch.eitchnet.dmedia.filestore.api.FileStoreConstants;
+
+/**
+ * Hashes the root of a file with the given number of leaves
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RootBenchmark {
+
+	@Param({ "1", "1024", "65536" })
+	public int leaves;
+
+	private FileStore fileStore;
+	private byte[] leafHashes;
+	private long fileSize;
+
+	@Setup
+	public void setup() {
+		this.fileStore = new FileStore();
+
+		byte[] leafHash = this.fileStore.hashLeaf(0, new byte[] { 42 });
+		this.leafHashes = new byte[this.leaves * leafHash.length];
+		for (int i = 0; i < this.leaves; i++) {
+			System.arraycopy(leafHash, 0, this.leafHashes, i * leafHash.length, leafHash.length);
+		}
+		this.fileSize = (long) this.leaves * FileStoreConstants.LEAF_SIZE;
+	}
+
+	@Benchmark
+	public byte[] hashRoot() {
+		return this.fileStore.hashRoot(this.fileSize, this.leafHashes);
+	}
+}
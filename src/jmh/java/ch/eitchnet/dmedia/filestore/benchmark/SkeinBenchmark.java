@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nl.warper.skein.Skein;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashes messages from 1 byte up to the size of a leaf with a reused {@link Skein} instance
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SkeinBenchmark {
+
+	@Param({ "256", "512", "1024" })
+	public int blockSize;
+
+	@Param({ "1", "64", "1024", "65536", "1048576", "8388608" })
+	public int size;
+
+	private Skein skein;
+	private byte[] message;
+	private byte[] digest;
+
+	@Setup
+	public void setup() {
+		this.skein = new Skein(this.blockSize, this.blockSize);
+		this.message = new byte[this.size];
+		new Random(42).nextBytes(this.message);
+		this.digest = new byte[this.skein.getDigestSizeBytes()];
+	}
+
+	@Benchmark
+	public byte[] doSkein() {
+		return this.skein.doSkein(this.message);
+	}
+
+	@Benchmark
+	public byte[] updateDigest() {
+		this.skein.update(this.message, 0, this.message.length);
+		this.skein.digest(this.digest, 0);
+		return this.digest;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nl.warper.threefish.Threefish512;
+import nl.warper.threefish.ThreefishImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts and decrypts a single block per operation for each Threefish block size. The 512 bit block size uses the
+ * same unrolled implementation as {@link nl.warper.skein.Skein}
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreefishBenchmark {
+
+	@Param({ "256", "512", "1024" })
+	public int blockSize;
+
+	private ThreefishImpl threefish;
+	private long[] plain;
+	private long[] cipher;
+
+	@Setup
+	public void setup() {
+		this.threefish = this.blockSize == ThreefishImpl.BLOCK_SIZE_BITS_512 ? new Threefish512() : new ThreefishImpl(
+				this.blockSize);
+
+		int words = this.blockSize / 64;
+		Random random = new Random(42);
+		long[] key = new long[words];
+		this.plain = new long[words];
+		this.cipher = new long[words];
+		for (int i = 0; i < words; i++) {
+			key[i] = random.nextLong();
+			this.plain[i] = random.nextLong();
+		}
+		this.threefish.init(key, new long[] { random.nextLong(), random.nextLong() });
+	}
+
+	@Benchmark
+	public long[] encrypt() {
+		this.threefish.blockEncrypt(this.plain, this.cipher);
+		return this.cipher;
+	}
+
+	@Benchmark
+	public long[] decrypt() {
+		this.threefish.blockDecrypt(this.cipher, this.plain);
+		return this.plain;
+	}
+}
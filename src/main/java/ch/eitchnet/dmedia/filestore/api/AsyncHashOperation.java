@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashes a range of leaves of a file with an {@link AsynchronousFileChannel}, so that no thread is blocked while the
+ * leaves are read. Up to a number of leaves are read at once, each into one of the buffers of the operation, and each
+ * leaf is hashed in the completion handler of its read, after which its buffer is reused for the next leaf. The
+ * buffers are taken from the leaf memory budget of the {@link FileStore}, and are returned once the last read has
+ * completed or failed. If the budget is exhausted, the operation is queued instead of blocking the calling thread,
+ * and starts reading from the thread which returns the buffers. Cancelling closes the channel, which stops any further
+ * reads
+ * 
+ * @param <V>
+ *            the type of the result
+ * @param <A>
+ *            the type of the attachment of the {@link CompletionHandler}
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+abstract class AsyncHashOperation<V, A> implements Future<V>, CompletionHandler<Integer, AsyncHashOperation.LeafRead> {
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncHashOperation.class);
+
+	private static final int RUNNING = 0;
+	private static final int COMPLETED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	protected final FileStore fileStore;
+	protected final File file;
+	private final A attachment;
+	private final CompletionHandler<V, ? super A> handler;
+	private final AtomicInteger state;
+	private final CountDownLatch done;
+
+	private AsynchronousFileChannel channel;
+	private long fileSize;
+	private int lastLeaf;
+	private int nextLeaf;
+	private AtomicInteger pendingLeaves;
+	private LeafHashes leafHashes;
+
+	// the leaf buffers and the number of reads which may still use them
+	private LeafBufferPool pool;
+	private byte[][] buffers;
+	private AtomicInteger activeReads;
+
+	private volatile V result;
+	private volatile Throwable failure;
+
+	/**
+	 * The read of a single leaf into one of the buffers of the operation
+	 */
+	static class LeafRead {
+		final ByteBuffer buffer;
+		int index;
+		long offset;
+
+		LeafRead(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * @param fileStore
+	 * @param file
+	 * @param attachment
+	 * @param handler
+	 *            notified when the operation completes, fails or is cancelled, may be null
+	 */
+	AsyncHashOperation(FileStore fileStore, File file, A attachment, CompletionHandler<V, ? super A> handler) {
+		this.fileStore = fileStore;
+		this.file = file;
+		this.attachment = attachment;
+		this.handler = handler;
+		this.state = new AtomicInteger(RUNNING);
+		this.done = new CountDownLatch(1);
+	}
+
+	/**
+	 * Opens the channel and starts reading the leaves from the first to the last leaf, or completes the operation at
+	 * once if its result is known already, see {@link #lookup()}
+	 * 
+	 * @param firstLeaf
+	 *            the index of the first leaf to hash
+	 * @param lastLeaf
+	 *            the index of the last leaf to hash, or -1 for the last leaf of the file
+	 * @param maxLeafBuffers
+	 *            the maximum number of leaves read at once
+	 * @param pool
+	 *            the leaf memory budget to take the buffers from, or null
+	 * @param executor
+	 *            the executor running the completion handlers of the channel, or null for the default
+	 */
+	void start(int firstLeaf, int lastLeaf, int maxLeafBuffers, LeafBufferPool pool, ExecutorService executor) {
+		try {
+			this.fileStore.validateFile(this.file);
+			V known = lookup();
+			if (known != null) {
+				complete(known);
+				return;
+			}
+
+			if (executor == null)
+				this.channel = AsynchronousFileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+			else
+				this.channel = AsynchronousFileChannel.open(this.file.toPath(),
+						Collections.singleton(StandardOpenOption.READ), executor);
+
+			this.fileSize = this.channel.size();
+			if (this.fileSize == 0)
+				throw new FileStoreException("The file at " + this.file.getAbsolutePath()
+						+ " is empty and can not be hashed");
+			int nrOfSlices = this.fileStore.getNrOfSlices(this.fileSize);
+			this.lastLeaf = lastLeaf == -1 ? nrOfSlices - 1 : lastLeaf;
+			if (firstLeaf < 0 || this.lastLeaf >= nrOfSlices || firstLeaf > this.lastLeaf) {
+				String msg = String.format("The leaves %d - %d are not in the range of the %d leaves of %s",
+						firstLeaf, this.lastLeaf, nrOfSlices, this.file.getAbsolutePath());
+				throw new FileStoreException(msg);
+			}
+
+			this.leafHashes = new LeafHashes(nrOfSlices, this.fileStore.getDigestBytes());
+			this.nextLeaf = firstLeaf;
+			int nrOfLeaves = this.lastLeaf - firstLeaf + 1;
+			this.pendingLeaves = new AtomicInteger(nrOfLeaves);
+
+			int nrOfBuffers = FileStore.getNrOfLeafBuffers(pool, maxLeafBuffers, nrOfLeaves);
+			this.pool = pool;
+			if (pool == null || this.fileSize < FileStoreConstants.LEAF_SIZE) {
+				startReads(FileStore.acquireLeafBuffers(pool, nrOfBuffers, this.fileSize));
+			} else {
+				// the calling thread must not block, e.g. a completion handler chaining the next operation
+				byte[][] acquired = pool.acquireOrWait(nrOfBuffers, new LeafBufferPool.Waiter() {
+					@Override
+					public void acquired(byte[][] buffers) {
+						startReads(buffers);
+					}
+				});
+				if (acquired != null)
+					startReads(acquired);
+			}
+
+		} catch (NoSuchFileException e) {
+			fail(new FileStoreException("The file does not exist at " + this.file.getAbsolutePath(), e));
+		} catch (IOException e) {
+			fail(new FileStoreException("Failed to read file at " + this.file.getAbsolutePath(), e));
+		} catch (RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Starts a read into each of the buffers, or returns them at once if the operation is already done, e.g. cancelled
+	 * while waiting for them
+	 */
+	private void startReads(byte[][] acquired) {
+		this.buffers = acquired;
+		this.activeReads = new AtomicInteger(acquired.length);
+		LeafRead[] reads = new LeafRead[acquired.length];
+		for (int i = 0; i < acquired.length; i++) {
+			reads[i] = new LeafRead(ByteBuffer.wrap(acquired[i]));
+		}
+		for (LeafRead read : reads) {
+			if (!readNextLeaf(read))
+				readDone();
+		}
+	}
+
+	/**
+	 * @return the result if it is known without reading the file, e.g. from a cache, otherwise null
+	 */
+	protected V lookup() {
+		return null;
+	}
+
+	/**
+	 * @return the result once all leaves have been hashed
+	 */
+	protected abstract V finish(long fileSize, LeafHashes leafHashes);
+
+	/**
+	 * @return true if the next leaf is being read, false if there are no more leaves to read or the operation is done
+	 */
+	private boolean readNextLeaf(LeafRead read) {
+		synchronized (this) {
+			if (this.nextLeaf > this.lastLeaf || this.state.get() != RUNNING)
+				return false;
+			read.index = this.nextLeaf++;
+		}
+		read.offset = (long) read.index * FileStoreConstants.LEAF_SIZE;
+		read.buffer.clear();
+		read.buffer.limit((int) Math.min(FileStoreConstants.LEAF_SIZE, this.fileSize - read.offset));
+		return read(read, read.offset);
+	}
+
+	/**
+	 * @return true if the read was started, false if it failed to start
+	 */
+	private boolean read(LeafRead read, long position) {
+		try {
+			this.channel.read(read.buffer, position, read, this);
+			return true;
+		} catch (RuntimeException e) {
+			fail(new FileStoreException("Failed to read file at " + this.file.getAbsolutePath(), e));
+			return false;
+		}
+	}
+
+	/**
+	 * Called once for each buffer when it is no longer used by a read. After the last one, the buffers are returned to
+	 * the leaf memory budget
+	 */
+	private void readDone() {
+		if (this.activeReads.decrementAndGet() == 0)
+			FileStore.releaseLeafBuffers(this.pool, Arrays.asList(this.buffers), this.buffers.length, this.fileSize);
+	}
+
+	@Override
+	public void completed(Integer bytesRead, LeafRead read) {
+		boolean reading = false;
+		try {
+			if (this.state.get() != RUNNING)
+				return;
+			if (bytesRead == -1)
+				throw new FileStoreException("The file " + this.file.getAbsolutePath() + " shrank while being hashed");
+			if (read.buffer.hasRemaining()) {
+				reading = read(read, read.offset + read.buffer.position());
+				return;
+			}
+
+			read.buffer.flip();
+			byte[] digest = this.fileStore.digestLeaf(read.index, read.buffer);
+			this.leafHashes.setDigest(read.index, digest, 0);
+
+			if (this.pendingLeaves.decrementAndGet() == 0) {
+				if (this.channel.size() != this.fileSize)
+					throw new FileStoreException("The file " + this.file.getAbsolutePath()
+							+ " changed size while being hashed");
+				complete(finish(this.fileSize, this.leafHashes));
+			} else {
+				reading = readNextLeaf(read);
+			}
+
+		} catch (IOException e) {
+			fail(new FileStoreException("Failed to read file at " + this.file.getAbsolutePath(), e));
+		} catch (RuntimeException e) {
+			fail(e);
+		} finally {
+			if (!reading)
+				readDone();
+		}
+	}
+
+	@Override
+	public void failed(Throwable e, LeafRead read) {
+		try {
+			if (this.state.get() == RUNNING)
+				fail(new FileStoreException("Failed to read file at " + this.file.getAbsolutePath(), e));
+		} finally {
+			readDone();
+		}
+	}
+
+	private void complete(V value) {
+		if (!this.state.compareAndSet(RUNNING, COMPLETED))
+			return;
+		this.result = value;
+		close();
+		this.done.countDown();
+		if (this.handler != null)
+			this.handler.completed(value, this.attachment);
+	}
+
+	private void fail(Throwable e) {
+		if (!this.state.compareAndSet(RUNNING, FAILED))
+			return;
+		this.failure = e;
+		close();
+		this.done.countDown();
+		if (this.handler != null)
+			this.handler.failed(e, this.attachment);
+	}
+
+	private void close() {
+		if (this.channel == null)
+			return;
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			logger.error("Failed to close channel of " + this.file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Cancels the operation by closing the channel, so that no further leaves are read. The handler is notified with a
+	 * {@link CancellationException}
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!this.state.compareAndSet(RUNNING, CANCELLED))
+			return false;
+		this.failure = new CancellationException("Hashing of " + this.file.getAbsolutePath() + " was cancelled");
+		close();
+		this.done.countDown();
+		if (this.handler != null)
+			this.handler.failed(this.failure, this.attachment);
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return this.state.get() == CANCELLED;
+	}
+
+	@Override
+	public boolean isDone() {
+		return this.state.get() != RUNNING;
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		this.done.await();
+		return getResult();
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!this.done.await(timeout, unit))
+			throw new TimeoutException();
+		return getResult();
+	}
+
+	private V getResult() throws ExecutionException {
+		int s = this.state.get();
+		if (s == CANCELLED)
+			throw (CancellationException) this.failure;
+		if (s == FAILED)
+			throw new ExecutionException(this.failure);
+		return this.result;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a {@link BulkImporter} run: the files which were imported and the errors of the files which could not
+ * be imported
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class BulkImportResult {
+
+	private final List<DmediaFile> imported;
+	private final Map<File, Exception> errors;
+	private final long bytesImported;
+
+	/**
+	 * @param imported
+	 * @param errors
+	 */
+	public BulkImportResult(List<DmediaFile> imported, Map<File, Exception> errors) {
+		this.imported = Collections.unmodifiableList(new ArrayList<>(imported));
+		this.errors = Collections.unmodifiableMap(new LinkedHashMap<>(errors));
+		long bytes = 0;
+		for (DmediaFile dmediaFile : imported) {
+			bytes += dmediaFile.getFileSize();
+		}
+		this.bytesImported = bytes;
+	}
+
+	/**
+	 * @return the imported files, in the order in which they completed
+	 */
+	public List<DmediaFile> getImported() {
+		return this.imported;
+	}
+
+	/**
+	 * @return the files and directories which could not be imported, with the reason
+	 */
+	public Map<File, Exception> getErrors() {
+		return this.errors;
+	}
+
+	/**
+	 * @return true if all files were imported
+	 */
+	public boolean isSuccessful() {
+		return this.errors.isEmpty();
+	}
+
+	/**
+	 * @return the total size of the imported files
+	 */
+	public long getBytesImported() {
+		return this.bytesImported;
+	}
+
+	@Override
+	public String toString() {
+		return "Imported " + this.imported.size() + " files with " + this.bytesImported + " bytes, "
+				+ this.errors.size() + " errors";
+	}
+}
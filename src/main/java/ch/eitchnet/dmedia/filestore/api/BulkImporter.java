@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports all files of a directory tree into a {@link FileStore}, e.g. a camera card or a share with tens of thousands
+ * of files. The tree is walked in parallel with a task per directory. Files of at most a single leaf are imported
+ * inline by the walking threads, while larger files are collected and, once the walk is complete, imported largest
+ * first, so that the longest imports start early and the whole import finishes as early as possible.
+ * <p>
+ * Larger files are split into leaf tasks if the {@link FileStore} has an {@link java.util.concurrent.Executor}, which
+ * must not be the executor of the importer, as importing a file waits for its leaf tasks. The memory used for leaf
+ * buffers by all files imported concurrently is bounded by {@link FileStore#setLeafMemoryBudget(long)}. Errors are
+ * collected per file, so that a single unreadable file does not abort the import. Symbolic links and the store
+ * directory itself are skipped
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class BulkImporter {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkImporter.class);
+
+	/**
+	 * Notified of each file as soon as it has been imported or has failed, from the importing threads
+	 */
+	public interface Listener {
+
+		/**
+		 * @param file
+		 *            the imported file
+		 * @param dmediaFile
+		 *            the stored file
+		 */
+		void imported(File file, DmediaFile dmediaFile);
+
+		/**
+		 * @param file
+		 *            the file or directory which failed
+		 * @param e
+		 *            the reason
+		 */
+		void failed(File file, Exception e);
+	}
+
+	private final FileStore fileStore;
+	private final ExecutorService executor;
+	private Listener listener;
+
+	/**
+	 * @param fileStore
+	 *            the {@link FileStore} with a base path into which the files are imported
+	 * @param executor
+	 *            the executor walking the tree and importing the files
+	 */
+	public BulkImporter(FileStore fileStore, ExecutorService executor) {
+		if (fileStore.getBasePath() == null)
+			throw new FileStoreException("Files can only be imported into a FileStore with a base path");
+		if (fileStore.getExecutor() == executor)
+			throw new IllegalArgumentException("The importer and the FileStore must not share an executor");
+		this.fileStore = fileStore;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param listener
+	 *            the listener notified of each file as it completes, or null
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Imports all files in the given directory tree, returning once all files have been imported or have failed
+	 * 
+	 * @param dir
+	 *            the root of the directory tree
+	 * @return the {@link BulkImportResult}
+	 */
+	public BulkImportResult importTree(File dir) {
+		if (!dir.isDirectory())
+			throw new FileStoreException("The directory does not exist at " + dir.getAbsolutePath());
+
+		final Run run = new Run(new File(this.fileStore.getBasePath(), FileStoreConstants.STORE_DIR).getAbsoluteFile());
+		logger.info("Walking " + dir.getAbsolutePath());
+		run.submit(dir, new WalkTask(run, dir));
+		run.await();
+
+		// the larger files are imported largest first
+		List<File> largeFiles = new ArrayList<>(run.largeFiles);
+		final Map<File, Long> sizes = new LinkedHashMap<>();
+		for (File file : largeFiles) {
+			sizes.put(file, file.length());
+		}
+		Collections.sort(largeFiles, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(sizes.get(f2), sizes.get(f1));
+			}
+		});
+		logger.info("Importing " + largeFiles.size() + " files larger than a leaf after " + run.imported.size()
+				+ " smaller files");
+		for (final File file : largeFiles) {
+			run.submit(file, new Runnable() {
+				@Override
+				public void run() {
+					importFile(run, file);
+				}
+			});
+		}
+		if (!largeFiles.isEmpty())
+			run.await();
+
+		BulkImportResult result = new BulkImportResult(new ArrayList<>(run.imported), run.getErrors());
+		logger.info(result.toString());
+		return result;
+	}
+
+	private void importFile(Run run, File file) {
+		DmediaFile dmediaFile;
+		try {
+			dmediaFile = this.fileStore.hashAndStoreFile(file);
+		} catch (RuntimeException e) {
+			run.failed(file, e);
+			return;
+		}
+		run.imported.add(dmediaFile);
+		Listener l = this.listener;
+		if (l != null)
+			l.imported(file, dmediaFile);
+	}
+
+	/**
+	 * Walks a single directory, importing the small files and submitting a task for each sub directory
+	 */
+	private class WalkTask implements Runnable {
+
+		private final Run run;
+		private final File dir;
+
+		WalkTask(Run run, File dir) {
+			this.run = run;
+			this.dir = dir;
+		}
+
+		@Override
+		public void run() {
+			File[] files = this.dir.listFiles();
+			if (files == null) {
+				this.run.failed(this.dir, new FileStoreException("Failed to list directory " + this.dir.getAbsolutePath()));
+				return;
+			}
+
+			for (File file : files) {
+				if (Files.isSymbolicLink(file.toPath()))
+					continue;
+				if (file.isDirectory()) {
+					if (!file.getAbsoluteFile().equals(this.run.storeDir))
+						this.run.submit(file, new WalkTask(this.run, file));
+				} else if (file.length() == 0) {
+					this.run.failed(file, new FileStoreException("The file at " + file.getAbsolutePath()
+							+ " is empty and can not be imported"));
+				} else if (file.length() <= FileStoreConstants.LEAF_SIZE) {
+					importFile(this.run, file);
+				} else {
+					this.run.largeFiles.add(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The state of a single call to {@link BulkImporter#importTree(File)}
+	 */
+	private class Run {
+
+		private final File storeDir;
+		private final AtomicInteger pending;
+		private final ConcurrentLinkedQueue<File> largeFiles;
+		private final ConcurrentLinkedQueue<DmediaFile> imported;
+		private final Map<File, Exception> errors;
+		private volatile CountDownLatch done;
+
+		Run(File storeDir) {
+			this.storeDir = storeDir;
+			this.pending = new AtomicInteger();
+			this.largeFiles = new ConcurrentLinkedQueue<>();
+			this.imported = new ConcurrentLinkedQueue<>();
+			this.errors = new LinkedHashMap<>();
+			this.done = new CountDownLatch(1);
+		}
+
+		/**
+		 * Submits the task for the given file or directory, recording an error if the executor rejects it
+		 */
+		void submit(File file, final Runnable task) {
+			this.pending.incrementAndGet();
+			try {
+				BulkImporter.this.executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							logger.error("Import task failed: " + e.getMessage(), e);
+						} finally {
+							taskDone();
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				failed(file, e);
+				taskDone();
+			}
+		}
+
+		private void taskDone() {
+			if (this.pending.decrementAndGet() == 0)
+				this.done.countDown();
+		}
+
+		/**
+		 * Waits until all submitted tasks, including the tasks they submitted, are done
+		 */
+		void await() {
+			try {
+				this.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new FileStoreException("Interrupted while importing", e);
+			}
+			this.done = new CountDownLatch(1);
+		}
+
+		void failed(File file, Exception e) {
+			logger.error("Failed to import " + file.getAbsolutePath() + ": " + e.getMessage());
+			synchronized (this.errors) {
+				this.errors.put(file, e);
+			}
+			Listener l = BulkImporter.this.listener;
+			if (l != null)
+				l.failed(file, e);
+		}
+
+		Map<File, Exception> getErrors() {
+			synchronized (this.errors) {
+				return new LinkedHashMap<>(this.errors);
+			}
+		}
+	}
+}
@@ -21,12 +21,14 @@
  */
 package ch.eitchnet.dmedia.filestore.api;
 
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 
-import ch.eitchnet.utils.helper.ArraysHelper;
-import ch.eitchnet.utils.helper.BaseEncoding;
-
 /**
+ * D-Base32 codec as defined by the Dmedia file store specification. The encoding and decoding is table driven, and the
+ * methods taking a source and a destination array do not allocate, so that they can be used on hot paths like hashing
+ * leaves and looking up IDs. Decoding validates the input in the same pass
+ * 
  * @author Robert von Burg <eitch@eitchnet.ch>
  * 
  */
@@ -62,21 +64,191 @@ public class Dbase32 {
 	 */
 	private static final int RANDOM_ID_DEC_LENGTH = 15;
 
+	/**
+	 * The padding character, which is never valid in D-Base32 encoded data
+	 */
+	private static final byte PAD = '=';
+
+	/**
+	 * Maps the 5 bit values to the D-Base32 alphabet
+	 */
+	private static final byte[] ENCODE_TABLE = "3456789ABCDEFGHIJKLMNOPQRSTUVWXY".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Maps every byte value to its 5 bit value, or to -1 if it is not in the D-Base32 alphabet
+	 */
+	private static final int[] DECODE_TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < DECODE_TABLE.length; i++) {
+			DECODE_TABLE[i] = -1;
+		}
+		for (int i = 0; i < ENCODE_TABLE.length; i++) {
+			DECODE_TABLE[ENCODE_TABLE[i]] = i;
+		}
+	}
+
+	/**
+	 * @param binLength
+	 * @return the length of the encoded data for binary data of the given length
+	 */
+	public static int encodedLength(int binLength) {
+		return binLength / MIN_BIN_LENGTH * MIN_ENC_LENGTH;
+	}
+
+	/**
+	 * @param encLength
+	 * @return the length of the binary data for encoded data of the given length
+	 */
+	public static int decodedLength(int encLength) {
+		return encLength / MIN_ENC_LENGTH * MIN_BIN_LENGTH;
+	}
+
+	/**
+	 * Encodes the given range of binary data into the destination array
+	 * 
+	 * @param src
+	 *            the binary data
+	 * @param off
+	 *            the offset of the data in src
+	 * @param len
+	 *            the length of the data, which must be a multiple of 5
+	 * @param dst
+	 *            the array to write the encoded data to
+	 * @param dstOff
+	 *            the offset in dst to write the encoded data to
+	 * @return the number of bytes written to dst
+	 * 
+	 * @throws Dbase32Exception
+	 *             if the length is invalid
+	 */
+	public static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) throws Dbase32Exception {
+		checkDb32EncodableLength(len, true);
+
+		int d = dstOff;
+		for (int i = off; i < off + len; i += MIN_BIN_LENGTH) {
+			long v = (src[i] & 0xFFL) << 32 | (src[i + 1] & 0xFFL) << 24 | (src[i + 2] & 0xFFL) << 16
+					| (src[i + 3] & 0xFFL) << 8 | (src[i + 4] & 0xFFL);
+			dst[d] = ENCODE_TABLE[(int) (v >>> 35) & 31];
+			dst[d + 1] = ENCODE_TABLE[(int) (v >>> 30) & 31];
+			dst[d + 2] = ENCODE_TABLE[(int) (v >>> 25) & 31];
+			dst[d + 3] = ENCODE_TABLE[(int) (v >>> 20) & 31];
+			dst[d + 4] = ENCODE_TABLE[(int) (v >>> 15) & 31];
+			dst[d + 5] = ENCODE_TABLE[(int) (v >>> 10) & 31];
+			dst[d + 6] = ENCODE_TABLE[(int) (v >>> 5) & 31];
+			dst[d + 7] = ENCODE_TABLE[(int) v & 31];
+			d += MIN_ENC_LENGTH;
+		}
+		return d - dstOff;
+	}
+
+	/**
+	 * Decodes and validates the given range of encoded data in a single pass. If the data is invalid, the destination
+	 * array may already have been partially written to
+	 * 
+	 * @param src
+	 *            the encoded data
+	 * @param off
+	 *            the offset of the data in src
+	 * @param len
+	 *            the length of the data, which must be a multiple of 8
+	 * @param dst
+	 *            the array to write the binary data to
+	 * @param dstOff
+	 *            the offset in dst to write the binary data to
+	 * @return the number of bytes written to dst
+	 * 
+	 * @throws Dbase32Exception
+	 *             if the data is not valid D-Base32 encoded data
+	 */
+	public static int decode(byte[] src, int off, int len, byte[] dst, int dstOff) throws Dbase32Exception {
+		checkDb32IdLength(len, true);
+
+		int d = dstOff;
+		for (int i = off; i < off + len; i += MIN_ENC_LENGTH) {
+			int c0 = DECODE_TABLE[src[i] & 0xFF];
+			int c1 = DECODE_TABLE[src[i + 1] & 0xFF];
+			int c2 = DECODE_TABLE[src[i + 2] & 0xFF];
+			int c3 = DECODE_TABLE[src[i + 3] & 0xFF];
+			int c4 = DECODE_TABLE[src[i + 4] & 0xFF];
+			int c5 = DECODE_TABLE[src[i + 5] & 0xFF];
+			int c6 = DECODE_TABLE[src[i + 6] & 0xFF];
+			int c7 = DECODE_TABLE[src[i + 7] & 0xFF];
+			if ((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) < 0)
+				throw illegalCharacter(src, i);
+
+			long v = (long) c0 << 35 | (long) c1 << 30 | (long) c2 << 25 | (long) c3 << 20 | (long) c4 << 15
+					| (long) c5 << 10 | (long) c6 << 5 | c7;
+			dst[d] = (byte) (v >>> 32);
+			dst[d + 1] = (byte) (v >>> 24);
+			dst[d + 2] = (byte) (v >>> 16);
+			dst[d + 3] = (byte) (v >>> 8);
+			dst[d + 4] = (byte) v;
+			d += MIN_BIN_LENGTH;
+		}
+		return d - dstOff;
+	}
+
+	/**
+	 * @param src
+	 * @param off
+	 * @param len
+	 * @return true if the given range is valid D-Base32 encoded data
+	 */
+	public static boolean isValid(byte[] src, int off, int len) {
+		if (!checkDb32IdLength(len, false))
+			return false;
+
+		int invalid = 0;
+		for (int i = off; i < off + len; i++) {
+			invalid |= DECODE_TABLE[src[i] & 0xFF];
+		}
+		return invalid >= 0;
+	}
+
+	/**
+	 * @param c
+	 * @return the 5 bit value of the given D-Base32 character, or -1 if it is not in the alphabet
+	 */
+	static int decodeChar(char c) {
+		return c < DECODE_TABLE.length ? DECODE_TABLE[c] : -1;
+	}
+
+	/**
+	 * @param value
+	 *            a 5 bit value
+	 * @return the D-Base32 character of the given value
+	 */
+	static byte encodeChar(int value) {
+		return ENCODE_TABLE[value];
+	}
+
+	private static Dbase32Exception illegalCharacter(byte[] src, int off) {
+		for (int i = off; i < off + MIN_ENC_LENGTH; i++) {
+			if (src[i] == PAD)
+				return new Dbase32Exception(
+						"Input is not valid D-Base32 encoded data as it contains the padding charater (=)");
+		}
+		return new Dbase32Exception(
+				"Input is not valid D-Base32 encoded data as it contains illegal values which are not mapped by the given alphabet!");
+	}
+
 	public static String db32EncAsString(byte[] bytes) {
-		return new String(db32Enc(bytes));
+		return new String(db32Enc(bytes), StandardCharsets.US_ASCII);
 	}
 
 	public static String db32Enc(String data) {
-		return db32Enc(data);
+		return db32EncAsString(data.getBytes());
 	}
 
 	public static byte[] db32Enc(byte[] bytes) {
-		checkDb32EncodableData(bytes, true);
-		return BaseEncoding.toBase32Dmedia(bytes);
+		byte[] encoded = new byte[encodedLength(bytes.length)];
+		encode(bytes, 0, bytes.length, encoded, 0);
+		return encoded;
 	}
 
 	public static String db32Dec(String data) {
-		return new String(db32Dec(data.getBytes()));
+		return new String(db32Dec(data.getBytes(StandardCharsets.US_ASCII)));
 	}
 
 	public static String db32DecAsString(byte[] bytes) {
@@ -84,16 +256,17 @@ public class Dbase32 {
 	}
 
 	public static byte[] db32Dec(byte[] bytes) {
-		checkDb32Id(bytes, true);
-		return BaseEncoding.fromBase32Dmedia(bytes);
+		byte[] decoded = new byte[decodedLength(bytes.length)];
+		decode(bytes, 0, bytes.length, decoded, 0);
+		return decoded;
 	}
 
 	public static boolean isDb32Id(String data) {
-		return isDb32Id(data.getBytes());
+		return isDb32Id(data.getBytes(StandardCharsets.US_ASCII));
 	}
 
 	public static boolean isDb32Id(byte[] bytes) {
-		return checkDb32Id(bytes, false);
+		return isValid(bytes, 0, bytes.length);
 	}
 
 	/**
@@ -102,7 +275,7 @@ public class Dbase32 {
 	 * @throws Dbase32Exception
 	 */
 	public static void checkDb32Id(String data) throws Dbase32Exception {
-		checkDb32Id(data.getBytes(), true);
+		checkDb32Id(data.getBytes(StandardCharsets.US_ASCII), true);
 	}
 
 	/**
@@ -121,12 +294,16 @@ public class Dbase32 {
 	 * @throws Dbase32Exception
 	 */
 	public static boolean checkDb32EncodableData(byte[] bytes, boolean throwException) throws Dbase32Exception {
-		if (bytes.length < MIN_BIN_LENGTH || bytes.length >= MAX_BIN_LENGTH || bytes.length % MIN_BIN_LENGTH != 0) {
+		return checkDb32EncodableLength(bytes.length, throwException);
+	}
+
+	private static boolean checkDb32EncodableLength(int length, boolean throwException) throws Dbase32Exception {
+		if (length < MIN_BIN_LENGTH || length >= MAX_BIN_LENGTH || length % MIN_BIN_LENGTH != 0) {
 			if (!throwException)
 				return false;
 
 			String msg = "Input can not be D-Base32 encoded as its length is invalid: %s. It must be >= 5 and <= 60 and mod(5) == 0";
-			throw new Dbase32Exception(String.format(msg, bytes.length));
+			throw new Dbase32Exception(String.format(msg, length));
 		}
 		return true;
 	}
@@ -138,28 +315,27 @@ public class Dbase32 {
 	 * @throws Dbase32Exception
 	 */
 	public static boolean checkDb32Id(byte[] bytes, boolean throwException) throws Dbase32Exception {
-		if (bytes.length < MIN_ENC_LENGTH || bytes.length > MAX_ENC_LENGTH || bytes.length % MIN_ENC_LENGTH != 0) {
-			if (!throwException)
-				return false;
-
-			String msg = "Input is not valid D-Base32 encoded data as its length is invalid: %s. It must be >= 6 and <= 96 and mod(8) == 0";
-			throw new Dbase32Exception(String.format(msg, bytes.length));
-		} else if (ArraysHelper.contains(bytes, BaseEncoding.PAD)) {
-			if (!throwException)
-				return false;
+		if (!throwException)
+			return isValid(bytes, 0, bytes.length);
 
-			String msg = "Input is not valid D-Base32 encoded data as it contains the padding charater (=)";
-			throw new Dbase32Exception(msg);
+		checkDb32IdLength(bytes.length, true);
+		for (int i = 0; i < bytes.length; i += MIN_ENC_LENGTH) {
+			for (int j = i; j < i + MIN_ENC_LENGTH; j++) {
+				if (DECODE_TABLE[bytes[j] & 0xFF] < 0)
+					throw illegalCharacter(bytes, i);
+			}
 		}
+		return true;
+	}
 
-		if (!BaseEncoding.isBase32Dmedia(bytes)) {
+	private static boolean checkDb32IdLength(int length, boolean throwException) throws Dbase32Exception {
+		if (length < MIN_ENC_LENGTH || length > MAX_ENC_LENGTH || length % MIN_ENC_LENGTH != 0) {
 			if (!throwException)
 				return false;
 
-			String msg = "Input is not valid D-Base32 encoded data as it contains illegal values which are not mapped by the given alphabet!";
-			throw new Dbase32Exception(msg);
+			String msg = "Input is not valid D-Base32 encoded data as its length is invalid: %s. It must be >= 6 and <= 96 and mod(8) == 0";
+			throw new Dbase32Exception(String.format(msg, length));
 		}
-
 		return true;
 	}
 
@@ -168,7 +344,7 @@ public class Dbase32 {
 	}
 
 	public static String generateRandomIdAsString(int length) {
-		return new String(generateRandomId(length));
+		return new String(generateRandomId(length), StandardCharsets.US_ASCII);
 	}
 
 	public static byte[] generateRandomId() {
@@ -21,7 +21,6 @@
  */
 package ch.eitchnet.dmedia.filestore.api;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -33,7 +32,8 @@ public class DmediaFile {
 	private String filePath;
 	private String rootHash;
 	private long fileSize;
-	private List<DmediaFileSlice> fileSlices;
+	private LeafHashes leafHashes;
+	private DmediaId rootId;
 
 	/**
 	 * @param file
@@ -42,9 +42,19 @@ public class DmediaFile {
 	 * @param rootHash
 	 */
 	public DmediaFile(String filePath, long fileSize, String rootHash, List<DmediaFileSlice> fileSlices) {
+		this(filePath, fileSize, rootHash, LeafHashes.fromSlices(fileSlices));
+	}
+
+	/**
+	 * @param filePath
+	 * @param fileSize
+	 * @param rootHash
+	 * @param leafHashes
+	 */
+	public DmediaFile(String filePath, long fileSize, String rootHash, LeafHashes leafHashes) {
 		this.filePath = filePath;
 		this.fileSize = fileSize;
-		this.fileSlices = fileSlices;
+		this.leafHashes = leafHashes;
 		this.rootHash = rootHash;
 	}
 
@@ -56,10 +66,24 @@ public class DmediaFile {
 	}
 
 	/**
-	 * @return the fileSlices
+	 * @return a read only view of the fileSlices, which are created on access
 	 */
 	public List<DmediaFileSlice> getFileSlices() {
-		return new ArrayList<DmediaFileSlice>(this.fileSlices);
+		return this.leafHashes.asSlices(this);
+	}
+
+	/**
+	 * @return the compact binary leaf hashes
+	 */
+	public LeafHashes getLeafHashes() {
+		return this.leafHashes;
+	}
+
+	/**
+	 * @return the number of leaves
+	 */
+	public int getLeafCount() {
+		return this.leafHashes.size();
 	}
 
 	/**
@@ -75,4 +99,13 @@ public class DmediaFile {
 	public String getRootHash() {
 		return this.rootHash;
 	}
+
+	/**
+	 * @return the rootHash as {@link DmediaId}
+	 */
+	public DmediaId getRootId() {
+		if (this.rootId == null)
+			this.rootId = DmediaId.parse(this.rootHash);
+		return this.rootId;
+	}
 }
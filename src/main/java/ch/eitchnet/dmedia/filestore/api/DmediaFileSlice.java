@@ -31,6 +31,7 @@ public class DmediaFileSlice {
 	private int index;
 	private long bytesOffset;
 	private String hash;
+	private LeafHashes leafHashes;
 
 	/**
 	 * @param dmediaFile
@@ -44,6 +45,18 @@ public class DmediaFileSlice {
 		this.hash = hash;
 	}
 
+	/**
+	 * Creates a view of the leaf with the given index, whose hash is only encoded when requested
+	 * 
+	 * @param leafHashes
+	 * @param index
+	 */
+	DmediaFileSlice(LeafHashes leafHashes, int index) {
+		this.index = index;
+		this.bytesOffset = (long) index * FileStoreConstants.LEAF_SIZE;
+		this.leafHashes = leafHashes;
+	}
+
 	/**
 	 * @return the dmediaFile
 	 */
@@ -77,6 +90,17 @@ public class DmediaFileSlice {
 	 * @return the hash
 	 */
 	public String getHash() {
+		if (this.hash == null && this.leafHashes != null)
+			this.hash = this.leafHashes.getHash(this.index);
 		return this.hash;
 	}
+
+	/**
+	 * @return the hash as {@link DmediaId}
+	 */
+	public DmediaId getId() {
+		if (this.leafHashes != null)
+			return this.leafHashes.getId(this.index);
+		return DmediaId.parse(this.hash);
+	}
 }
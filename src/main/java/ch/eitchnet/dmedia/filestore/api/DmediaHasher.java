@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import nl.warper.skein.Skein;
+
+/**
+ * Incrementally hashes a stream of bytes which arrives in arbitrary chunks, e.g. from the network. The bytes are cut
+ * into leaves of {@link FileStoreConstants#LEAF_SIZE} and each leaf is hashed as the bytes pass, so that no leaf needs
+ * to be buffered. Once all bytes have been passed, {@link #finish(String)} hashes the last leaf and the root
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class DmediaHasher {
+
+	private final FileStore fileStore;
+	private final int digestBytes;
+
+	private Skein leafSkein;
+	private int leafIndex;
+	private int leafLength;
+	private long bytesHashed;
+	private byte[] digests;
+	private DmediaFile dmediaFile;
+
+	/**
+	 * @param fileStore
+	 *            the {@link FileStore} with whose parameters the leaves and root are hashed
+	 */
+	public DmediaHasher(FileStore fileStore) {
+		this.fileStore = fileStore;
+		this.leafSkein = fileStore.createLeafSkein(0);
+		this.digestBytes = this.leafSkein.getDigestSizeBytes();
+		this.digests = new byte[16 * this.digestBytes];
+	}
+
+	/**
+	 * @return the number of bytes hashed so far
+	 */
+	public long getBytesHashed() {
+		return this.bytesHashed;
+	}
+
+	/**
+	 * Hashes the given bytes
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public void update(byte[] data, int offset, int length) {
+		assertNotFinished(length);
+		while (length > 0) {
+			int n = Math.min(length, FileStoreConstants.LEAF_SIZE - this.leafLength);
+			this.leafSkein.update(data, offset, n);
+			offset += n;
+			length -= n;
+			leafUpdated(n);
+		}
+	}
+
+	/**
+	 * Hashes the remaining bytes of the given buffer. Upon return the position of the buffer is set to its limit
+	 * 
+	 * @param data
+	 */
+	public void update(ByteBuffer data) {
+		assertNotFinished(data.remaining());
+		int limit = data.limit();
+		while (data.hasRemaining()) {
+			int n = Math.min(data.remaining(), FileStoreConstants.LEAF_SIZE - this.leafLength);
+			data.limit(data.position() + n);
+			this.leafSkein.update(data);
+			data.limit(limit);
+			leafUpdated(n);
+		}
+	}
+
+	private void assertNotFinished(int length) {
+		if (this.dmediaFile != null)
+			throw new FileStoreException("The hasher is already finished");
+		if (length > FileStoreConstants.MAX_FILE_SIZE - this.bytesHashed)
+			throw new FileStoreException("The stream exceeds the maximum file size " + FileStoreConstants.MAX_FILE_SIZE);
+	}
+
+	private void leafUpdated(int length) {
+		this.leafLength += length;
+		this.bytesHashed += length;
+		if (this.leafLength == FileStoreConstants.LEAF_SIZE)
+			finishLeaf();
+	}
+
+	private void finishLeaf() {
+		int offset = this.leafIndex * this.digestBytes;
+		if (offset + this.digestBytes > this.digests.length)
+			this.digests = Arrays.copyOf(this.digests, 2 * this.digests.length);
+		this.leafSkein.digest(this.digests, offset);
+		this.leafIndex++;
+		this.leafLength = 0;
+		this.leafSkein = null;
+		if (this.bytesHashed < FileStoreConstants.MAX_FILE_SIZE)
+			this.leafSkein = this.fileStore.createLeafSkein(this.leafIndex);
+	}
+
+	/**
+	 * Hashes the last leaf and the root. Afterwards no more bytes may be hashed
+	 * 
+	 * @param filePath
+	 *            the path of the file the bytes were written to, may be null
+	 * @return the {@link DmediaFile} of the hashed bytes
+	 */
+	public DmediaFile finish(String filePath) {
+		if (this.dmediaFile != null)
+			return this.dmediaFile;
+		if (this.bytesHashed == 0)
+			throw new FileStoreException("An empty stream can not be hashed");
+
+		if (this.leafLength > 0)
+			finishLeaf();
+
+		LeafHashes leafHashes = new LeafHashes(this.leafIndex, this.digestBytes);
+		for (int i = 0; i < this.leafIndex; i++) {
+			leafHashes.setDigest(i, this.digests, i * this.digestBytes);
+		}
+		this.digests = null;
+		this.leafSkein = null;
+
+		String rootHash = this.fileStore.hashRoot(this.bytesHashed, leafHashes);
+		this.dmediaFile = new DmediaFile(filePath, this.bytesHashed, rootHash, leafHashes);
+		return this.dmediaFile;
+	}
+}
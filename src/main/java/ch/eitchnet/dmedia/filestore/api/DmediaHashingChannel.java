@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link WritableByteChannel} which hashes all bytes as they are written to the underlying channel, so that
+ * receiving, hashing and writing a file is a single pass with a single buffer. The {@link DmediaFile} is available
+ * after the channel has been closed
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class DmediaHashingChannel implements WritableByteChannel {
+
+	private final WritableByteChannel channel;
+	private final DmediaHasher hasher;
+	private final String filePath;
+	private boolean closed;
+	private DmediaFile dmediaFile;
+
+	/**
+	 * @param channel
+	 *            the channel to write to
+	 * @param fileStore
+	 *            the {@link FileStore} with whose parameters the bytes are hashed
+	 * @param filePath
+	 *            the path of the file the channel writes to, may be null
+	 */
+	public DmediaHashingChannel(WritableByteChannel channel, FileStore fileStore, String filePath) {
+		this.channel = channel;
+		this.hasher = new DmediaHasher(fileStore);
+		this.filePath = filePath;
+	}
+
+	/**
+	 * @return the {@link DmediaFile} of the written bytes, or null if the channel has not yet been closed or nothing
+	 *         was written, as an empty file has no ID
+	 */
+	public DmediaFile getDmediaFile() {
+		return this.dmediaFile;
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long getBytesWritten() {
+		return this.hasher.getBytesHashed();
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		// only the bytes actually written are hashed
+		ByteBuffer written = src.duplicate();
+		int n = this.channel.write(src);
+		written.limit(written.position() + n);
+		this.hasher.update(written);
+		return n;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.channel.isOpen();
+	}
+
+	/**
+	 * Closes the underlying channel and hashes the last leaf and the root, if any bytes were written
+	 */
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+		if (this.closed)
+			return;
+		this.closed = true;
+		if (this.hasher.getBytesHashed() > 0)
+			this.dmediaFile = this.hasher.finish(this.filePath);
+	}
+}
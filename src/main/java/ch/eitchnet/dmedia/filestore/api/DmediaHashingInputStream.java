@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} which hashes all bytes read through it, so that the {@link DmediaFile} of the stream is known
+ * once it has been read to its end, e.g. while an upload is written to disk
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class DmediaHashingInputStream extends FilterInputStream {
+
+	private final DmediaHasher hasher;
+	private final String filePath;
+	private final byte[] singleByte;
+	private boolean ended;
+	private DmediaFile dmediaFile;
+
+	/**
+	 * @param in
+	 *            the stream to read from
+	 * @param fileStore
+	 *            the {@link FileStore} with whose parameters the stream is hashed
+	 * @param filePath
+	 *            the path of the file the stream is written to, may be null
+	 */
+	public DmediaHashingInputStream(InputStream in, FileStore fileStore, String filePath) {
+		super(in);
+		this.hasher = new DmediaHasher(fileStore);
+		this.filePath = filePath;
+		this.singleByte = new byte[1];
+	}
+
+	/**
+	 * @return the {@link DmediaFile} of the stream, or null if the end of the stream has not yet been reached or the
+	 *         stream was empty, as an empty file has no ID
+	 */
+	public DmediaFile getDmediaFile() {
+		return this.dmediaFile;
+	}
+
+	/**
+	 * @return the number of bytes read so far
+	 */
+	public long getBytesRead() {
+		return this.hasher.getBytesHashed();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = this.in.read();
+		if (b == -1)
+			endOfStream();
+		else {
+			this.singleByte[0] = (byte) b;
+			this.hasher.update(this.singleByte, 0, 1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = this.in.read(b, off, len);
+		if (n == -1)
+			endOfStream();
+		else
+			this.hasher.update(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped bytes must still be hashed
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1)
+				break;
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		// not supported, as the bytes would be hashed twice
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	private void endOfStream() {
+		if (this.ended)
+			return;
+		this.ended = true;
+		if (this.hasher.getBytesHashed() > 0)
+			this.dmediaFile = this.hasher.finish(this.filePath);
+	}
+}
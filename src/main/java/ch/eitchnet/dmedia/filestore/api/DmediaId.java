@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable binary representation of a Dmedia ID, i.e. a root or leaf hash, or a random ID. The digest of up to 40
+ * bytes is packed big endian into longs, so that comparing the words as unsigned numbers orders IDs the same way as
+ * comparing their D-Base32 encoded strings. The hash code is calculated once and the D-Base32 string is only rendered
+ * when requested
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public final class DmediaId implements Comparable<DmediaId> {
+
+	/**
+	 * The maximum length of a digest in bytes which can be held by a {@link DmediaId}
+	 */
+	public static final int MAX_LENGTH = 40;
+
+	private final long w0;
+	private final long w1;
+	private final long w2;
+	private final long w3;
+	private final long w4;
+	private final int length;
+	private final int hashCode;
+
+	private String string;
+
+	private DmediaId(long w0, long w1, long w2, long w3, long w4, int length) {
+		this.w0 = w0;
+		this.w1 = w1;
+		this.w2 = w2;
+		this.w3 = w3;
+		this.w4 = w4;
+		this.length = length;
+
+		long h = w0 * 31 + w1;
+		h = h * 31 + w2;
+		h = h * 31 + w3;
+		h = h * 31 + w4;
+		h = h * 31 + length;
+		this.hashCode = (int) (h ^ (h >>> 32));
+	}
+
+	private static void checkLength(int length) {
+		if (length < 5 || length > MAX_LENGTH || length % 5 != 0) {
+			String msg = "The length %d of the digest is invalid. It must be >= 5 and <= %d and mod(5) == 0";
+			throw new Dbase32Exception(String.format(msg, length, MAX_LENGTH));
+		}
+	}
+
+	/**
+	 * @param digest
+	 *            the binary digest
+	 * @return the {@link DmediaId} of the given digest
+	 */
+	public static DmediaId fromDigest(byte[] digest) {
+		return fromDigest(digest, 0, digest.length);
+	}
+
+	/**
+	 * @param src
+	 *            the array containing the binary digest
+	 * @param off
+	 *            the offset of the digest
+	 * @param len
+	 *            the length of the digest
+	 * @return the {@link DmediaId} of the given digest
+	 */
+	public static DmediaId fromDigest(byte[] src, int off, int len) {
+		checkLength(len);
+
+		return new DmediaId(readWord(src, off, len, 0), readWord(src, off, len, 8), readWord(src, off, len, 16),
+				readWord(src, off, len, 24), readWord(src, off, len, 32), len);
+	}
+
+	/**
+	 * @param buffer
+	 *            the buffer containing the binary digest
+	 * @param index
+	 *            the absolute index of the digest in the buffer
+	 * @param len
+	 *            the length of the digest
+	 * @return the {@link DmediaId} of the given digest
+	 */
+	static DmediaId fromBuffer(ByteBuffer buffer, int index, int len) {
+		checkLength(len);
+
+		return new DmediaId(readWord(buffer, index, len, 0), readWord(buffer, index, len, 8), readWord(buffer, index,
+				len, 16), readWord(buffer, index, len, 24), readWord(buffer, index, len, 32), len);
+	}
+
+	private static long readWord(ByteBuffer buffer, int off, int len, int index) {
+		long word = 0;
+		for (int i = index; i < index + 8; i++) {
+			word <<= 8;
+			if (i < len)
+				word |= buffer.get(off + i) & 0xFFL;
+		}
+		return word;
+	}
+
+	/**
+	 * @param buffer
+	 * @param index
+	 *            the absolute index of the digest in the buffer
+	 * @param len
+	 *            the length of the digest in the buffer
+	 * @return true if the digest in the buffer is the digest of this ID
+	 */
+	boolean matches(ByteBuffer buffer, int index, int len) {
+		if (len != this.length)
+			return false;
+		for (int i = 0; i < len; i++) {
+			if ((byte) byteAt(i) != buffer.get(index + i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the big endian word of the up to 8 bytes starting at the given index of the digest, padded with zeros
+	 */
+	private static long readWord(byte[] src, int off, int len, int index) {
+		long word = 0;
+		for (int i = index; i < index + 8; i++) {
+			word <<= 8;
+			if (i < len)
+				word |= src[off + i] & 0xFFL;
+		}
+		return word;
+	}
+
+	/**
+	 * Parses the D-Base32 encoded ID without creating intermediate arrays
+	 * 
+	 * @param id
+	 *            the D-Base32 encoded ID
+	 * @return the {@link DmediaId}
+	 * 
+	 * @throws Dbase32Exception
+	 *             if the ID is not valid D-Base32 encoded data
+	 */
+	public static DmediaId parse(CharSequence id) throws Dbase32Exception {
+		int encLength = id.length();
+		if (encLength % 8 != 0)
+			throw new Dbase32Exception("The length " + encLength + " of the ID " + id + " is not a multiple of 8");
+		int len = Dbase32.decodedLength(encLength);
+		checkLength(len);
+
+		long w0 = 0, w1 = 0, w2 = 0, w3 = 0, w4 = 0;
+		for (int i = 0; i < encLength; i += 8) {
+			long group = 0;
+			int invalid = 0;
+			for (int j = i; j < i + 8; j++) {
+				int v = Dbase32.decodeChar(id.charAt(j));
+				invalid |= v;
+				group = group << 5 | (v & 31);
+			}
+			if (invalid < 0)
+				throw new Dbase32Exception("The ID " + id + " contains characters not in the D-Base32 alphabet");
+
+			// shift the 40 bits of the group through the words
+			w0 = w0 << 40 | w1 >>> 24;
+			w1 = w1 << 40 | w2 >>> 24;
+			w2 = w2 << 40 | w3 >>> 24;
+			w3 = w3 << 40 | w4 >>> 24;
+			w4 = w4 << 40 | group;
+		}
+
+		// align the digest at the start of the first word
+		int shift = MAX_LENGTH - len;
+		while (shift > 0) {
+			int bytes = Math.min(shift, 7);
+			int bits = bytes << 3;
+			w0 = w0 << bits | w1 >>> (64 - bits);
+			w1 = w1 << bits | w2 >>> (64 - bits);
+			w2 = w2 << bits | w3 >>> (64 - bits);
+			w3 = w3 << bits | w4 >>> (64 - bits);
+			w4 = w4 << bits;
+			shift -= bytes;
+		}
+
+		DmediaId dmediaId = new DmediaId(w0, w1, w2, w3, w4, len);
+		if (id instanceof String)
+			dmediaId.string = (String) id;
+		return dmediaId;
+	}
+
+	/**
+	 * @return the length of the digest in bytes
+	 */
+	public int length() {
+		return this.length;
+	}
+
+	private long word(int index) {
+		switch (index) {
+		case 0:
+			return this.w0;
+		case 1:
+			return this.w1;
+		case 2:
+			return this.w2;
+		case 3:
+			return this.w3;
+		default:
+			return this.w4;
+		}
+	}
+
+	private int byteAt(int index) {
+		return (int) (word(index >>> 3) >>> (56 - ((index & 7) << 3))) & 0xFF;
+	}
+
+	/**
+	 * @param dst
+	 *            the array to copy the binary digest to
+	 * @param off
+	 *            the offset in the array
+	 * @return the number of bytes written
+	 */
+	public int getDigest(byte[] dst, int off) {
+		for (int i = 0; i < this.length; i++) {
+			dst[off + i] = (byte) byteAt(i);
+		}
+		return this.length;
+	}
+
+	/**
+	 * @return a copy of the binary digest
+	 */
+	public byte[] getDigest() {
+		byte[] digest = new byte[this.length];
+		getDigest(digest, 0);
+		return digest;
+	}
+
+	/**
+	 * Writes the D-Base32 encoded ID to the given array without creating intermediate arrays
+	 * 
+	 * @param dst
+	 *            the array to write the encoded ID to
+	 * @param off
+	 *            the offset in the array
+	 * @return the number of bytes written
+	 */
+	public int encode(byte[] dst, int off) {
+		int d = off;
+		for (int i = 0; i < this.length; i += 5) {
+			long group = (long) byteAt(i) << 32 | (long) byteAt(i + 1) << 24 | (long) byteAt(i + 2) << 16
+					| (long) byteAt(i + 3) << 8 | byteAt(i + 4);
+			for (int shift = 35; shift >= 0; shift -= 5) {
+				dst[d++] = Dbase32.encodeChar((int) (group >>> shift) & 31);
+			}
+		}
+		return d - off;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof DmediaId))
+			return false;
+		DmediaId other = (DmediaId) obj;
+		return this.hashCode == other.hashCode && ((this.w0 ^ other.w0) | (this.w1 ^ other.w1) | (this.w2 ^ other.w2)
+				| (this.w3 ^ other.w3) | (this.w4 ^ other.w4) | (this.length ^ other.length)) == 0;
+	}
+
+	/**
+	 * Compares the IDs in the order of their D-Base32 encoded strings. The results of comparing the words are combined
+	 * with decreasing weights instead of returning at the first difference
+	 */
+	@Override
+	public int compareTo(DmediaId other) {
+		int c = compareUnsigned(this.w0, other.w0) << 5;
+		c += compareUnsigned(this.w1, other.w1) << 4;
+		c += compareUnsigned(this.w2, other.w2) << 3;
+		c += compareUnsigned(this.w3, other.w3) << 2;
+		c += compareUnsigned(this.w4, other.w4) << 1;
+		c += Integer.compare(this.length, other.length);
+		return Integer.signum(c);
+	}
+
+	private static int compareUnsigned(long a, long b) {
+		return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+	}
+
+	/**
+	 * @return the D-Base32 encoded ID
+	 */
+	@Override
+	public String toString() {
+		String s = this.string;
+		if (s == null) {
+			byte[] encoded = new byte[Dbase32.encodedLength(this.length)];
+			encode(encoded, 0);
+			s = new String(encoded, StandardCharsets.US_ASCII);
+			this.string = s;
+		}
+		return s;
+	}
+}
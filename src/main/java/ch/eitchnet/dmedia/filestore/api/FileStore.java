@@ -25,9 +25,37 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import nl.warper.skein.Skein;
 
@@ -44,11 +72,36 @@ public class FileStore {
 
 	private static final Logger logger = LoggerFactory.getLogger(FileStore.class);
 
+	private static final LeafChainCache leafChainCache = new LeafChainCache(FileStoreConstants.LEAF_CHAIN_CACHE_SIZE);
+
+	/**
+	 * The number of leaves whose encoded hashes are added to the root hash at once
+	 */
+	private static final int ROOT_UPDATE_LEAVES = 1024;
+
 	private final int blockSize;
 	private final int digestSize;
 	private final boolean withKey;
 	private final boolean withPers;
 
+	// reading and parallel hashing of leaves
+	private ReadMode readMode = ReadMode.STREAM;
+	private Executor executor;
+	private int maxLeafBuffers = FileStoreConstants.DEFAULT_LEAF_BUFFERS;
+	private LeafBufferPool leafBufferPool;
+	private Semaphore inlineHashing;
+	private HashCache hashCache;
+	private boolean useXattrs;
+	private long checkpointInterval = FileStoreConstants.CHECKPOINT_INTERVAL_MILLIS;
+
+	// the store layout, null if files are only hashed
+	private File basePath;
+	private File filesDir;
+	private File tmpDir;
+	private File partialDir;
+	private File corruptDir;
+	private FileStoreCatalog catalog;
+
 	/**
 	 * 
 	 */
@@ -56,6 +109,38 @@ public class FileStore {
 		this(FileStoreConstants.BLOCK_BITS, FileStoreConstants.DIGEST_BITS, true, true);
 	}
 
+	/**
+	 * Creates a {@link FileStore} which stores the files under the given base path using the Dmedia layout:
+	 * 
+	 * <pre>
+	 * basePath/.dmedia/files/&lt;first 2 chars of ID&gt;/&lt;rest of ID&gt;
+	 * basePath/.dmedia/tmp/
+	 * basePath/.dmedia/partial/
+	 * basePath/.dmedia/corrupt/
+	 * </pre>
+	 * 
+	 * The directories are created if they do not exist
+	 * 
+	 * @param basePath
+	 *            the root directory of the store
+	 */
+	public FileStore(File basePath) {
+		this(FileStoreConstants.BLOCK_BITS, FileStoreConstants.DIGEST_BITS, true, true);
+
+		File storeDir = new File(basePath, FileStoreConstants.STORE_DIR);
+		this.basePath = basePath;
+		this.filesDir = createDir(new File(storeDir, FileStoreConstants.FILES_DIR));
+		this.tmpDir = createDir(new File(storeDir, FileStoreConstants.TMP_DIR));
+		this.partialDir = createDir(new File(storeDir, FileStoreConstants.PARTIAL_DIR));
+		this.corruptDir = createDir(new File(storeDir, FileStoreConstants.CORRUPT_DIR));
+	}
+
+	private static File createDir(File dir) {
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new FileStoreException("Could not create directory " + dir.getAbsolutePath());
+		return dir;
+	}
+
 	/**
 	 * @param blockSize
 	 * @param digestSize
@@ -69,14 +154,845 @@ public class FileStore {
 		this.withPers = withPers;
 	}
 
+	/**
+	 * Sets the mode in which the leaves of a file are read, {@link ReadMode#STREAM} being the default
+	 * 
+	 * @param readMode
+	 *            the mode in which to read the leaves
+	 */
+	public void setReadMode(ReadMode readMode) {
+		if (readMode == null)
+			throw new IllegalArgumentException("The read mode may not be null");
+		this.readMode = readMode;
+	}
+
+	/**
+	 * Sets the {@link Executor} with which the leaves of a file are hashed in parallel. If null, which is the default,
+	 * the leaves are hashed sequentially on the calling thread
+	 * 
+	 * @param executor
+	 *            the executor to hash the leaves with, or null
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the executor with which the leaves are hashed in parallel, or null
+	 */
+	public Executor getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * @return the length of the binary leaf and root digests
+	 */
+	int getDigestBytes() {
+		return this.digestSize / 8;
+	}
+
+	/**
+	 * Sets the maximum number of leaf buffers of {@link FileStoreConstants#LEAF_SIZE} bytes which may be in flight
+	 * when hashing in parallel. This bounds the memory used for hashing a file
+	 * 
+	 * @param maxLeafBuffers
+	 *            the maximum number of leaf buffers, at least 1
+	 */
+	public void setMaxLeafBuffers(int maxLeafBuffers) {
+		if (maxLeafBuffers < 1)
+			throw new IllegalArgumentException("At least one leaf buffer is required");
+		this.maxLeafBuffers = maxLeafBuffers;
+	}
+
+	/**
+	 * Sets a memory budget for the leaf buffers of all files hashed concurrently by this {@link FileStore} in the
+	 * {@link ReadMode#STREAM}, {@link ReadMode#PIPELINED} and {@link ReadMode#POSITIONAL} modes, when importing and
+	 * when hashing asynchronously. Hashing a file waits until the buffers it needs are available, and the buffers are
+	 * reused. Files smaller than a leaf use buffers of their own size, outside of the budget
+	 * 
+	 * @param bytes
+	 *            the memory budget in bytes, at least {@link FileStoreConstants#LEAF_SIZE}, or 0 for no budget
+	 */
+	public void setLeafMemoryBudget(long bytes) {
+		if (bytes == 0) {
+			this.leafBufferPool = null;
+			return;
+		}
+		if (bytes < FileStoreConstants.LEAF_SIZE)
+			throw new IllegalArgumentException("The budget must fit at least one leaf buffer: " + bytes);
+		this.leafBufferPool = new LeafBufferPool((int) Math.min(Integer.MAX_VALUE, bytes
+				/ FileStoreConstants.LEAF_SIZE));
+	}
+
+	/**
+	 * @return the memory budget of the leaf buffers, or null if there is none
+	 */
+	LeafBufferPool getLeafBufferPool() {
+		return this.leafBufferPool;
+	}
+
+	/**
+	 * @param leafBufferPool
+	 *            the memory budget of the leaf buffers, e.g. one returned by {@link #getLeafBufferPool()}, or null
+	 */
+	void setLeafBufferPool(LeafBufferPool leafBufferPool) {
+		this.leafBufferPool = leafBufferPool;
+	}
+
+	/**
+	 * Bounds the number of leaves which are hashed on the calling threads at once when importing, e.g. the files of a
+	 * single leaf which are not handed to the {@link Executor}. The leaves are still read on the calling threads
+	 * without a permit, so that only the CPU heavy hashing is bounded
+	 * 
+	 * @param inlineHashing
+	 *            the permits to hash a leaf on a calling thread, or null for no bound
+	 */
+	void setInlineHashing(Semaphore inlineHashing) {
+		this.inlineHashing = inlineHashing;
+	}
+
+	/**
+	 * @return the permits to hash a leaf on a calling thread, or null if there is no bound
+	 */
+	Semaphore getInlineHashing() {
+		return this.inlineHashing;
+	}
+
+	/**
+	 * @return the number of leaf buffers which may be used for a file with the given number of leaves
+	 */
+	static int getNrOfLeafBuffers(LeafBufferPool pool, int maxBuffers, int nrOfSlices) {
+		int nrOfBuffers = Math.min(maxBuffers, nrOfSlices);
+		return pool == null ? nrOfBuffers : Math.min(nrOfBuffers, pool.getCapacity());
+	}
+
+	/**
+	 * Acquires leaf buffers from the memory budget, if one is set. Files smaller than a leaf get buffers of their size
+	 */
+	static byte[][] acquireLeafBuffers(LeafBufferPool pool, int count, long fileSize) {
+		if (pool == null || fileSize < FileStoreConstants.LEAF_SIZE) {
+			byte[][] buffers = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				buffers[i] = new byte[(int) Math.min(FileStoreConstants.LEAF_SIZE, fileSize)];
+			}
+			return buffers;
+		}
+		try {
+			return pool.acquire(count);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileStoreException("Interrupted while waiting for leaf buffers", e);
+		}
+	}
+
+	/**
+	 * Returns the given buffers to the memory budget, if one is set, and releases the budget of the buffers which were
+	 * acquired but are not returned, as they may still be in use after a failure
+	 */
+	static void releaseLeafBuffers(LeafBufferPool pool, Collection<byte[]> buffers, int acquired,
+			long fileSize) {
+		if (pool != null && fileSize >= FileStoreConstants.LEAF_SIZE)
+			pool.release(buffers, acquired);
+	}
+
+	/**
+	 * Sets the cache with which unchanged files are not hashed again. If null, which is the default, every file is
+	 * hashed. A cache may only be shared by {@link FileStore}s with the same block size, digest size, key and
+	 * personalization
+	 * 
+	 * @param hashCache
+	 *            the cache, or null
+	 */
+	public void setHashCache(HashCache hashCache) {
+		this.hashCache = hashCache;
+	}
+
+	/**
+	 * Sets how often the leaf digests are committed to the checkpoint by {@link #hashFileResumable(File, File)}
+	 * 
+	 * @param checkpointInterval
+	 *            the interval in milliseconds, 0 to commit after every leaf
+	 */
+	public void setCheckpointInterval(long checkpointInterval) {
+		if (checkpointInterval < 0)
+			throw new IllegalArgumentException("The checkpoint interval may not be negative: " + checkpointInterval);
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Enables writing the root hash of hashed files to their extended attributes, and reading it before hashing a file
+	 * again, see {@link XattrHelper}. Disabled by default. Only supported with the Dmedia block and digest size, key and
+	 * personalization, as the attributes do not record these parameters
+	 * 
+	 * @param useXattrs
+	 *            true to use extended attributes
+	 */
+	public void setUseXattrs(boolean useXattrs) {
+		if (useXattrs
+				&& (this.blockSize != FileStoreConstants.BLOCK_BITS || this.digestSize != FileStoreConstants.DIGEST_BITS
+						|| !this.withKey || !this.withPers))
+			throw new FileStoreException("Extended attributes are only supported with the Dmedia hash parameters");
+		this.useXattrs = useXattrs;
+	}
+
+	/**
+	 * Identifies the file by the root hash in its extended attributes, without reading the file
+	 * 
+	 * @param file
+	 * @return the root ID, or null if extended attributes are not used, not supported or the file changed since it was
+	 *         hashed
+	 */
+	public DmediaId identify(File file) {
+		if (!this.useXattrs)
+			return null;
+		return XattrHelper.readRootId(file);
+	}
+
+	/**
+	 * @return the cache of the Skein chaining values used for hashing leaves, shared by all {@link FileStore} instances
+	 */
+	public static LeafChainCache getLeafChainCache() {
+		return leafChainCache;
+	}
+
+	/**
+	 * @return the base path of the store, or null if this {@link FileStore} only hashes files
+	 */
+	public File getBasePath() {
+		return this.basePath;
+	}
+
+	/**
+	 * @return the directory in which files are written while being imported
+	 */
+	public File getTmpDir() {
+		assertStore();
+		return this.tmpDir;
+	}
+
+	/**
+	 * @return the directory containing the stored files
+	 */
+	public File getFilesDir() {
+		assertStore();
+		return this.filesDir;
+	}
+
+	/**
+	 * @return the directory for files which are not yet complete
+	 */
+	public File getPartialDir() {
+		assertStore();
+		return this.partialDir;
+	}
+
+	/**
+	 * @return the directory to which corrupt files are moved
+	 */
+	public File getCorruptDir() {
+		assertStore();
+		return this.corruptDir;
+	}
+
+	/**
+	 * @param id
+	 *            the root hash of the file
+	 * @return the path at which the file with the given ID is stored, i.e. files/&lt;2 char prefix&gt;/&lt;rest of
+	 *         ID&gt;
+	 */
+	public File getStoredFile(String id) {
+		assertStore();
+		if (id == null || id.length() <= FileStoreConstants.ID_PREFIX_LENGTH)
+			throw new FileStoreException("Invalid ID " + id);
+		File prefixDir = new File(this.filesDir, id.substring(0, FileStoreConstants.ID_PREFIX_LENGTH));
+		return new File(prefixDir, id.substring(FileStoreConstants.ID_PREFIX_LENGTH));
+	}
+
+	/**
+	 * @return the file of the catalog of this store, i.e. basePath/.dmedia/catalog
+	 */
+	public File getCatalogFile() {
+		assertStore();
+		return new File(new File(this.basePath, FileStoreConstants.STORE_DIR), FileStoreConstants.CATALOG_FILE);
+	}
+
+	/**
+	 * @return the file in which the progress of the {@link FileStoreScrubber} is recorded, i.e. basePath/.dmedia/scrub
+	 */
+	public File getScrubFile() {
+		assertStore();
+		return new File(new File(this.basePath, FileStoreConstants.STORE_DIR), FileStoreConstants.SCRUB_FILE);
+	}
+
+	/**
+	 * Sets the catalog in which the files imported into this store are recorded, see {@link #getCatalogFile()}
+	 * 
+	 * @param catalog
+	 *            the catalog, or null
+	 */
+	public void setCatalog(FileStoreCatalog catalog) {
+		assertStore();
+		this.catalog = catalog;
+	}
+
+	/**
+	 * @return the catalog in which imported files are recorded, or null
+	 */
+	public FileStoreCatalog getCatalog() {
+		return this.catalog;
+	}
+
+	/**
+	 * Looks up the stored file with the given ID in the catalog, without touching the file itself
+	 * 
+	 * @param rootId
+	 * @return the {@link DmediaFile} with the path of the stored file, or null if it is not in the catalog
+	 */
+	public DmediaFile lookup(DmediaId rootId) {
+		if (this.catalog == null)
+			throw new FileStoreException("This FileStore has no catalog");
+		DmediaFile dmediaFile = this.catalog.get(rootId);
+		if (dmediaFile == null)
+			return null;
+		File storedFile = getStoredFile(dmediaFile.getRootHash());
+		return new DmediaFile(storedFile.getAbsolutePath(), dmediaFile.getFileSize(), dmediaFile.getRootHash(),
+				dmediaFile.getLeafHashes());
+	}
+
+	private void assertStore() {
+		if (this.basePath == null)
+			throw new FileStoreException("This FileStore has no base path and only hashes files");
+	}
+
+	/**
+	 * Hashes the given file and, if this {@link FileStore} has a base path, stores it in the store. Storing is done in
+	 * a single pass: each leaf read is written to a temporary file as it is hashed, after which the temporary file is
+	 * atomically renamed to the path of its ID. If a file with the same ID is already stored, the temporary file is
+	 * discarded
+	 * 
+	 * @param file
+	 *            the file to hash and store
+	 * 
+	 * @return the {@link DmediaFile}, with the path of the stored file if this {@link FileStore} has a base path
+	 */
 	public DmediaFile hashAndStoreFile(File file) {
 
 		validateFile(file);
 
-		List<DmediaFileSlice> fileSlices = hashLeaves(file);
-		DmediaFile dmediaFile = hashRoot(file, fileSlices);
+		HashCache.Key key = null;
+		if (this.hashCache != null) {
+			key = HashCache.readKey(file);
+			DmediaFile cached = this.hashCache.get(key, file);
+			if (cached != null) {
+				if (this.basePath == null)
+					return cached;
+				File storedFile = getStoredFile(cached.getRootHash());
+				if (storedFile.exists())
+					return new DmediaFile(storedFile.getAbsolutePath(), cached.getFileSize(), cached.getRootHash(),
+							cached.getLeafHashes());
+			}
+		}
+
+		long mtimeNanos = -1;
+		if (this.useXattrs) {
+			mtimeNanos = getMtimeNanos(file);
+			DmediaFile known = readXattrs(file);
+			if (known != null) {
+				if (this.basePath == null)
+					return known;
+				File storedFile = getStoredFile(known.getRootHash());
+				if (storedFile.exists())
+					return new DmediaFile(storedFile.getAbsolutePath(), known.getFileSize(), known.getRootHash(),
+							known.getLeafHashes());
+			}
+		}
+
+		DmediaFile dmediaFile;
+		if (this.basePath != null) {
+			dmediaFile = importFile(file);
+		} else {
+			List<DmediaFileSlice> fileSlices = hashLeaves(file);
+			dmediaFile = hashRoot(file, fileSlices);
+		}
+
+		if (this.useXattrs) {
+			// writing the attributes changes the change time of the file, so the file must be checked to be unchanged
+			// before writing them, and is then cached under its attributes read afterwards
+			if (key != null && !key.equals(HashCache.readKey(file)))
+				key = null;
+			XattrHelper.write(file, dmediaFile, mtimeNanos);
+			if (key != null)
+				this.hashCache.put(key, HashCache.readKey(file), dmediaFile);
+		} else if (key != null) {
+			this.hashCache.put(key, file, dmediaFile);
+		}
+
+		return dmediaFile;
+	}
+
+	private static long getMtimeNanos(File file) {
+		try {
+			return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read the modification time of " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return the {@link DmediaFile} from the extended attributes of the file, with the leaf hashes from the attributes
+	 *         or the catalog, or null if they are not available
+	 */
+	private DmediaFile readXattrs(File file) {
+		DmediaFile dmediaFile = XattrHelper.read(file, this);
+		if (dmediaFile != null || this.catalog == null)
+			return dmediaFile;
+
+		// the leaf digests of large files are not in the attributes
+		DmediaId rootId = XattrHelper.readRootId(file);
+		DmediaFile cataloged = rootId == null ? null : this.catalog.get(rootId);
+		if (cataloged == null)
+			return null;
+		return new DmediaFile(file.getAbsolutePath(), cataloged.getFileSize(), cataloged.getRootHash(),
+				cataloged.getLeafHashes());
+	}
+
+	/**
+	 * Copies the file into the tmp directory while hashing it, and then moves it to the path of its ID
+	 * 
+	 * @param file
+	 * @return
+	 */
+	private DmediaFile importFile(File file) {
+
+		File tmpFile = new File(this.tmpDir, Dbase32.generateRandomIdAsString());
+		try {
+
+			LeafHashes leafHashes;
+			try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+				// files of a single leaf are hashed on the calling thread
+				if (this.executor != null && file.length() > FileStoreConstants.LEAF_SIZE)
+					leafHashes = hashLeavesParallel(file, out, null);
+				else
+					leafHashes = hashLeavesCopying(file, out);
+				out.getFD().sync();
+			}
+
+			long fileSize = tmpFile.length();
+			String rootHash = hashRoot(fileSize, leafHashes);
+			return storeTmpFile(tmpFile, file.getAbsolutePath(), new DmediaFile(null, fileSize, rootHash, leafHashes));
+
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to store file " + file.getAbsolutePath(), e);
+		} finally {
+			if (tmpFile.exists() && !tmpFile.delete())
+				logger.warn("Failed to delete temporary file " + tmpFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Stores the bytes read from the given stream, e.g. an upload, hashing them while they are written to a temporary
+	 * file, so that receiving, hashing and writing is a single pass. The stream is not closed
+	 * 
+	 * @param in
+	 *            the stream to read the bytes to store from
+	 * @return the {@link DmediaFile} with the path of the stored file
+	 */
+	public DmediaFile importStream(InputStream in) {
+		assertStore();
+
+		File tmpFile = new File(this.tmpDir, Dbase32.generateRandomIdAsString());
+		try {
+
+			DmediaHashingInputStream hashingIn = new DmediaHashingInputStream(in, this, null);
+			try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+				byte[] buffer = new byte[65536];
+				int read;
+				while ((read = hashingIn.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+				out.getFD().sync();
+			}
+
+			if (hashingIn.getDmediaFile() == null)
+				throw new FileStoreException("An empty stream can not be stored");
+			return storeTmpFile(tmpFile, "stream", hashingIn.getDmediaFile());
+
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to store stream", e);
+		} finally {
+			if (tmpFile.exists() && !tmpFile.delete())
+				logger.warn("Failed to delete temporary file " + tmpFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Moves the completely written and hashed temporary file to the path of its ID, unless it is already stored
+	 */
+	private DmediaFile storeTmpFile(File tmpFile, String source, DmediaFile hashed) throws IOException {
+
+		String rootHash = hashed.getRootHash();
+		File storedFile = getStoredFile(rootHash);
+		DmediaFile dmediaFile = new DmediaFile(storedFile.getAbsolutePath(), hashed.getFileSize(), rootHash,
+				hashed.getLeafHashes());
+		if (storedFile.exists()) {
+			logger.info("File " + source + " is already stored as " + rootHash);
+		} else {
+			// stored files are read only, so the attributes are written before the file is moved
+			if (this.useXattrs)
+				XattrHelper.write(tmpFile, dmediaFile);
+			createDir(storedFile.getParentFile());
+			Files.move(tmpFile.toPath(), storedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			if (!storedFile.setReadOnly())
+				logger.warn("Failed to set stored file read only at " + storedFile.getAbsolutePath());
+		}
+
+		if (this.catalog != null && !this.catalog.contains(dmediaFile.getRootId())) {
+			this.catalog.add(dmediaFile, storedFile.lastModified());
+			this.catalog.sync();
+		}
+		return dmediaFile;
+	}
+
+	/**
+	 * Hashes the given file, periodically committing the completed leaf digests together with the size and mtime of
+	 * the file to the given checkpoint file. If the checkpoint exists and the file has not changed, hashing resumes at
+	 * the first leaf missing in the checkpoint, so that a restart only loses the work since the last commit. The
+	 * checkpoint is deleted once the file has been completely hashed
+	 * 
+	 * @param file
+	 *            the file to hash
+	 * @param checkpointFile
+	 *            the sidecar file for the leaf digests, e.g. in the partial directory of the store
+	 * @return the {@link DmediaFile}
+	 */
+	public DmediaFile hashFileResumable(File file, File checkpointFile) {
+		return hashFileResumable(file, checkpointFile, null);
+	}
+
+	/**
+	 * @param callback
+	 *            notified of each leaf hashed, may stop hashing by returning false, or null
+	 * @return the {@link DmediaFile}, or null if hashing was stopped by the callback
+	 * 
+	 * @see #hashFileResumable(File, File)
+	 */
+	DmediaFile hashFileResumable(File file, File checkpointFile, LeafCallback callback) {
+
+		validateFile(file);
+		long fileSize = file.length();
+		long mtimeNanos = getMtimeNanos(file);
+		int nrOfSlices = getNrOfSlices(fileSize);
+		LeafHashes leafHashes = new LeafHashes(nrOfSlices, this.digestSize / 8);
+
+		HashCheckpoint checkpoint = new HashCheckpoint(checkpointFile, fileSize, mtimeNanos, this.digestSize / 8);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			int firstLeaf = checkpoint.read(leafHashes);
+			if (firstLeaf > 0)
+				logger.info(String.format("Resuming hashing of %s at leaf %d of %d", file.getAbsolutePath(),
+						firstLeaf, nrOfSlices));
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FileStoreConstants.LEAF_SIZE, fileSize));
+			long lastCommit = System.currentTimeMillis();
+			for (int leafIndex = firstLeaf; leafIndex < nrOfSlices; leafIndex++) {
+
+				byte[] digest = digestPositionalLeaf(file, channel, leafIndex, fileSize, buffer);
+				leafHashes.setDigest(leafIndex, digest, 0);
+				checkpoint.append(leafIndex, digest);
+
+				long now = System.currentTimeMillis();
+				if (now - lastCommit >= this.checkpointInterval) {
+					checkpoint.commit();
+					lastCommit = now;
+				}
+
+				if (!leafHashed(callback, leafIndex, digest)) {
+					checkpoint.close();
+					return null;
+				}
+			}
+
+			if (channel.size() != fileSize || getMtimeNanos(file) != mtimeNanos) {
+				checkpoint.delete();
+				throw new FileStoreException("The file " + file.getAbsolutePath() + " was modified while being hashed");
+			}
+
+		} catch (IOException e) {
+			checkpoint.close();
+			throw new FileStoreException("Failed to hash file " + file.getAbsolutePath(), e);
+		} catch (RuntimeException e) {
+			checkpoint.close();
+			throw e;
+		}
+
+		checkpoint.delete();
+		String rootHash = hashRoot(fileSize, leafHashes);
+		return new DmediaFile(file.getAbsolutePath(), fileSize, rootHash, leafHashes);
+	}
+
+	/**
+	 * Hashes the given file, delivering each leaf hash to the listener as soon as the leaf has been hashed, so that
+	 * later stages can start on the first leaves while the later leaves are still being read. Hashing waits while the
+	 * listener has not requested further leaves, and cancelling the subscription stops reading within one leaf. The
+	 * leaves are read using the configured {@link ReadMode} and {@link Executor}
+	 * 
+	 * @param file
+	 *            the file to hash
+	 * @param listener
+	 *            the listener receiving the leaf hashes
+	 * @return the {@link DmediaFile}, or null if the subscription was cancelled or hashing failed
+	 */
+	public DmediaFile publishLeaves(File file, LeafHashListener listener) {
+		LeafHashPublisher publisher = new LeafHashPublisher(listener);
+		listener.onSubscribe(publisher);
+
+		DmediaFile dmediaFile;
+		try {
+			validateFile(file);
+			long fileSize = file.length();
+			LeafHashes leafHashes = hashLeaves(file, publisher);
+			if (publisher.isCancelled())
+				return null;
+			dmediaFile = new DmediaFile(file.getAbsolutePath(), fileSize, hashRoot(fileSize, leafHashes), leafHashes);
+		} catch (RuntimeException e) {
+			// leaves may still be in flight, so the publisher stops them before signalling the failure
+			publisher.fail(e);
+			return null;
+		}
+
+		listener.onComplete(dmediaFile);
+		return dmediaFile;
+	}
+
+	/**
+	 * @param file
+	 * @return the {@link Future} of the {@link DmediaFile}
+	 * @see #hashAsync(File, Object, CompletionHandler)
+	 */
+	public Future<DmediaFile> hashAsync(File file) {
+		return hashAsync(file, null, null);
+	}
+
+	/**
+	 * Hashes the given file asynchronously with an {@link AsynchronousFileChannel}, so that no thread is blocked while
+	 * reading. Up to {@link #setMaxLeafBuffers(int)} leaves are read at once and each leaf is hashed in the completion
+	 * handler of its read. The buffers are taken from the leaf memory budget, see {@link #setLeafMemoryBudget(long)}.
+	 * This method never waits for them, instead the hashing starts as soon as another file returns its buffers. Files
+	 * found in the hash cache are not read at all, see {@link #setHashCache(HashCache)}. If the executor of this
+	 * {@link FileStore} is an {@link ExecutorService}, the channel uses it for its reads and completion handlers, so
+	 * the returned {@link Future} must not be waited for on one of its threads. Cancelling the {@link Future} closes
+	 * the channel, which stops any further reads
+	 * 
+	 * @param file
+	 *            the file to hash
+	 * @param attachment
+	 *            the object passed to the handler
+	 * @param handler
+	 *            notified of the {@link DmediaFile} or the failure, may be null
+	 * @return the {@link Future} of the {@link DmediaFile}
+	 */
+	public <A> Future<DmediaFile> hashAsync(final File file, A attachment,
+			CompletionHandler<DmediaFile, ? super A> handler) {
+		final HashCache cache = this.hashCache;
+		AsyncHashOperation<DmediaFile, A> operation = new AsyncHashOperation<DmediaFile, A>(this, file, attachment,
+				handler) {
+			private HashCache.Key key;
+
+			@Override
+			protected DmediaFile lookup() {
+				if (cache == null)
+					return null;
+				this.key = HashCache.readKey(file);
+				return cache.get(this.key, file);
+			}
+
+			@Override
+			protected DmediaFile finish(long fileSize, LeafHashes leafHashes) {
+				String rootHash = hashRoot(fileSize, leafHashes);
+				DmediaFile dmediaFile = new DmediaFile(file.getAbsolutePath(), fileSize, rootHash, leafHashes);
+				if (this.key != null)
+					cache.put(this.key, file, dmediaFile);
+				return dmediaFile;
+			}
+		};
+		operation.start(0, -1, this.maxLeafBuffers, this.leafBufferPool, getAsyncExecutor());
+		return operation;
+	}
+
+	/**
+	 * @param file
+	 * @param leafIndex
+	 * @return the {@link Future} of the leaf hash
+	 * @see #hashLeafAsync(File, int, Object, CompletionHandler)
+	 */
+	public Future<String> hashLeafAsync(File file, int leafIndex) {
+		return hashLeafAsync(file, leafIndex, null, null);
+	}
+
+	/**
+	 * Reads and hashes a single leaf of the given file asynchronously, see
+	 * {@link #hashAsync(File, Object, CompletionHandler)}
+	 * 
+	 * @param file
+	 *            the file to read the leaf from
+	 * @param leafIndex
+	 *            the index of the leaf to hash
+	 * @param attachment
+	 *            the object passed to the handler
+	 * @param handler
+	 *            notified of the leaf hash or the failure, may be null
+	 * @return the {@link Future} of the leaf hash
+	 */
+	public <A> Future<String> hashLeafAsync(File file, final int leafIndex, A attachment,
+			CompletionHandler<String, ? super A> handler) {
+		AsyncHashOperation<String, A> operation = new AsyncHashOperation<String, A>(this, file, attachment, handler) {
+			@Override
+			protected String finish(long fileSize, LeafHashes leafHashes) {
+				return leafHashes.getHash(leafIndex);
+			}
+		};
+		operation.start(leafIndex, leafIndex, 1, this.leafBufferPool, getAsyncExecutor());
+		return operation;
+	}
+
+	private ExecutorService getAsyncExecutor() {
+		return this.executor instanceof ExecutorService ? (ExecutorService) this.executor : null;
+	}
+
+	/**
+	 * Verifies the file against the expected {@link DmediaFile}, stopping at the first corrupt leaf
+	 * 
+	 * @param file
+	 * @param expected
+	 * @return the {@link VerifyResult}
+	 */
+	public VerifyResult verify(File file, DmediaFile expected) {
+		return verify(file, expected, false);
+	}
+
+	/**
+	 * Verifies the file against the expected {@link DmediaFile}, comparing each leaf hash as soon as it has been
+	 * computed using the configured {@link ReadMode} and {@link Executor}. If the size of the file differs, no leaves
+	 * are read at all
+	 * 
+	 * @param file
+	 * @param expected
+	 * @param collectAll
+	 *            false to stop reading at the first corrupt leaf, true to verify all leaves and collect all corrupt
+	 *            leaves
+	 * @return the {@link VerifyResult}
+	 */
+	public VerifyResult verify(File file, DmediaFile expected, boolean collectAll) {
+		return verify(file, expected, collectAll, null);
+	}
+
+	/**
+	 * @param listener
+	 *            notified after each leaf has been compared, may stop verifying by returning false, or null
+	 * 
+	 * @see #verify(File, DmediaFile, boolean)
+	 */
+	VerifyResult verify(File file, final DmediaFile expected, final boolean collectAll, final LeafCallback listener) {
+
+		if (!file.exists())
+			throw new FileStoreException("The file does not exist at " + file.getAbsolutePath());
+
+		final LeafHashes expectedLeaves = expected.getLeafHashes();
+		if (expectedLeaves.getDigestBytes() != this.digestSize / 8)
+			throw new FileStoreException("The expected file " + expected.getRootHash()
+					+ " was not hashed with the digest size of this FileStore");
+
+		String rootHash = hashRoot(expected.getFileSize(), expectedLeaves);
+		if (!rootHash.equals(expected.getRootHash()))
+			return new VerifyResult(file, expected, false, true, new int[0], 0);
+		if (file.length() != expected.getFileSize())
+			return new VerifyResult(file, expected, true, false, new int[0], 0);
+
+		final AtomicInteger verified = new AtomicInteger();
+		final ConcurrentLinkedQueue<Integer> corrupt = new ConcurrentLinkedQueue<>();
+		hashLeaves(file, new LeafCallback() {
+			@Override
+			public boolean leafHashed(int leafIndex, byte[] digest) {
+				verified.incrementAndGet();
+				if (!expectedLeaves.digestEquals(leafIndex, digest, 0)) {
+					corrupt.add(leafIndex);
+					if (!collectAll)
+						return false;
+				}
+				return listener == null || listener.leafHashed(leafIndex, digest);
+			}
+		});
+
+		int[] corruptLeaves = new int[corrupt.size()];
+		int i = 0;
+		for (Integer leafIndex : corrupt) {
+			corruptLeaves[i++] = leafIndex;
+		}
+		return new VerifyResult(file, expected, false, false, corruptLeaves, verified.get());
+	}
+
+	/**
+	 * Opens a read only {@link SeekableByteChannel} on the given file, which verifies each leaf against the leaf hashes
+	 * of the file before returning any of its data. If a leaf is corrupt, reading fails with a
+	 * {@link FileStoreException}. Opening fails if the leaf hashes of the file do not result in its root hash, as they
+	 * could not be trusted
+	 * 
+	 * @param dmediaFile
+	 *            the file to read, either with its path, or the root hash of a file in this store
+	 * @return the {@link SeekableByteChannel}
+	 */
+	public SeekableByteChannel openVerified(DmediaFile dmediaFile) {
+		LeafHashes leafHashes = dmediaFile.getLeafHashes();
+		if (leafHashes.getDigestBytes() != this.digestSize / 8
+				|| !hashRoot(dmediaFile.getFileSize(), leafHashes).equals(dmediaFile.getRootHash()))
+			throw new FileStoreException("The leaf hashes of " + dmediaFile.getRootHash()
+					+ " do not match its root hash");
+
+		File file = getFile(dmediaFile);
+		try {
+			return new VerifiedChannel(this, dmediaFile, file);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to open file " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Reads the given range of the given file, only hashing the leaves covering the range. The data is only returned
+	 * after these leaves have been verified, see {@link #openVerified(DmediaFile)}
+	 * 
+	 * @param dmediaFile
+	 *            the file to read, either with its path, or the root hash of a file in this store
+	 * @param offset
+	 *            the offset of the first byte to read
+	 * @param length
+	 *            the number of bytes to read
+	 * @return the verified bytes
+	 */
+	public byte[] readVerified(DmediaFile dmediaFile, long offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > dmediaFile.getFileSize()) {
+			String msg = String.format("The range %d + %d is not within the file size %d", offset, length,
+					dmediaFile.getFileSize());
+			throw new IllegalArgumentException(msg);
+		}
+
+		byte[] data = new byte[length];
+		try (SeekableByteChannel channel = openVerified(dmediaFile)) {
+			channel.position(offset);
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.read(buffer);
+			}
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read " + dmediaFile.getRootHash(), e);
+		}
+		return data;
+	}
 
-		return dmediaFile;
+	private File getFile(DmediaFile dmediaFile) {
+		if (dmediaFile.getFilePath() != null)
+			return new File(dmediaFile.getFilePath());
+		return getStoredFile(dmediaFile.getRootHash());
 	}
 
 	/**
@@ -86,20 +1002,38 @@ public class FileStore {
 	 */
 	public DmediaFile hashRoot(File file, List<DmediaFileSlice> fileSlices) {
 
-		StringBuilder sb = new StringBuilder();
-		for (DmediaFileSlice dmediaFileSlice : fileSlices) {
-			sb.append(dmediaFileSlice.getHash());
-		}
-
-		String leafHashes = sb.toString();
 		long fileSize = file.length();
+		LeafHashes leafHashes = LeafHashes.fromSlices(fileSlices);
+		String rootHash = hashRoot(fileSize, leafHashes);
 
-		String rootHash = new String(hashRoot(fileSize, leafHashes.getBytes()));
-
-		DmediaFile dmediaFile = new DmediaFile(file.getAbsolutePath(), fileSize, rootHash, fileSlices);
+		DmediaFile dmediaFile = new DmediaFile(file.getAbsolutePath(), fileSize, rootHash, leafHashes);
 		return dmediaFile;
 	}
 
+	/**
+	 * Calculates the root hash by streaming the encoded leaf hashes into the {@link Skein} instance in parts of
+	 * {@link #ROOT_UPDATE_LEAVES} leaves, so that the encoded hashes of all leaves never have to be held in one array
+	 * 
+	 * @param fileSize
+	 * @param leafHashes
+	 * @return the root hash of the file with the given size and leaf hashes
+	 */
+	String hashRoot(long fileSize, LeafHashes leafHashes) {
+
+		int count = leafHashes.size();
+		int encodedLength = Dbase32.encodedLength(leafHashes.getDigestBytes());
+		validateRoot(fileSize, (long) count * encodedLength);
+
+		Skein skein = createRootSkein(fileSize);
+		byte[] encoded = new byte[Math.min(count, ROOT_UPDATE_LEAVES) * encodedLength];
+		for (int i = 0; i < count; i += ROOT_UPDATE_LEAVES) {
+			int length = leafHashes.getEncodedHashes(i, Math.min(ROOT_UPDATE_LEAVES, count - i), encoded, 0);
+			skein.update(encoded, 0, length);
+		}
+
+		return new String(Dbase32.db32Enc(skein.digest()));
+	}
+
 	/**
 	 * @param file
 	 */
@@ -109,7 +1043,7 @@ public class FileStore {
 			throw new FileStoreException("The file does not exist at " + file.getAbsolutePath());
 
 		long fileSize = file.length();
-		if (fileSize == FileStoreConstants.MAX_FILE_SIZE) {
+		if (fileSize > FileStoreConstants.MAX_FILE_SIZE) {
 			String msg = "The file size %s is larger than the allowed size %s for file %s";
 			msg = String.format(msg, FileHelper.humanizeFileSize(fileSize),
 					FileHelper.humanizeFileSize(FileStoreConstants.MAX_FILE_SIZE), file.getAbsolutePath());
@@ -118,12 +1052,19 @@ public class FileStore {
 	}
 
 	public int getNrOfSlices(File file) {
+		return getNrOfSlices(file.length());
+	}
 
-		long fileSize = file.length();
+	/**
+	 * @param fileSize
+	 * @return the number of leaves of a file with the given size
+	 */
+	public int getNrOfSlices(long fileSize) {
 
 		// get number of slices. We can truncate to int as we won't have more than
 		// FileStoreConstants.MAX_LEAF_COUNT leaves
-		long nrOfSlices = fileSize <= FileStoreConstants.LEAF_SIZE ? 1 : (fileSize / FileStoreConstants.LEAF_SIZE + 1);
+		long nrOfSlices = fileSize <= FileStoreConstants.LEAF_SIZE ? 1
+				: ((fileSize - 1) / FileStoreConstants.LEAF_SIZE + 1);
 		if (nrOfSlices > FileStoreConstants.MAX_LEAF_COUNT)
 			throw new FileStoreException("There are too many leaves!"); // shouldn't happen
 
@@ -135,46 +1076,699 @@ public class FileStore {
 	 * @return
 	 */
 	public List<DmediaFileSlice> hashLeaves(File file) {
+		return hashLeaves(file, null).asSlices(null);
+	}
+
+	/**
+	 * Hashes the leaves with the configured {@link ReadMode} and {@link Executor}
+	 * 
+	 * @param file
+	 * @param callback
+	 *            notified of each hashed leaf, may be null
+	 * @return the leaf hashes, which are incomplete if the callback stopped the hashing
+	 */
+	LeafHashes hashLeaves(File file, LeafCallback callback) {
+		if (this.readMode == ReadMode.MAPPED)
+			return hashLeavesMapped(file, callback);
+		if (this.readMode == ReadMode.PIPELINED)
+			return hashLeavesPipelined(file, callback);
+		if (this.readMode == ReadMode.POSITIONAL)
+			return hashLeavesPositional(file, callback);
+		if (this.executor != null)
+			return hashLeavesParallel(file, null, callback);
+		return hashLeavesSequential(file, callback);
+	}
+
+	/**
+	 * Reads and hashes the leaves sequentially on the calling thread
+	 * 
+	 * @param file
+	 * @param callback
+	 *            notified of each hashed leaf, may be null
+	 * @return the leaf hashes
+	 */
+	private LeafHashes hashLeavesSequential(File file, LeafCallback callback) {
 
 		long fileSize = file.length();
+		if (fileSize == 0)
+			throw new FileStoreException("The file at " + file.getAbsolutePath() + " is empty and can not be hashed");
 		int nrOfSlices = getNrOfSlices(file);
 		logger.info(String.format("Number of slices: %s, size %s", FileHelper.humanizeFileSize(nrOfSlices),
 				FileHelper.humanizeFileSize(file.length())));
 
-		List<DmediaFileSlice> fileSlices = new ArrayList<>(nrOfSlices);
+		LeafHashes leafHashes = new LeafHashes(nrOfSlices, this.digestSize / 8);
 
+		LeafBufferPool pool = this.leafBufferPool;
+		byte[][] buffers = acquireLeafBuffers(pool, 1, fileSize);
 		try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
 
 			int leafIndex = 0;
 			int read;
-			int offset = 0;
-			byte[] bytes = new byte[FileStoreConstants.LEAF_SIZE];
-			int length = fileSize < FileStoreConstants.LEAF_SIZE ? (int) fileSize : FileStoreConstants.LEAF_SIZE;
+			byte[] bytes = buffers[0];
+
+			while ((read = readLeaf(in, bytes)) > 0) {
+
+				if (logger.isDebugEnabled())
+					logger.debug("Read " + read);
+				if (leafIndex == nrOfSlices)
+					throw new FileStoreException("The file " + file.getAbsolutePath() + " grew while being hashed");
+				byte[] digest = digestLeaf(leafIndex, bytes, 0, read);
+				leafHashes.setDigest(leafIndex, digest, 0);
+				if (!leafHashed(callback, leafIndex, digest))
+					return leafHashes;
+
+				leafIndex++;
+			}
+			if (leafIndex != nrOfSlices)
+				throw new FileStoreException("The file " + file.getAbsolutePath() + " shrank while being hashed");
+
+		} catch (FileNotFoundException e) {
+			throw new FileStoreException("The file does not exist at " + file.getAbsolutePath(), e);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read file at " + file.getAbsolutePath(), e);
+		} catch (FileStoreException e) {
+			throw e;
+		} catch (Exception e) {
+			String msg = String.format("Failed to hash file %s due to internal error", file.getAbsoluteFile());
+			throw new FileStoreException(msg, e);
+		} finally {
+			releaseLeafBuffers(pool, Arrays.asList(buffers), 1, fileSize);
+		}
+
+		return leafHashes;
+	}
+
+	/**
+	 * Reads the leaves on the calling thread and hashes them concurrently using the configured {@link Executor}. At
+	 * most {@link #setMaxLeafBuffers(int)} leaves are in memory at any time, as reading blocks until a buffer has been
+	 * hashed and is free again
+	 * 
+	 * @param file
+	 * @param copyTo
+	 *            if not null, each leaf is written to this stream before it is hashed
+	 * @param callback
+	 *            notified of each hashed leaf, may be null
+	 * @return the leaf hashes
+	 */
+	private LeafHashes hashLeavesParallel(File file, OutputStream copyTo, final LeafCallback callback) {
+
+		long fileSize = file.length();
+		if (fileSize == 0)
+			throw new FileStoreException("The file at " + file.getAbsolutePath() + " is empty and can not be hashed");
+		int nrOfSlices = getNrOfSlices(file);
+		logger.info(String.format("Number of slices: %s, size %s", nrOfSlices, FileHelper.humanizeFileSize(fileSize)));
+
+		LeafBufferPool pool = this.leafBufferPool;
+		int nrOfBuffers = getNrOfLeafBuffers(pool, this.maxLeafBuffers, nrOfSlices);
+		final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(nrOfBuffers);
+		freeBuffers.addAll(Arrays.asList(acquireLeafBuffers(pool, nrOfBuffers, fileSize)));
+
+		final LeafHashes leafHashes = new LeafHashes(nrOfSlices, this.digestSize / 8);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final AtomicBoolean stopped = new AtomicBoolean();
+
+		int leafIndex = 0;
+		try (InputStream in = new FileInputStream(file)) {
+
+			while (failure.get() == null && !stopped.get()) {
+				final byte[] buffer = freeBuffers.take();
+
+				final int read = readLeaf(in, buffer);
+				if (read == 0) {
+					freeBuffers.add(buffer);
+					break;
+				}
+				if (leafIndex == nrOfSlices) {
+					freeBuffers.add(buffer);
+					throw new FileStoreException("The file " + file.getAbsolutePath() + " grew while being hashed");
+				}
 
-			while ((read = in.read(bytes, 0, length)) != -1) {
+				if (copyTo != null) {
+					try {
+						copyTo.write(buffer, 0, read);
+					} catch (IOException e) {
+						freeBuffers.add(buffer);
+						throw e;
+					}
+				}
 
-				logger.info("Read " + read);
-				byte[] leafData = new byte[read];
-				System.arraycopy(bytes, 0, leafData, 0, read);
-				String leafHash = hashLeafToString(leafIndex, leafData);
+				final int index = leafIndex;
+				try {
+					this.executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								byte[] digest = digestLeaf(index, buffer, 0, read);
+								leafHashes.setDigest(index, digest, 0);
+								if (!leafHashed(callback, index, digest))
+									stopped.set(true);
+							} catch (Throwable e) {
+								failure.compareAndSet(null, e);
+							} finally {
+								// returning the buffer publishes the leaf hash to the reading thread
+								freeBuffers.add(buffer);
+							}
+						}
+					});
+				} catch (RuntimeException e) {
+					freeBuffers.add(buffer);
+					throw e;
+				}
 
-				DmediaFileSlice fileSlice = new DmediaFileSlice(leafIndex, offset, leafHash);
-				fileSlices.add(fileSlice);
+				leafIndex++;
+			}
+
+			// once all buffers are returned, all leaves have been hashed
+			List<byte[]> returned = new ArrayList<>(nrOfBuffers);
+			for (int i = 0; i < nrOfBuffers; i++) {
+				returned.add(freeBuffers.take());
+			}
+			freeBuffers.addAll(returned);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileStoreException("Interrupted while hashing file at " + file.getAbsolutePath(), e);
+		} catch (FileNotFoundException e) {
+			throw new FileStoreException("The file does not exist at " + file.getAbsolutePath(), e);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read file at " + file.getAbsolutePath(), e);
+		} catch (FileStoreException e) {
+			throw e;
+		} catch (Exception e) {
+			String msg = String.format("Failed to hash file %s due to internal error", file.getAbsoluteFile());
+			throw new FileStoreException(msg, e);
+		} finally {
+			List<byte[]> returned = new ArrayList<>(nrOfBuffers);
+			freeBuffers.drainTo(returned);
+			releaseLeafBuffers(pool, returned, nrOfBuffers, fileSize);
+		}
+
+		if (failure.get() != null) {
+			String msg = String.format("Failed to hash file %s due to internal error", file.getAbsoluteFile());
+			throw new FileStoreException(msg, failure.get());
+		}
+		if (leafIndex != nrOfSlices && !stopped.get()) {
+			throw new FileStoreException("The file " + file.getAbsolutePath() + " shrank while being hashed");
+		}
+
+		return leafHashes;
+	}
+
+	/**
+	 * Hashes the leaves sequentially on the calling thread, writing each leaf to the given stream as it is read, so
+	 * that the file is copied and hashed in a single pass
+	 * 
+	 * @param file
+	 * @param copyTo
+	 *            the stream to copy the file to
+	 * @return the leaf hashes
+	 */
+	private LeafHashes hashLeavesCopying(File file, OutputStream copyTo) {
 
+		long fileSize = file.length();
+		if (fileSize == 0)
+			throw new FileStoreException("The file at " + file.getAbsolutePath() + " is empty and can not be hashed");
+		int nrOfSlices = getNrOfSlices(fileSize);
+		LeafHashes leafHashes = new LeafHashes(nrOfSlices, this.digestSize / 8);
+
+		LeafBufferPool pool = this.leafBufferPool;
+		byte[][] buffers = acquireLeafBuffers(pool, 1, fileSize);
+		try (InputStream in = new FileInputStream(file)) {
+
+			byte[] buffer = buffers[0];
+			int leafIndex = 0;
+			int read;
+			while ((read = readLeaf(in, buffer)) > 0) {
+				if (leafIndex == nrOfSlices)
+					throw new FileStoreException("The file " + file.getAbsolutePath() + " grew while being hashed");
+				copyTo.write(buffer, 0, read);
+				leafHashes.setDigest(leafIndex, digestInline(leafIndex, buffer, read), 0);
 				leafIndex++;
-				offset += read;
 			}
+			if (leafIndex != nrOfSlices)
+				throw new FileStoreException("The file " + file.getAbsolutePath() + " shrank while being hashed");
 
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileStoreException("Interrupted while hashing file at " + file.getAbsolutePath(), e);
 		} catch (FileNotFoundException e) {
 			throw new FileStoreException("The file does not exist at " + file.getAbsolutePath(), e);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to copy file at " + file.getAbsolutePath(), e);
+		} finally {
+			releaseLeafBuffers(pool, Arrays.asList(buffers), 1, fileSize);
+		}
+
+		return leafHashes;
+	}
+
+	/**
+	 * Hashes the leaf on the calling thread, holding a permit of {@link #setInlineHashing(Semaphore)} if set
+	 */
+	private byte[] digestInline(int leafIndex, byte[] buffer, int length) throws InterruptedException {
+		Semaphore permits = this.inlineHashing;
+		if (permits == null)
+			return digestLeaf(leafIndex, buffer, 0, length);
+		permits.acquire();
+		try {
+			return digestLeaf(leafIndex, buffer, 0, length);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Notified of each leaf as soon as it has been hashed, possibly concurrently from the threads of the
+	 * {@link Executor} and not in the order of the leaves
+	 */
+	interface LeafCallback {
+
+		/**
+		 * @param leafIndex
+		 * @param digest
+		 *            the binary digest of the leaf
+		 * @return true to continue, false to stop reading further leaves
+		 */
+		boolean leafHashed(int leafIndex, byte[] digest);
+	}
+
+	private static boolean leafHashed(LeafCallback callback, int leafIndex, byte[] digest) {
+		return callback == null || callback.leafHashed(leafIndex, digest);
+	}
+
+	/**
+	 * A leaf read by the reader thread of {@link FileStore#hashLeavesPipelined(File, LeafCallback)}
+	 */
+	private static class ReadLeaf {
+		private static final ReadLeaf END = new ReadLeaf(-1, null, 0);
+
+		private final int index;
+		private final byte[] buffer;
+		private final int length;
+
+		public ReadLeaf(int index, byte[] buffer, int length) {
+			this.index = index;
+			this.buffer = buffer;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Reads the leaves on a dedicated reader thread into a ring of {@link #setMaxLeafBuffers(int)} leaf buffers, while
+	 * the calling thread hashes them, or hands them to the {@link Executor} if one is set. The reader blocks while all
+	 * buffers are filled, so that memory stays bounded. The buffers are taken from the leaf memory budget, see
+	 * {@link #setLeafMemoryBudget(long)}
+	 * 
+	 * @param file
+	 * @param callback
+	 *            notified of each hashed leaf, may be null
+	 * @return the leaf hashes
+	 */
+	private LeafHashes hashLeavesPipelined(final File file, final LeafCallback callback) {
+
+		long fileSize = file.length();
+		if (fileSize == 0)
+			throw new FileStoreException("The file at " + file.getAbsolutePath() + " is empty and can not be hashed");
+		final int nrOfSlices = getNrOfSlices(fileSize);
+		logger.info(String.format("Number of slices: %s, size %s", nrOfSlices, FileHelper.humanizeFileSize(fileSize)));
+
+		// at least two buffers are needed so that reading and hashing can overlap, unless the budget only has one
+		final LeafBufferPool pool = this.leafBufferPool;
+		final int nrOfBuffers = getNrOfLeafBuffers(pool, Math.max(2, this.maxLeafBuffers), nrOfSlices);
+		final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(nrOfBuffers);
+		freeBuffers.addAll(Arrays.asList(acquireLeafBuffers(pool, nrOfBuffers, fileSize)));
+		final BlockingQueue<ReadLeaf> readLeaves = new ArrayBlockingQueue<>(nrOfBuffers + 1);
+
+		final LeafHashes leafHashes = new LeafHashes(nrOfSlices, this.digestSize / 8);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final AtomicBoolean stopped = new AtomicBoolean();
+
+		Thread reader = new Thread("FileStore reader " + file.getName()) {
+			@Override
+			public void run() {
+				try (InputStream in = new FileInputStream(file)) {
+					int leafIndex = 0;
+					while (failure.get() == null && !stopped.get()) {
+						byte[] buffer = freeBuffers.take();
+						int read = readLeaf(in, buffer);
+						if (read == 0) {
+							freeBuffers.add(buffer);
+							break;
+						}
+						if (leafIndex == nrOfSlices) {
+							freeBuffers.add(buffer);
+							throw new FileStoreException("The file " + file.getAbsolutePath()
+									+ " grew while being hashed");
+						}
+						readLeaves.put(new ReadLeaf(leafIndex, buffer, read));
+						leafIndex++;
+					}
+					if (failure.get() == null && !stopped.get() && leafIndex != nrOfSlices) {
+						throw new FileStoreException("The file " + file.getAbsolutePath()
+								+ " shrank while being hashed");
+					}
+				} catch (InterruptedException e) {
+					failure.compareAndSet(null, e);
+				} catch (FileNotFoundException e) {
+					failure.compareAndSet(null, new FileStoreException("The file does not exist at "
+							+ file.getAbsolutePath(), e));
+				} catch (IOException e) {
+					failure.compareAndSet(null, new FileStoreException("Failed to read file at "
+							+ file.getAbsolutePath(), e));
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					// there is always room for the end marker, as there are more places than buffers
+					readLeaves.add(ReadLeaf.END);
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+
+		try {
+			ReadLeaf leaf;
+			while ((leaf = readLeaves.take()) != ReadLeaf.END) {
+				final ReadLeaf readLeaf = leaf;
+
+				Runnable hasher = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							byte[] digest = digestLeaf(readLeaf.index, readLeaf.buffer, 0, readLeaf.length);
+							leafHashes.setDigest(readLeaf.index, digest, 0);
+							if (!leafHashed(callback, readLeaf.index, digest))
+								stopped.set(true);
+						} catch (Throwable e) {
+							failure.compareAndSet(null, e);
+						} finally {
+							// returning the buffer publishes the leaf hash to the calling thread
+							freeBuffers.add(readLeaf.buffer);
+						}
+					}
+				};
+
+				if (this.executor == null) {
+					hasher.run();
+				} else {
+					try {
+						this.executor.execute(hasher);
+					} catch (RuntimeException e) {
+						freeBuffers.add(readLeaf.buffer);
+						throw e;
+					}
+				}
+			}
+
+			// once all buffers are returned, all leaves have been hashed
+			List<byte[]> returned = new ArrayList<>(nrOfBuffers);
+			for (int i = 0; i < nrOfBuffers; i++) {
+				returned.add(freeBuffers.take());
+			}
+			freeBuffers.addAll(returned);
+			reader.join();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileStoreException("Interrupted while hashing file at " + file.getAbsolutePath(), e);
+		} finally {
+			if (reader.isAlive()) {
+				failure.compareAndSet(null, new FileStoreException("Hashing was aborted"));
+				reader.interrupt();
+			}
+			List<byte[]> returned = new ArrayList<>(nrOfBuffers);
+			freeBuffers.drainTo(returned);
+			releaseLeafBuffers(pool, returned, nrOfBuffers, fileSize);
+		}
+
+		Throwable e = failure.get();
+		if (e instanceof FileStoreException)
+			throw (FileStoreException) e;
+		if (e != null) {
+			String msg = String.format("Failed to hash file %s due to internal error", file.getAbsoluteFile());
+			throw new FileStoreException(msg, e);
+		}
+
+		return leafHashes;
+	}
+
+	/**
+	 * Hashes the leaves with positional reads on a shared {@link FileChannel}, see {@link ReadMode#POSITIONAL}. With an
+	 * executor, up to maxLeafBuffers workers each claim the next leaf and read and hash it with their own buffer
+	 */
+	private LeafHashes hashLeavesPositional(final File file, final LeafCallback callback) {
+
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			final long fileSize = channel.size();
+			if (fileSize == 0)
+				throw new FileStoreException("The file at " + file.getAbsolutePath() + " is empty and can not be hashed");
+			final int nrOfSlices = getNrOfSlices(fileSize);
+			logger.info(String.format("Number of slices: %s, size %s", nrOfSlices,
+					FileHelper.humanizeFileSize(fileSize)));
+
+			final LeafHashes leafHashes = new LeafHashes(nrOfSlices, this.digestSize / 8);
+			final LeafBufferPool pool = this.leafBufferPool;
+			final AtomicBoolean stopped = new AtomicBoolean();
+
+			if (this.executor == null) {
+				byte[][] buffers = acquireLeafBuffers(pool, 1, fileSize);
+				try {
+					ByteBuffer buffer = ByteBuffer.wrap(buffers[0]);
+					for (int i = 0; i < nrOfSlices; i++) {
+						byte[] digest = digestPositionalLeaf(file, channel, i, fileSize, buffer);
+						leafHashes.setDigest(i, digest, 0);
+						if (!leafHashed(callback, i, digest)) {
+							stopped.set(true);
+							break;
+						}
+					}
+				} finally {
+					releaseLeafBuffers(pool, Arrays.asList(buffers), 1, fileSize);
+				}
+			} else {
+
+				// each worker acquires a single buffer, so that workers never wait for each other's buffers
+				int nrOfWorkers = getNrOfLeafBuffers(pool, this.maxLeafBuffers, nrOfSlices);
+				final AtomicInteger nextLeaf = new AtomicInteger();
+				final AtomicReference<Throwable> failure = new AtomicReference<>();
+				final CountDownLatch done = new CountDownLatch(nrOfWorkers);
+				for (int i = 0; i < nrOfWorkers; i++) {
+					try {
+						this.executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									byte[][] buffers = acquireLeafBuffers(pool, 1, fileSize);
+									try {
+										ByteBuffer buffer = ByteBuffer.wrap(buffers[0]);
+										int index;
+										while (failure.get() == null && !stopped.get()
+												&& (index = nextLeaf.getAndIncrement()) < nrOfSlices) {
+											byte[] digest = digestPositionalLeaf(file, channel, index, fileSize,
+													buffer);
+											leafHashes.setDigest(index, digest, 0);
+											if (!leafHashed(callback, index, digest))
+												stopped.set(true);
+										}
+									} finally {
+										releaseLeafBuffers(pool, Arrays.asList(buffers), 1, fileSize);
+									}
+								} catch (Throwable e) {
+									failure.compareAndSet(null, e);
+								} finally {
+									// counting down publishes the leaf hashes to the calling thread
+									done.countDown();
+								}
+							}
+						});
+					} catch (RuntimeException e) {
+						// the workers already started stop at their next leaf
+						failure.compareAndSet(null, e);
+						for (int j = i; j < nrOfWorkers; j++) {
+							done.countDown();
+						}
+						break;
+					}
+				}
+
+				done.await();
+
+				if (failure.get() instanceof FileStoreException)
+					throw (FileStoreException) failure.get();
+				if (failure.get() != null) {
+					String msg = String.format("Failed to hash file %s due to internal error", file.getAbsoluteFile());
+					throw new FileStoreException(msg, failure.get());
+				}
+			}
+
+			if (!stopped.get() && channel.size() != fileSize)
+				throw new FileStoreException("The file " + file.getAbsolutePath() + " changed size while being hashed");
+
+			return leafHashes;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileStoreException("Interrupted while hashing file at " + file.getAbsolutePath(), e);
+		} catch (NoSuchFileException e) {
+			throw new FileStoreException("The file does not exist at " + file.getAbsolutePath(), e);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read file at " + file.getAbsolutePath(), e);
+		} catch (FileStoreException e) {
+			throw e;
+		} catch (Exception e) {
+			String msg = String.format("Failed to hash file %s due to internal error", file.getAbsoluteFile());
+			throw new FileStoreException(msg, e);
+		}
+	}
+
+	/**
+	 * Hashes each leaf directly from a memory mapped region of the file, which is released as soon as the leaf has been
+	 * hashed. If an {@link Executor} is set, the leaves are hashed concurrently with at most
+	 * {@link #setMaxLeafBuffers(int)} leaves mapped at any time
+	 * 
+	 * @param file
+	 * @param callback
+	 *            notified of each hashed leaf, may be null
+	 * @return the leaf hashes
+	 */
+	private LeafHashes hashLeavesMapped(final File file, final LeafCallback callback) {
+
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			final long fileSize = channel.size();
+			if (fileSize == 0)
+				throw new FileStoreException("The file at " + file.getAbsolutePath() + " is empty and can not be hashed");
+			int nrOfSlices = getNrOfSlices(fileSize);
+			logger.info(String.format("Number of slices: %s, size %s", nrOfSlices,
+					FileHelper.humanizeFileSize(fileSize)));
+
+			final LeafHashes leafHashes = new LeafHashes(nrOfSlices, this.digestSize / 8);
+
+			if (this.executor == null) {
+				for (int i = 0; i < nrOfSlices; i++) {
+					byte[] digest = digestMappedLeaf(channel, i, fileSize);
+					leafHashes.setDigest(i, digest, 0);
+					if (!leafHashed(callback, i, digest))
+						break;
+				}
+			} else {
+
+				final Semaphore mappedLeaves = new Semaphore(this.maxLeafBuffers);
+				final AtomicReference<Throwable> failure = new AtomicReference<>();
+				final AtomicBoolean stopped = new AtomicBoolean();
+				try {
+					for (int i = 0; i < nrOfSlices && failure.get() == null && !stopped.get(); i++) {
+						mappedLeaves.acquire();
+
+						final int index = i;
+						try {
+							this.executor.execute(new Runnable() {
+								@Override
+								public void run() {
+									try {
+										byte[] digest = digestMappedLeaf(channel, index, fileSize);
+										leafHashes.setDigest(index, digest, 0);
+										if (!leafHashed(callback, index, digest))
+											stopped.set(true);
+									} catch (Throwable e) {
+										failure.compareAndSet(null, e);
+									} finally {
+										// releasing the permit publishes the leaf hash to the calling thread
+										mappedLeaves.release();
+									}
+								}
+							});
+						} catch (RuntimeException e) {
+							mappedLeaves.release();
+							throw e;
+						}
+					}
+				} finally {
+					// the channel is closed on return, so wait for the leaves which are still mapped even if the
+					// submission failed or was interrupted. Once all permits are released, all leaves have been hashed
+					mappedLeaves.acquireUninterruptibly(this.maxLeafBuffers);
+				}
+
+				if (failure.get() != null) {
+					String msg = String.format("Failed to hash file %s due to internal error", file.getAbsoluteFile());
+					throw new FileStoreException(msg, failure.get());
+				}
+			}
+
+			return leafHashes;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileStoreException("Interrupted while hashing file at " + file.getAbsolutePath(), e);
+		} catch (NoSuchFileException e) {
+			throw new FileStoreException("The file does not exist at " + file.getAbsolutePath(), e);
 		} catch (IOException e) {
 			throw new FileStoreException("Failed to read file at " + file.getAbsolutePath(), e);
+		} catch (FileStoreException e) {
+			throw e;
 		} catch (Exception e) {
 			String msg = String.format("Failed to hash file %s due to internal error", file.getAbsoluteFile());
 			throw new FileStoreException(msg, e);
 		}
+	}
+
+	/**
+	 * Reads the leaf at its 64 bit offset with positional reads, which don't change the position of the channel, and
+	 * hashes it
+	 */
+	private byte[] digestPositionalLeaf(File file, FileChannel channel, int leafIndex, long fileSize,
+			ByteBuffer buffer) throws IOException {
+		long offset = (long) leafIndex * FileStoreConstants.LEAF_SIZE;
+		buffer.clear();
+		buffer.limit((int) Math.min(FileStoreConstants.LEAF_SIZE, fileSize - offset));
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) == -1)
+				throw new FileStoreException("The file " + file.getAbsolutePath() + " shrank while being hashed");
+		}
+		buffer.flip();
+		return digestLeaf(leafIndex, buffer);
+	}
+
+	/**
+	 * Maps the leaf with the given index, hashes it and releases the mapping again
+	 * 
+	 * @param channel
+	 * @param leafIndex
+	 * @param fileSize
+	 * @return the binary digest of the leaf
+	 * @throws IOException
+	 */
+	private byte[] digestMappedLeaf(FileChannel channel, int leafIndex, long fileSize) throws IOException {
+		long position = (long) leafIndex * FileStoreConstants.LEAF_SIZE;
+		long length = Math.min(FileStoreConstants.LEAF_SIZE, fileSize - position);
+		MappedByteBuffer leafData = channel.map(MapMode.READ_ONLY, position, length);
+		try {
+			return digestLeaf(leafIndex, leafData);
+		} finally {
+			MappedBufferHelper.unmap(leafData);
+		}
+	}
 
-		return fileSlices;
+	/**
+	 * Reads the next leaf from the stream into the buffer. Other than {@link InputStream#read(byte[])} this method only
+	 * returns less than a full leaf at the end of the stream
+	 * 
+	 * @param in
+	 * @param buffer
+	 * @return the number of bytes read, 0 at the end of the stream
+	 * @throws IOException
+	 */
+	private static int readLeaf(InputStream in, byte[] buffer) throws IOException {
+		int read = 0;
+		int length = Math.min(buffer.length, FileStoreConstants.LEAF_SIZE);
+		while (read < length) {
+			int n = in.read(buffer, read, length - read);
+			if (n == -1)
+				break;
+			read += n;
+		}
+		return read;
 	}
 
 	/**
@@ -192,26 +1786,103 @@ public class FileStore {
 	 * @return
 	 */
 	public byte[] hashLeaf(int leafIndex, byte[] leafData) {
+		return hashLeaf(leafIndex, leafData, 0, leafData.length);
+	}
+
+	/**
+	 * Hashes the leaf data directly from the given buffer, so that the data does not need to be copied into an array of
+	 * its own
+	 * 
+	 * @param leafIndex
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public byte[] hashLeaf(int leafIndex, byte[] buffer, int offset, int length) {
+		return Dbase32.db32Enc(digestLeaf(leafIndex, buffer, offset, length));
+	}
+
+	/**
+	 * @param leafIndex
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return the binary digest of the leaf, which is not yet D-Base32 encoded
+	 */
+	byte[] digestLeaf(int leafIndex, byte[] buffer, int offset, int length) {
+
+		validateLeaf(leafIndex, length);
+
+		Skein skein = createLeafSkein(leafIndex);
+		skein.update(buffer, offset, length);
+		return skein.digest();
+	}
+
+	/**
+	 * Hashes the remaining bytes of the given buffer, which may also be a direct or memory mapped buffer, so that the
+	 * data need not be copied to the heap. Upon return the position of the buffer is set to its limit
+	 * 
+	 * @param leafIndex
+	 * @param leafData
+	 * @return
+	 */
+	public byte[] hashLeaf(int leafIndex, ByteBuffer leafData) {
+		return Dbase32.db32Enc(digestLeaf(leafIndex, leafData));
+	}
+
+	/**
+	 * @param leafIndex
+	 * @param leafData
+	 * @return the binary digest of the leaf, which is not yet D-Base32 encoded
+	 */
+	byte[] digestLeaf(int leafIndex, ByteBuffer leafData) {
+
+		validateLeaf(leafIndex, leafData.remaining());
+
+		Skein skein = createLeafSkein(leafIndex);
+		skein.update(leafData);
+		return skein.digest();
+	}
 
+	/**
+	 * @param leafIndex
+	 * @param length
+	 */
+	private void validateLeaf(int leafIndex, int length) {
 		if (leafIndex < 0 || leafIndex >= FileStoreConstants.MAX_LEAF_COUNT) {
 			String msg = String.format("The leafIndex %d is not in the allowed range 0 - %d", leafIndex,
 					FileStoreConstants.MAX_LEAF_COUNT);
 			throw new FileStoreException(msg);
 		}
-		if (leafData.length > FileStoreConstants.LEAF_SIZE) {
-			String msg = String.format("The leafData length %d is larger than the allowed %s", leafData.length,
+		if (length > FileStoreConstants.LEAF_SIZE) {
+			String msg = String.format("The leafData length %d is larger than the allowed %s", length,
 					FileStoreConstants.LEAF_SIZE);
 			throw new FileStoreException(msg);
 		}
+	}
 
+	/**
+	 * Creates the {@link Skein} instance for hashing the leaf with the given index, starting from the cached chaining
+	 * value if available
+	 * 
+	 * @param leafIndex
+	 * @return
+	 */
+	Skein createLeafSkein(int leafIndex) {
 		Skein skein = new Skein(this.blockSize, this.digestSize);
-		if (this.withKey)
-			skein.setKey(Integer.valueOf(leafIndex).toString().getBytes());
-		if (this.withPers)
-			skein.setPersonalization(FileStoreConstants.PERS_LEAF.getBytes());
-		byte[] digest = skein.doSkein(leafData);
-
-		return Dbase32.db32Enc(digest);
+		long[] chain = leafChainCache.get(this.blockSize, this.digestSize, this.withKey, this.withPers, leafIndex);
+		if (chain != null) {
+			skein.setInitialChainingValue(chain);
+		} else {
+			if (this.withKey)
+				skein.setKey(Integer.valueOf(leafIndex).toString().getBytes());
+			if (this.withPers)
+				skein.setPersonalization(FileStoreConstants.PERS_LEAF.getBytes());
+			leafChainCache.put(this.blockSize, this.digestSize, this.withKey, this.withPers, leafIndex,
+					skein.getInitialChainingValue());
+		}
+		return skein;
 	}
 
 	/**
@@ -229,39 +1900,54 @@ public class FileStore {
 	 * @return
 	 */
 	public byte[] hashRoot(long fileSize, byte[] leafHashes) {
+		validateRoot(fileSize, leafHashes.length);
+		byte[] digest = createRootSkein(fileSize).doSkein(leafHashes);
+		return Dbase32.db32Enc(digest);
+	}
+
+	/**
+	 * @param fileSize
+	 * @param encodedLength
+	 *            the length of the concatenated encoded leaf hashes
+	 */
+	private static void validateRoot(long fileSize, long encodedLength) {
 
 		if (fileSize < 1 || fileSize > FileStoreConstants.MAX_FILE_SIZE) {
 			String msg = String.format("The fileSize %d is not in the allowed range 1 - %d", fileSize,
 					FileStoreConstants.MAX_FILE_SIZE);
 			throw new FileStoreException(msg);
 		}
-		if (leafHashes.length < FileStoreConstants.DIGEST_B32LEN) {
-			String msg = String.format("The leafHashes length %d is not at least one hash long (%d)",
-					leafHashes.length, FileStoreConstants.DIGEST_B32LEN);
+		if (encodedLength < FileStoreConstants.DIGEST_B32LEN) {
+			String msg = String.format("The leafHashes length %d is not at least one hash long (%d)", encodedLength,
+					FileStoreConstants.DIGEST_B32LEN);
 			throw new FileStoreException(msg);
 		}
-		if (leafHashes.length % FileStoreConstants.DIGEST_B32LEN != 0) {
-			String msg = String.format("The leafHashes length %d is not a multiple of %d", leafHashes.length,
+		if (encodedLength % FileStoreConstants.DIGEST_B32LEN != 0) {
+			String msg = String.format("The leafHashes length %d is not a multiple of %d", encodedLength,
 					FileStoreConstants.DIGEST_B32LEN);
 			throw new FileStoreException(msg);
 		}
 
-		int count = leafHashes.length / FileStoreConstants.DIGEST_B32LEN;
-		int low = (count - 1) * FileStoreConstants.LEAF_SIZE + 1;
-		int high = count * FileStoreConstants.LEAF_SIZE;
+		long count = encodedLength / FileStoreConstants.DIGEST_B32LEN;
+		long low = (count - 1) * FileStoreConstants.LEAF_SIZE + 1;
+		long high = count * FileStoreConstants.LEAF_SIZE;
 		if (fileSize < low || fileSize > high) {
 			String msg = "The fileSize %d and the leafHash size %d do not fit together as calculated low is %d and high is %d";
-			msg = String.format(msg, fileSize, leafHashes.length, low, high);
+			msg = String.format(msg, fileSize, encodedLength, low, high);
 			throw new FileStoreException(msg);
 		}
+	}
 
+	/**
+	 * @param fileSize
+	 * @return the {@link Skein} instance for hashing the root of a file with the given size
+	 */
+	private Skein createRootSkein(long fileSize) {
 		Skein skein = new Skein(this.blockSize, this.digestSize);
 		if (this.withKey)
 			skein.setKey(Long.valueOf(fileSize).toString().getBytes());
 		if (this.withPers)
 			skein.setPersonalization(FileStoreConstants.PERS_ROOT.getBytes());
-		byte[] digest = skein.doSkein(leafHashes);
-
-		return Dbase32.db32Enc(digest);
+		return skein;
 	}
 }
@@ -0,0 +1,657 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent catalog of the files in a store, so that the store need not be rehashed to know its contents. The catalog
+ * is an append-only file which is memory mapped, consisting of a header followed by records:
+ * 
+ * <pre>
+ * header: magic (8 bytes) | committed end (long)
+ * record: body length (int) | CRC32 of body (int) | body
+ * body:   type (byte) | ID length (byte) | leaf digest length (byte) | 0 (byte) | file size (long) | mtime (long)
+ *         | leaf count (int) | root digest | leaf digests
+ * </pre>
+ * 
+ * A later record for the same ID replaces the earlier one, and removing a file appends a record of type removed. The
+ * root IDs are kept in an in memory hash index, which {@link #sync()} persists to the memory mapped index file next to
+ * the catalog, which is named like the catalog with the suffix .idx:
+ * 
+ * <pre>
+ * index:  magic (8 bytes) | indexed end (int) | last record (int) | CRC32 of last record (int) | size (int)
+ *         | used slots (int) | slot count (int) | record offsets (int[slot count]) | ID hashes (int[slot count])
+ * </pre>
+ * 
+ * When opened, the persisted index is loaded and only the records after its indexed end are visited. If the index is
+ * missing or does not match the catalog, it is rebuilt from the headers of all records. Only the records after the
+ * committed end, which is updated by {@link #sync()}, are verified against their checksum. A torn tail after a crash is
+ * truncated, while damage among the visited records before the committed end fails opening the catalog, so that no
+ * committed records are lost silently
+ * 
+ * <p>
+ * The catalog is limited to 2 GiB, which is enough for the leaf hashes of about 500 TiB of files. This class is thread
+ * safe
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class FileStoreCatalog implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileStoreCatalog.class);
+
+	private static final byte[] MAGIC = "DMCATLG1".getBytes(StandardCharsets.US_ASCII);
+	private static final int COMMITTED_END_POS = 8;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int BODY_FIXED_SIZE = 24;
+	private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final byte[] INDEX_MAGIC = "DMCATIX1".getBytes(StandardCharsets.US_ASCII);
+	private static final int INDEXED_END_POS = 8;
+	private static final int INDEX_HEADER_SIZE = 32;
+	private static final int INITIAL_SLOTS = 1024;
+
+	private static final byte TYPE_FILE = 1;
+	private static final byte TYPE_REMOVED = 2;
+
+	private final File file;
+	private final FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	// the end of the records and the end which has been forced to disk
+	private int end;
+	private int committedEnd;
+
+	// open addressing hash index of the root IDs to the offset of their latest record, 0 being an empty slot
+	private int[] slots;
+	private int[] slotHashes;
+	private int usedSlots;
+	private int size;
+
+	// the persisted index, the end of the records it covers and the slots changed since it was written
+	private final File indexFile;
+	private final FileChannel indexChannel;
+	private MappedByteBuffer indexBuffer;
+	private int indexedEnd;
+	private int lastRecord;
+	private int[] dirtySlots;
+	private int nrOfDirtySlots;
+	private boolean allSlotsDirty;
+
+	/**
+	 * Opens the catalog at the given file, creating it if it does not exist
+	 * 
+	 * @param file
+	 *            the catalog file
+	 */
+	public FileStoreCatalog(File file) {
+		this.file = file;
+		this.indexFile = new File(file.getPath() + INDEX_SUFFIX);
+		this.slots = new int[INITIAL_SLOTS];
+		this.slotHashes = new int[INITIAL_SLOTS];
+		this.dirtySlots = new int[64];
+		this.allSlotsDirty = true;
+
+		try {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to open catalog at " + file.getAbsolutePath(), e);
+		}
+		try {
+			this.indexChannel = FileChannel.open(this.indexFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			close(this.channel);
+			throw new FileStoreException("Failed to open catalog index at " + this.indexFile.getAbsolutePath(), e);
+		}
+
+		try {
+			open();
+		} catch (IOException | RuntimeException e) {
+			if (this.buffer != null)
+				MappedBufferHelper.unmap(this.buffer);
+			if (this.indexBuffer != null)
+				MappedBufferHelper.unmap(this.indexBuffer);
+			close(this.channel);
+			close(this.indexChannel);
+			if (e instanceof FileStoreException)
+				throw (FileStoreException) e;
+			throw new FileStoreException("Failed to open catalog at " + file.getAbsolutePath(), e);
+		}
+	}
+
+	private void open() throws IOException {
+		long fileSize = this.channel.size();
+		if (fileSize > Integer.MAX_VALUE)
+			throw new FileStoreException("The catalog at " + this.file.getAbsolutePath() + " is too large");
+
+		if (fileSize < HEADER_SIZE) {
+			if (fileSize != 0)
+				logger.warn("Catalog at " + this.file.getAbsolutePath() + " has a torn header, recreating it");
+			this.buffer = this.channel.map(MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+			this.buffer.put(MAGIC);
+			this.buffer.putLong(COMMITTED_END_POS, HEADER_SIZE);
+			this.buffer.force();
+			this.end = HEADER_SIZE;
+			this.committedEnd = HEADER_SIZE;
+			return;
+		}
+
+		// the file is only mapped at its current size until it is known to be a valid catalog
+		this.buffer = this.channel.map(MapMode.READ_WRITE, 0, fileSize);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (this.buffer.get(i) != MAGIC[i])
+				throw new FileStoreException("The file at " + this.file.getAbsolutePath() + " is not a catalog");
+		}
+
+		long committed = this.buffer.getLong(COMMITTED_END_POS);
+		if (committed < HEADER_SIZE || committed > fileSize)
+			committed = HEADER_SIZE;
+
+		// the records covered by the persisted index need not be visited again
+		int pos = loadIndex(committed);
+		while (pos + RECORD_HEADER_SIZE <= fileSize) {
+			int length = this.buffer.getInt(pos);
+			if (length < BODY_FIXED_SIZE || pos + RECORD_HEADER_SIZE + (long) length > fileSize)
+				break;
+			if (pos >= committed && !isValidRecord(pos, length))
+				break;
+			index(pos);
+			pos += RECORD_HEADER_SIZE + length;
+		}
+
+		// committed records are never rewritten, so damage among them is not a torn tail and must not be erased
+		if (pos < committed)
+			throw new FileStoreException("The catalog at " + this.file.getAbsolutePath() + " is corrupt at " + pos
+					+ " before its committed end " + committed);
+
+		// cut off anything after the last valid record, so it can not be mistaken for a record later. Truncating
+		// instead of clearing the tail keeps opening fast, as after a crash the file is as large as the mapping
+		if (pos < fileSize && this.buffer.getInt(pos) != 0)
+			logger.warn("Truncating torn tail of catalog at " + this.file.getAbsolutePath() + " at " + pos);
+		if (pos < fileSize || fileSize < INITIAL_CAPACITY) {
+			MappedBufferHelper.unmap(this.buffer);
+			this.buffer = null;
+			if (pos < fileSize)
+				this.channel.truncate(pos);
+			this.buffer = this.channel.map(MapMode.READ_WRITE, 0, Math.max(pos, INITIAL_CAPACITY));
+		}
+
+		this.end = pos;
+		this.committedEnd = pos;
+		if (this.buffer.getLong(COMMITTED_END_POS) != pos) {
+			this.buffer.force();
+			this.buffer.putLong(COMMITTED_END_POS, pos);
+			this.buffer.force();
+		}
+	}
+
+	/**
+	 * Loads the persisted index if it matches the committed records of the catalog
+	 * 
+	 * @param committed
+	 *            the committed end of the catalog
+	 * @return the end of the records covered by the loaded index, or the start of the first record if the index has to
+	 *         be rebuilt
+	 */
+	private int loadIndex(long committed) throws IOException {
+
+		long indexSize = this.indexChannel.size();
+		ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+		while (header.hasRemaining() && this.indexChannel.read(header, header.position()) > 0) {
+			// read the whole header
+		}
+		header.flip();
+
+		boolean valid = header.remaining() == INDEX_HEADER_SIZE;
+		for (int i = 0; valid && i < INDEX_MAGIC.length; i++) {
+			valid = header.get(i) == INDEX_MAGIC[i];
+		}
+		int end = valid ? header.getInt(INDEXED_END_POS) : 0;
+		int last = valid ? header.getInt(12) : 0;
+		int lastCrc = valid ? header.getInt(16) : 0;
+		int indexedSize = valid ? header.getInt(20) : 0;
+		int indexedUsedSlots = valid ? header.getInt(24) : 0;
+		int slotCount = valid ? header.getInt(28) : 0;
+
+		// the index must cover a sequence of committed records ending with the record it recorded as the last one
+		valid = valid && end >= HEADER_SIZE && end <= committed;
+		valid = valid && slotCount >= INITIAL_SLOTS && Integer.bitCount(slotCount) == 1
+				&& INDEX_HEADER_SIZE + 8L * slotCount <= indexSize;
+		valid = valid && indexedUsedSlots >= 0 && indexedUsedSlots * 2L <= slotCount && indexedSize >= 0
+				&& indexedSize <= indexedUsedSlots;
+		if (valid && end == HEADER_SIZE) {
+			valid = last == 0 && indexedUsedSlots == 0;
+		} else if (valid) {
+			valid = last >= HEADER_SIZE && last <= end - RECORD_HEADER_SIZE - BODY_FIXED_SIZE
+					&& last + RECORD_HEADER_SIZE + (long) this.buffer.getInt(last) == end
+					&& this.buffer.getInt(last + 4) == lastCrc;
+		}
+
+		if (!valid) {
+			logger.info("The index of catalog " + this.file.getAbsolutePath() + " is missing or stale, rebuilding it");
+			return HEADER_SIZE;
+		}
+
+		this.indexBuffer = this.indexChannel.map(MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + 8L * slotCount);
+		this.slots = new int[slotCount];
+		this.slotHashes = new int[slotCount];
+		ByteBuffer dup = this.indexBuffer.duplicate();
+		dup.position(INDEX_HEADER_SIZE);
+		IntBuffer ints = dup.asIntBuffer();
+		ints.get(this.slots);
+		ints.get(this.slotHashes);
+
+		this.size = indexedSize;
+		this.usedSlots = indexedUsedSlots;
+		this.lastRecord = last;
+		this.indexedEnd = end;
+		this.allSlotsDirty = false;
+		return end;
+	}
+
+	/**
+	 * Writes the slots which changed since the index was last written to the index file. The index is marked invalid
+	 * while its slots are written, so that a crash in between is not mistaken for a valid index
+	 */
+	private void writeIndex() throws IOException {
+
+		long indexSize = INDEX_HEADER_SIZE + 8L * this.slots.length;
+		if (this.indexBuffer == null || this.indexBuffer.capacity() != indexSize) {
+			if (this.indexBuffer != null) {
+				MappedBufferHelper.unmap(this.indexBuffer);
+				this.indexBuffer = null;
+			}
+			this.indexBuffer = this.indexChannel.map(MapMode.READ_WRITE, 0, indexSize);
+			this.allSlotsDirty = true;
+		}
+
+		this.indexBuffer.putInt(INDEXED_END_POS, 0);
+		this.indexBuffer.force();
+
+		int hashesPos = INDEX_HEADER_SIZE + 4 * this.slots.length;
+		if (this.allSlotsDirty) {
+			ByteBuffer dup = this.indexBuffer.duplicate();
+			dup.position(INDEX_HEADER_SIZE);
+			IntBuffer ints = dup.asIntBuffer();
+			ints.put(this.slots);
+			ints.put(this.slotHashes);
+		} else {
+			for (int i = 0; i < this.nrOfDirtySlots; i++) {
+				int slot = this.dirtySlots[i];
+				this.indexBuffer.putInt(INDEX_HEADER_SIZE + 4 * slot, this.slots[slot]);
+				this.indexBuffer.putInt(hashesPos + 4 * slot, this.slotHashes[slot]);
+			}
+		}
+
+		ByteBuffer dup = this.indexBuffer.duplicate();
+		dup.put(INDEX_MAGIC);
+		this.indexBuffer.putInt(12, this.lastRecord);
+		this.indexBuffer.putInt(16, this.lastRecord == 0 ? 0 : this.buffer.getInt(this.lastRecord + 4));
+		this.indexBuffer.putInt(20, this.size);
+		this.indexBuffer.putInt(24, this.usedSlots);
+		this.indexBuffer.putInt(28, this.slots.length);
+		this.indexBuffer.force();
+
+		this.indexBuffer.putInt(INDEXED_END_POS, this.end);
+		this.indexBuffer.force();
+
+		this.indexedEnd = this.end;
+		this.nrOfDirtySlots = 0;
+		this.allSlotsDirty = false;
+	}
+
+	private void markDirty(int slot) {
+		if (this.allSlotsDirty)
+			return;
+		// rewriting all slots is cheaper than tracking changes to a large part of them
+		if (this.nrOfDirtySlots * 4 >= this.slots.length) {
+			this.allSlotsDirty = true;
+			return;
+		}
+		if (this.nrOfDirtySlots == this.dirtySlots.length)
+			this.dirtySlots = Arrays.copyOf(this.dirtySlots, this.nrOfDirtySlots * 2);
+		this.dirtySlots[this.nrOfDirtySlots++] = slot;
+	}
+
+	private boolean isValidRecord(int pos, int length) {
+		int body = pos + RECORD_HEADER_SIZE;
+		byte type = this.buffer.get(body);
+		int idLength = this.buffer.get(body + 1);
+		int digestBytes = this.buffer.get(body + 2);
+		int leafCount = this.buffer.getInt(body + 20);
+		if (type != TYPE_FILE && type != TYPE_REMOVED)
+			return false;
+		if (idLength <= 0 || digestBytes < 0 || leafCount < 0)
+			return false;
+		if (BODY_FIXED_SIZE + idLength + (long) leafCount * digestBytes != length)
+			return false;
+
+		byte[] bytes = new byte[length];
+		ByteBuffer dup = this.buffer.duplicate();
+		dup.position(body);
+		dup.get(bytes);
+		return crc(bytes) == this.buffer.getInt(pos + 4);
+	}
+
+	private static int crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return (int) crc.getValue();
+	}
+
+	private DmediaId readId(int pos) {
+		int body = pos + RECORD_HEADER_SIZE;
+		return DmediaId.fromBuffer(this.buffer, body + BODY_FIXED_SIZE, this.buffer.get(body + 1));
+	}
+
+	private static int mix(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the slot of the given ID, which is empty if the ID is not indexed
+	 */
+	private int findSlot(DmediaId id) {
+		int hash = id.hashCode();
+		int mask = this.slots.length - 1;
+		int i = mix(hash) & mask;
+		while (this.slots[i] != 0) {
+			int body = this.slots[i] + RECORD_HEADER_SIZE;
+			if (this.slotHashes[i] == hash
+					&& id.matches(this.buffer, body + BODY_FIXED_SIZE, this.buffer.get(body + 1)))
+				return i;
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void index(int pos) {
+		if ((this.usedSlots + 1) * 2 > this.slots.length)
+			resizeIndex();
+
+		DmediaId id = readId(pos);
+		boolean removed = this.buffer.get(pos + RECORD_HEADER_SIZE) == TYPE_REMOVED;
+		int slot = findSlot(id);
+		if (this.slots[slot] == 0) {
+			this.usedSlots++;
+			if (!removed)
+				this.size++;
+		} else {
+			boolean wasRemoved = this.buffer.get(this.slots[slot] + RECORD_HEADER_SIZE) == TYPE_REMOVED;
+			if (wasRemoved && !removed)
+				this.size++;
+			else if (!wasRemoved && removed)
+				this.size--;
+		}
+		this.slots[slot] = pos;
+		this.slotHashes[slot] = id.hashCode();
+		this.lastRecord = pos;
+		markDirty(slot);
+	}
+
+	private void resizeIndex() {
+		int[] oldSlots = this.slots;
+		int[] oldHashes = this.slotHashes;
+		this.slots = new int[oldSlots.length * 2];
+		this.slotHashes = new int[oldSlots.length * 2];
+		int mask = this.slots.length - 1;
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] == 0)
+				continue;
+			int j = mix(oldHashes[i]) & mask;
+			while (this.slots[j] != 0) {
+				j = (j + 1) & mask;
+			}
+			this.slots[j] = oldSlots[i];
+			this.slotHashes[j] = oldHashes[i];
+		}
+		this.allSlotsDirty = true;
+	}
+
+	private void ensureCapacity(long capacity) throws IOException {
+		if (capacity <= this.buffer.capacity())
+			return;
+		if (capacity > Integer.MAX_VALUE)
+			throw new FileStoreException("The catalog at " + this.file.getAbsolutePath() + " is full");
+
+		long newCapacity = Math.min(Integer.MAX_VALUE, Math.max(capacity, 2L * this.buffer.capacity()));
+		this.buffer.force();
+		MappedBufferHelper.unmap(this.buffer);
+		this.buffer = this.channel.map(MapMode.READ_WRITE, 0, newCapacity);
+	}
+
+	private void append(byte[] body) {
+		assertOpen();
+		try {
+			ensureCapacity((long) this.end + RECORD_HEADER_SIZE + body.length);
+
+			// the length is written last, so that an incomplete record is never seen as complete in this mapping
+			ByteBuffer dup = this.buffer.duplicate();
+			dup.position(this.end + RECORD_HEADER_SIZE);
+			dup.put(body);
+			this.buffer.putInt(this.end + 4, crc(body));
+			this.buffer.putInt(this.end, body.length);
+
+			int pos = this.end;
+			this.end += RECORD_HEADER_SIZE + body.length;
+			index(pos);
+
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to write to catalog at " + this.file.getAbsolutePath(), e);
+		}
+	}
+
+	private static byte[] createBody(byte type, DmediaId id, long fileSize, long mtime, LeafHashes leafHashes) {
+		int leafCount = leafHashes == null ? 0 : leafHashes.size();
+		int digestBytes = leafHashes == null ? 0 : leafHashes.getDigestBytes();
+		long length = BODY_FIXED_SIZE + id.length() + (long) leafCount * digestBytes;
+		if (length > Integer.MAX_VALUE - HEADER_SIZE - RECORD_HEADER_SIZE)
+			throw new FileStoreException("The record for " + id + " is too large for the catalog");
+
+		byte[] body = new byte[(int) length];
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		buffer.put(type);
+		buffer.put((byte) id.length());
+		buffer.put((byte) digestBytes);
+		buffer.put((byte) 0);
+		buffer.putLong(fileSize);
+		buffer.putLong(mtime);
+		buffer.putInt(leafCount);
+		id.getDigest(body, BODY_FIXED_SIZE);
+		for (int i = 0; i < leafCount; i++) {
+			leafHashes.getDigest(i, body, BODY_FIXED_SIZE + id.length() + i * digestBytes);
+		}
+		return body;
+	}
+
+	/**
+	 * Adds the given file to the catalog, replacing a previous record with the same ID. The record is only durable
+	 * after {@link #sync()} was called
+	 * 
+	 * @param dmediaFile
+	 *            the file to add
+	 * @param mtime
+	 *            the modification time of the stored file
+	 */
+	public synchronized void add(DmediaFile dmediaFile, long mtime) {
+		append(createBody(TYPE_FILE, dmediaFile.getRootId(), dmediaFile.getFileSize(), mtime,
+				dmediaFile.getLeafHashes()));
+	}
+
+	/**
+	 * Removes the file with the given ID from the catalog. The removal is only durable after {@link #sync()} was called
+	 * 
+	 * @param rootId
+	 * @return true if the file was in the catalog
+	 */
+	public synchronized boolean remove(DmediaId rootId) {
+		if (!contains(rootId))
+			return false;
+		append(createBody(TYPE_REMOVED, rootId, 0, 0, null));
+		return true;
+	}
+
+	private int findRecord(DmediaId rootId) {
+		assertOpen();
+		int slot = findSlot(rootId);
+		int pos = this.slots[slot];
+		if (pos == 0 || this.buffer.get(pos + RECORD_HEADER_SIZE) == TYPE_REMOVED)
+			return 0;
+		return pos;
+	}
+
+	/**
+	 * @param rootId
+	 * @return true if the file with the given ID is in the catalog
+	 */
+	public synchronized boolean contains(DmediaId rootId) {
+		return findRecord(rootId) != 0;
+	}
+
+	/**
+	 * @param rootId
+	 * @return the modification time recorded for the file with the given ID, or -1 if it is not in the catalog
+	 */
+	public synchronized long getMtime(DmediaId rootId) {
+		int pos = findRecord(rootId);
+		if (pos == 0)
+			return -1;
+		return this.buffer.getLong(pos + RECORD_HEADER_SIZE + 12);
+	}
+
+	/**
+	 * Returns the cataloged file with the given ID. As the catalog does not record paths, the file path of the returned
+	 * {@link DmediaFile} is null, see {@link FileStore#lookup(DmediaId)}
+	 * 
+	 * @param rootId
+	 * @return the {@link DmediaFile}, or null if it is not in the catalog
+	 */
+	public synchronized DmediaFile get(DmediaId rootId) {
+		int pos = findRecord(rootId);
+		if (pos == 0)
+			return null;
+
+		int body = pos + RECORD_HEADER_SIZE;
+		int idLength = this.buffer.get(body + 1);
+		int digestBytes = this.buffer.get(body + 2);
+		long fileSize = this.buffer.getLong(body + 4);
+		int leafCount = this.buffer.getInt(body + 20);
+
+		LeafHashes leafHashes = new LeafHashes(leafCount, digestBytes);
+		byte[] digest = new byte[digestBytes];
+		ByteBuffer dup = this.buffer.duplicate();
+		dup.position(body + BODY_FIXED_SIZE + idLength);
+		for (int i = 0; i < leafCount; i++) {
+			dup.get(digest);
+			leafHashes.setDigest(i, digest, 0);
+		}
+
+		return new DmediaFile(null, fileSize, rootId.toString(), leafHashes);
+	}
+
+	/**
+	 * @return the number of files in the catalog
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Forces the records to disk and then marks them as committed, so that they are not verified again when opening
+	 * the catalog, and persists the index of the committed records, so that they are not visited again either
+	 */
+	public synchronized void sync() {
+		assertOpen();
+		if (this.committedEnd != this.end) {
+			this.buffer.force();
+			this.buffer.putLong(COMMITTED_END_POS, this.end);
+			this.buffer.force();
+			this.committedEnd = this.end;
+		}
+		if (this.indexedEnd == this.end)
+			return;
+		try {
+			writeIndex();
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to write catalog index at " + this.indexFile.getAbsolutePath(), e);
+		}
+	}
+
+	private void assertOpen() {
+		if (this.buffer == null)
+			throw new FileStoreException("The catalog at " + this.file.getAbsolutePath() + " is closed");
+	}
+
+	/**
+	 * Syncs and closes the catalog, truncating the file to the end of the records
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.buffer == null)
+			return;
+		try {
+			sync();
+		} finally {
+			MappedBufferHelper.unmap(this.buffer);
+			this.buffer = null;
+			if (this.indexBuffer != null) {
+				MappedBufferHelper.unmap(this.indexBuffer);
+				this.indexBuffer = null;
+			}
+			try {
+				this.channel.truncate(this.end);
+			} catch (IOException e) {
+				logger.warn("Failed to truncate catalog at " + this.file.getAbsolutePath(), e);
+			}
+			close(this.channel);
+			close(this.indexChannel);
+		}
+	}
+
+	private void close(FileChannel fileChannel) {
+		try {
+			fileChannel.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close catalog at " + this.file.getAbsolutePath(), e);
+		}
+	}
+}
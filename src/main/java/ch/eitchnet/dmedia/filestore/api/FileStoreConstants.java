@@ -37,4 +37,17 @@ public class FileStoreConstants {
 	public static final int DIGEST_B32LEN = 48;
 	public static final String PERS_LEAF = "20110430 jderose@novacut.com dmedia/leaf";
 	public static final String PERS_ROOT = "20110430 jderose@novacut.com dmedia/root";
+
+	public static final int LEAF_CHAIN_CACHE_SIZE = 4096;
+	public static final int DEFAULT_LEAF_BUFFERS = 4;
+	public static final long CHECKPOINT_INTERVAL_MILLIS = 5000L;
+
+	public static final String STORE_DIR = ".dmedia";
+	public static final String FILES_DIR = "files";
+	public static final String TMP_DIR = "tmp";
+	public static final String PARTIAL_DIR = "partial";
+	public static final String CORRUPT_DIR = "corrupt";
+	public static final String CATALOG_FILE = "catalog";
+	public static final String SCRUB_FILE = "scrub";
+	public static final int ID_PREFIX_LENGTH = 2;
 }
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically re-verifies the files of a {@link FileStore} to detect bit rot. Each pass verifies the files which
+ * were verified the longest time ago first, and the time each file was last verified is persisted in the scrub file of
+ * the store, see {@link FileStore#getScrubFile()}, so that scrubbing resumes where it left off after a restart. Corrupt
+ * files are moved to the corrupt directory of the store and removed from its catalog.
+ * <p>
+ * The expected leaf hashes are taken from the catalog of the store, or from the extended attributes of the file. If
+ * neither is available, the whole file is hashed and compared to its ID. Reading can be limited to a number of bytes
+ * per second, so that scrubbing does not starve imports and reads of disk bandwidth
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class FileStoreScrubber implements Runnable {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileStoreScrubber.class);
+
+	private static final long SAVE_INTERVAL_MILLIS = 10000L;
+
+	private final FileStore fileStore;
+	private final File scrubFile;
+	private final Map<String, Long> lastVerified;
+	private final Object scrubLock;
+	private TokenBucket tokenBucket;
+	private long lastSave;
+
+	// incremented by every stop, so that it only aborts the passes which were started before it
+	private final AtomicInteger stops;
+	private ScheduledFuture<?> future;
+
+	/**
+	 * Creates the scrubber and loads the progress of previous passes
+	 * 
+	 * @param fileStore
+	 *            the {@link FileStore} with a base path whose files are to be scrubbed
+	 */
+	public FileStoreScrubber(FileStore fileStore) {
+		this.fileStore = fileStore;
+		this.scrubFile = fileStore.getScrubFile();
+		this.lastVerified = new HashMap<>();
+		this.scrubLock = new Object();
+		this.stops = new AtomicInteger();
+		load();
+	}
+
+	/**
+	 * Limits the rate at which files are read while scrubbing
+	 * 
+	 * @param bytesPerSecond
+	 *            the maximum average number of bytes read per second, or 0 to read as fast as possible
+	 */
+	public void setBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond < 0)
+			throw new IllegalArgumentException("The rate may not be negative: " + bytesPerSecond);
+		if (bytesPerSecond == 0)
+			this.tokenBucket = null;
+		else
+			this.tokenBucket = new TokenBucket(bytesPerSecond, Math.max(bytesPerSecond, FileStoreConstants.LEAF_SIZE));
+	}
+
+	/**
+	 * Schedules a scrubbing pass with the given delay between the end of one pass and the start of the next
+	 * 
+	 * @param executor
+	 * @param delay
+	 * @param unit
+	 */
+	public synchronized void start(ScheduledExecutorService executor, long delay, TimeUnit unit) {
+		if (this.future != null)
+			throw new FileStoreException("The scrubber is already started");
+		this.future = executor.scheduleWithFixedDelay(this, 0, delay, unit);
+	}
+
+	/**
+	 * Stops scrubbing, aborting the file currently being verified. The progress is kept. Scheduled passes only resume
+	 * once the scrubber is started again, while passes started by calling {@link #scrub()} after stopping are not
+	 * affected
+	 */
+	public void stop() {
+		this.stops.incrementAndGet();
+		synchronized (this) {
+			if (this.future != null) {
+				this.future.cancel(false);
+				this.future = null;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			scrub();
+		} catch (RuntimeException e) {
+			// don't let the exception cancel the scheduled passes
+			logger.error("Scrubbing failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return the time at which the file with the given ID was last verified, or 0 if it was never verified
+	 */
+	public long getLastVerified(String id) {
+		synchronized (this.lastVerified) {
+			Long time = this.lastVerified.get(id);
+			return time == null ? 0L : time;
+		}
+	}
+
+	/**
+	 * Performs a single pass over all stored files, verifying the least recently verified files first
+	 * 
+	 * @return the IDs of the files which were found to be corrupt and moved to the corrupt directory
+	 */
+	public List<String> scrub() {
+		int stops = this.stops.get();
+		synchronized (this.scrubLock) {
+			return scrubFiles(stops);
+		}
+	}
+
+	private List<String> scrubFiles(int stops) {
+
+		List<String> ids = listStoredIds();
+		synchronized (this.lastVerified) {
+			this.lastVerified.keySet().retainAll(ids);
+		}
+		Collections.sort(ids, new Comparator<String>() {
+			@Override
+			public int compare(String id1, String id2) {
+				int cmp = Long.compare(getLastVerified(id1), getLastVerified(id2));
+				return cmp != 0 ? cmp : id1.compareTo(id2);
+			}
+		});
+
+		logger.info("Scrubbing " + ids.size() + " files in " + this.fileStore.getBasePath());
+		List<String> corrupt = new ArrayList<>();
+		int verified = 0;
+		for (String id : ids) {
+			if (this.stops.get() != stops)
+				break;
+
+			try {
+				Boolean valid = verify(id, stops);
+				if (valid == null)
+					continue;
+				if (valid) {
+					verified++;
+					synchronized (this.lastVerified) {
+						this.lastVerified.put(id, System.currentTimeMillis());
+					}
+				} else {
+					quarantine(id);
+					corrupt.add(id);
+				}
+			} catch (FileStoreException e) {
+				logger.error("Failed to scrub file " + id + ": " + e.getMessage(), e);
+			}
+
+			if (System.currentTimeMillis() - this.lastSave >= SAVE_INTERVAL_MILLIS)
+				save();
+		}
+		save();
+
+		logger.info("Verified " + verified + " files, found " + corrupt.size() + " corrupt files");
+		return corrupt;
+	}
+
+	/**
+	 * @return true if the file is valid, false if it is corrupt, or null if verifying was stopped or was not possible
+	 */
+	private Boolean verify(String id, final int stops) {
+
+		File file = this.fileStore.getStoredFile(id);
+		DmediaId rootId;
+		try {
+			rootId = DmediaId.parse(id);
+		} catch (Dbase32Exception e) {
+			logger.warn("Ignoring file with invalid ID at " + file.getAbsolutePath());
+			return null;
+		}
+
+		final long fileSize = file.length();
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		FileStore.LeafCallback throttle = new FileStore.LeafCallback() {
+			@Override
+			public boolean leafHashed(int leafIndex, byte[] digest) {
+				if (throttle(leafIndex, fileSize, stops))
+					return true;
+				interrupted.set(true);
+				return false;
+			}
+		};
+
+		DmediaFile expected = getExpected(rootId, file);
+		if (expected == null) {
+			// nothing to compare the leaves with, so the whole file is hashed and compared to its ID
+			// the leaf hashes always have the size of all leaves, but are incomplete if hashing was stopped
+			LeafHashes leafHashes = this.fileStore.hashLeaves(file, throttle);
+			if (interrupted.get() || leafHashes.size() != this.fileStore.getNrOfSlices(fileSize))
+				return null;
+			return id.equals(this.fileStore.hashRoot(fileSize, leafHashes));
+		}
+
+		VerifyResult result = this.fileStore.verify(file, expected, false, throttle);
+		if (result.isCorrupt())
+			logger.error(result.toString());
+		else if (result.isRootMismatch())
+			logger.error("Can not verify file " + id + ": " + result);
+		if (!result.isCorrupt() && !result.isValid())
+			return null;
+		return result.isValid();
+	}
+
+	private DmediaFile getExpected(DmediaId rootId, File file) {
+		FileStoreCatalog catalog = this.fileStore.getCatalog();
+		DmediaFile expected = catalog == null ? null : catalog.get(rootId);
+		if (expected == null) {
+			expected = XattrHelper.read(file, this.fileStore);
+			if (expected != null && !expected.getRootId().equals(rootId))
+				expected = null;
+		}
+		return expected;
+	}
+
+	private boolean throttle(int leafIndex, long fileSize, int stops) {
+		if (this.stops.get() != stops)
+			return false;
+		TokenBucket bucket = this.tokenBucket;
+		if (bucket == null)
+			return true;
+		try {
+			bucket.acquire(Math.min(FileStoreConstants.LEAF_SIZE, fileSize - (long) leafIndex
+					* FileStoreConstants.LEAF_SIZE));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Moves the corrupt file to the corrupt directory of the store and removes it from the catalog
+	 */
+	private void quarantine(String id) {
+		File file = this.fileStore.getStoredFile(id);
+		File corruptFile = new File(this.fileStore.getCorruptDir(), id);
+		try {
+			Files.move(file.toPath(), corruptFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to move corrupt file " + file.getAbsolutePath() + " to "
+					+ corruptFile.getAbsolutePath(), e);
+		}
+		logger.warn("Moved corrupt file " + id + " to " + corruptFile.getAbsolutePath());
+
+		FileStoreCatalog catalog = this.fileStore.getCatalog();
+		if (catalog != null && catalog.remove(DmediaId.parse(id)))
+			catalog.sync();
+		synchronized (this.lastVerified) {
+			this.lastVerified.remove(id);
+		}
+	}
+
+	private List<String> listStoredIds() {
+		List<String> ids = new ArrayList<>();
+		File[] prefixDirs = this.fileStore.getFilesDir().listFiles();
+		if (prefixDirs == null)
+			return ids;
+		for (File prefixDir : prefixDirs) {
+			String[] names = prefixDir.list();
+			if (names == null)
+				continue;
+			for (String name : names) {
+				ids.add(prefixDir.getName() + name);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Reads the progress, which consists of a line per file with the time it was last verified and its ID
+	 */
+	private void load() {
+		if (!this.scrubFile.exists())
+			return;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.scrubFile),
+				StandardCharsets.US_ASCII))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space == -1)
+					continue;
+				try {
+					this.lastVerified.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring malformed line in " + this.scrubFile.getAbsolutePath() + ": " + line);
+				}
+			}
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read scrub progress from " + this.scrubFile.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Writes the progress to a temporary file which then atomically replaces the previous progress
+	 */
+	private void save() {
+		File tmpFile = new File(this.fileStore.getTmpDir(), FileStoreConstants.SCRUB_FILE);
+		try {
+			try (FileOutputStream out = new FileOutputStream(tmpFile);
+					BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII))) {
+				synchronized (this.lastVerified) {
+					for (Map.Entry<String, Long> entry : this.lastVerified.entrySet()) {
+						writer.write(entry.getValue() + " " + entry.getKey());
+						writer.newLine();
+					}
+				}
+				writer.flush();
+				out.getFD().sync();
+			}
+			Files.move(tmpFile.toPath(), this.scrubFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			this.lastSave = System.currentTimeMillis();
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to write scrub progress to " + this.scrubFile.getAbsolutePath(), e);
+		}
+	}
+}
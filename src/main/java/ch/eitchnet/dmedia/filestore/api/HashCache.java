@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded LRU cache of the {@link DmediaFile}s of hashed files, keyed by the device, inode, size, modification time and
+ * change time of the file as read from the <code>unix:</code> file attributes. On file systems without the
+ * <code>unix:</code> view the {@link BasicFileAttributes#fileKey()}, or the path if there is none, and the creation
+ * time are used instead. If any of these attributes change, the file is hashed again
+ * 
+ * <p>
+ * A file is only cached if its attributes did not change while it was hashed, and if its modification and change time
+ * are not within the last {@link #RACY_NANOS} nanoseconds: as time stamps have a limited granularity, a write right
+ * after hashing could otherwise leave them unchanged
+ * </p>
+ * 
+ * <p>
+ * This class is thread safe
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class HashCache {
+
+	/**
+	 * Files modified less than 2 seconds before being hashed are not cached, which covers the time stamp granularity
+	 * of all common file systems
+	 */
+	public static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	private final Map<Key, DmediaFile> cache;
+	private final long racyNanos;
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of files to cache
+	 */
+	public HashCache(int maxSize) {
+		this(maxSize, RACY_NANOS);
+	}
+
+	HashCache(final int maxSize, long racyNanos) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("The cache must be able to hold at least one entry");
+		this.racyNanos = racyNanos;
+		this.cache = new LinkedHashMap<Key, DmediaFile>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, DmediaFile> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Reads the attributes of the file which make up the key of the cache, without opening the file
+	 * 
+	 * @param file
+	 * @return the key
+	 */
+	static Key readKey(File file) {
+		Path path = file.toPath();
+		try {
+			Map<String, Object> attributes = Files.readAttributes(path, "unix:dev,ino,size,lastModifiedTime,ctime",
+					LinkOption.NOFOLLOW_LINKS);
+			Object identity = attributes.get("dev") + ":" + attributes.get("ino");
+			return new Key(identity, (Long) attributes.get("size"), toNanos(attributes.get("lastModifiedTime")),
+					toNanos(attributes.get("ctime")));
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			// no unix view on this file system, fall back to the basic attributes
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read the attributes of " + file.getAbsolutePath(), e);
+		}
+
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			Object identity = attributes.fileKey() == null ? path.toAbsolutePath().toString() : attributes.fileKey();
+			return new Key(identity, attributes.size(), toNanos(attributes.lastModifiedTime()),
+					toNanos(attributes.creationTime()));
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read the attributes of " + file.getAbsolutePath(), e);
+		}
+	}
+
+	private static long toNanos(Object fileTime) {
+		return ((FileTime) fileTime).to(TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param file
+	 * @return the cached {@link DmediaFile} of the given file with its current path, or null if the file is not cached
+	 *         or has changed since
+	 */
+	public DmediaFile get(File file) {
+		return get(readKey(file), file);
+	}
+
+	DmediaFile get(Key key, File file) {
+		DmediaFile cached;
+		synchronized (this) {
+			cached = this.cache.get(key);
+		}
+		if (cached == null)
+			return null;
+		return new DmediaFile(file.getAbsolutePath(), cached.getFileSize(), cached.getRootHash(),
+				cached.getLeafHashes());
+	}
+
+	/**
+	 * Caches the {@link DmediaFile} of the given file, if its attributes are still those read before it was hashed
+	 * 
+	 * @param key
+	 *            the key read before the file was hashed
+	 * @param file
+	 * @param dmediaFile
+	 * @return true if the file was cached
+	 */
+	boolean put(Key key, File file, DmediaFile dmediaFile) {
+		if (!key.equals(readKey(file)))
+			return false;
+		return put(key, key, dmediaFile);
+	}
+
+	/**
+	 * Caches the {@link DmediaFile} of a file whose change time was changed on purpose after it was hashed, e.g. by
+	 * writing its extended attributes. The caller must have checked that the file was unchanged before that
+	 * 
+	 * @param key
+	 *            the key read before the file was hashed
+	 * @param current
+	 *            the key read after the change time was changed, under which the file is cached
+	 * @param dmediaFile
+	 * @return true if the file was cached
+	 */
+	boolean put(Key key, Key current, DmediaFile dmediaFile) {
+		if (key.size != dmediaFile.getFileSize() || !key.equalsIgnoringCtime(current))
+			return false;
+
+		long now = System.currentTimeMillis() * 1000000L;
+		if (now - key.mtime < this.racyNanos || now - key.ctime < this.racyNanos)
+			return false;
+
+		synchronized (this) {
+			this.cache.put(current, dmediaFile);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the given file from the cache
+	 * 
+	 * @param file
+	 */
+	public synchronized void invalidate(File file) {
+		this.cache.remove(readKey(file));
+	}
+
+	/**
+	 * @return the number of cached files
+	 */
+	public synchronized int size() {
+		return this.cache.size();
+	}
+
+	/**
+	 * Removes all cached files
+	 */
+	public synchronized void clear() {
+		this.cache.clear();
+	}
+
+	static final class Key {
+		private final Object identity;
+		private final long size;
+		private final long mtime;
+		private final long ctime;
+
+		Key(Object identity, long size, long mtime, long ctime) {
+			this.identity = identity;
+			this.size = size;
+			this.mtime = mtime;
+			this.ctime = ctime;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = this.identity.hashCode();
+			result = 31 * result + (int) (this.size ^ (this.size >>> 32));
+			result = 31 * result + (int) (this.mtime ^ (this.mtime >>> 32));
+			result = 31 * result + (int) (this.ctime ^ (this.ctime >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return equalsIgnoringCtime(other) && this.ctime == other.ctime;
+		}
+
+		boolean equalsIgnoringCtime(Key other) {
+			return this.size == other.size && this.mtime == other.mtime && this.identity.equals(other.identity);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sidecar file recording the leaf digests of a file being hashed, so that hashing can resume at the first missing
+ * leaf after a restart, see {@link FileStore#hashFileResumable(File, File)}. The file consists of a header followed by
+ * the leaf digests in the order of the leaves:
+ * 
+ * <pre>
+ * header: magic (8 bytes) | file size (long) | mtime in nanoseconds (long) | digest length (int) | leaf count (int)
+ * </pre>
+ * 
+ * The digests are appended as the leaves are hashed, and the leaf count in the header is only updated by
+ * {@link #commit()} after the digests have been forced to disk, so that only the digests of committed leaves are
+ * trusted. A checkpoint for a file with a different size or mtime is discarded
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+class HashCheckpoint implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(HashCheckpoint.class);
+
+	private static final byte[] MAGIC = "DMCKPT01".getBytes(StandardCharsets.US_ASCII);
+	private static final int LEAF_COUNT_POS = 28;
+	private static final int HEADER_SIZE = 32;
+
+	private final File file;
+	private final FileChannel channel;
+	private final int digestBytes;
+
+	private int committedLeaves;
+	private int leaves;
+
+	/**
+	 * Opens the checkpoint at the given file, discarding it if it does not belong to the given state of the hashed file
+	 * 
+	 * @param file
+	 *            the checkpoint file
+	 * @param fileSize
+	 *            the size of the hashed file
+	 * @param mtimeNanos
+	 *            the modification time of the hashed file
+	 * @param digestBytes
+	 *            the length of the leaf digests
+	 */
+	HashCheckpoint(File file, long fileSize, long mtimeNanos, int digestBytes) {
+		this.file = file;
+		this.digestBytes = digestBytes;
+		try {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to open checkpoint at " + file.getAbsolutePath(), e);
+		}
+
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining() && this.channel.read(header, header.position()) != -1) {
+				// read the complete header
+			}
+
+			byte[] magic = new byte[MAGIC.length];
+			header.flip();
+			if (header.remaining() == HEADER_SIZE) {
+				header.get(magic);
+				int leafCount = header.getInt(LEAF_COUNT_POS);
+				if (Arrays.equals(MAGIC, magic) && header.getLong() == fileSize && header.getLong() == mtimeNanos
+						&& header.getInt() == digestBytes && leafCount >= 0
+						&& this.channel.size() >= HEADER_SIZE + (long) leafCount * digestBytes) {
+					this.committedLeaves = leafCount;
+					this.leaves = leafCount;
+					return;
+				}
+				logger.info("Discarding stale checkpoint at " + file.getAbsolutePath());
+			}
+
+			header.clear();
+			header.put(MAGIC).putLong(fileSize).putLong(mtimeNanos).putInt(digestBytes).putInt(0);
+			header.flip();
+			this.channel.truncate(0);
+			while (header.hasRemaining()) {
+				this.channel.write(header, header.position());
+			}
+			this.channel.force(false);
+
+		} catch (IOException e) {
+			close(this.channel);
+			throw new FileStoreException("Failed to open checkpoint at " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * @return the number of leaves whose digests are in the checkpoint
+	 */
+	int getLeafCount() {
+		return this.leaves;
+	}
+
+	/**
+	 * Reads the digests of the committed leaves
+	 * 
+	 * @param leafHashes
+	 *            to which the digests are written
+	 * @return the number of leaves read, which is the index of the first leaf which still needs to be hashed
+	 */
+	int read(LeafHashes leafHashes) {
+		int count = Math.min(this.committedLeaves, leafHashes.size());
+		byte[] digest = new byte[this.digestBytes];
+		try {
+			for (int i = 0; i < count; i++) {
+				ByteBuffer buffer = ByteBuffer.wrap(digest);
+				long position = HEADER_SIZE + (long) i * this.digestBytes;
+				while (buffer.hasRemaining()) {
+					if (this.channel.read(buffer, position + buffer.position()) == -1)
+						throw new FileStoreException("The checkpoint at " + this.file.getAbsolutePath() + " is truncated");
+				}
+				leafHashes.setDigest(i, digest, 0);
+			}
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to read checkpoint at " + this.file.getAbsolutePath(), e);
+		}
+		return count;
+	}
+
+	/**
+	 * Appends the digest of the next leaf. It is only trusted after the next {@link #commit()}
+	 * 
+	 * @param leafIndex
+	 * @param digest
+	 */
+	void append(int leafIndex, byte[] digest) {
+		if (leafIndex != this.leaves)
+			throw new FileStoreException("Expected the digest of leaf " + this.leaves + ", but got leaf " + leafIndex);
+		ByteBuffer buffer = ByteBuffer.wrap(digest, 0, this.digestBytes);
+		long position = HEADER_SIZE + (long) leafIndex * this.digestBytes;
+		try {
+			while (buffer.hasRemaining()) {
+				this.channel.write(buffer, position + buffer.position());
+			}
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to write checkpoint at " + this.file.getAbsolutePath(), e);
+		}
+		this.leaves++;
+	}
+
+	/**
+	 * Forces the appended digests to disk, and then records their number in the header
+	 */
+	void commit() {
+		if (this.committedLeaves == this.leaves)
+			return;
+		try {
+			this.channel.force(false);
+			ByteBuffer count = ByteBuffer.allocate(4).putInt(0, this.leaves);
+			while (count.hasRemaining()) {
+				this.channel.write(count, LEAF_COUNT_POS + count.position());
+			}
+			this.committedLeaves = this.leaves;
+		} catch (IOException e) {
+			throw new FileStoreException("Failed to write checkpoint at " + this.file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Commits the appended digests and closes the checkpoint
+	 */
+	@Override
+	public void close() {
+		if (!this.channel.isOpen())
+			return;
+		try {
+			commit();
+		} finally {
+			close(this.channel);
+		}
+	}
+
+	/**
+	 * Closes and deletes the checkpoint, once the file has been completely hashed
+	 */
+	void delete() {
+		close(this.channel);
+		if (this.file.exists() && !this.file.delete())
+			logger.warn("Failed to delete checkpoint at " + this.file.getAbsolutePath());
+	}
+
+	private static void close(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Failed to close checkpoint: " + e.getMessage(), e);
+		}
+	}
+}
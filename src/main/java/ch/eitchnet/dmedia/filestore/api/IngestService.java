@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports files concurrently into a {@link FileStore}, e.g. from many slow sources such as USB cards and network
+ * mounts at once. Each import runs on its own thread from a cached pool of I/O threads with a small stack, which spend
+ * most of their time blocked in reads. The CPU heavy hashing of the leaves is done by a bounded pool of hashing
+ * threads, so that hundreds of concurrent imports do not compete for the CPU, and the leaf buffers of all imports are
+ * bounded by a memory budget. Files of a single leaf are read and hashed on the I/O thread, but at most as many are
+ * hashed at once as there are hashing threads.
+ * <p>
+ * The service configures the executor and leaf memory budget of the given {@link FileStore}, which should not be used
+ * for hashing elsewhere while the service is open. Closing the service restores the previous configuration
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class IngestService implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(IngestService.class);
+
+	private static final long IO_THREAD_STACK_SIZE = 256 * 1024;
+
+	private final FileStore fileStore;
+	private final ExecutorService ioExecutor;
+	private final ExecutorService hashExecutor;
+	private final AtomicInteger activeImports;
+
+	// the configuration of the FileStore which is restored on close
+	private final Executor previousExecutor;
+	private final LeafBufferPool previousLeafBufferPool;
+	private final Semaphore previousInlineHashing;
+
+	/**
+	 * @param fileStore
+	 *            the {@link FileStore} with a base path into which the files are imported
+	 * @param hashThreads
+	 *            the number of threads hashing leaves, e.g. the number of cores
+	 * @param leafMemoryBudget
+	 *            the memory budget for the leaf buffers of all concurrent imports, see
+	 *            {@link FileStore#setLeafMemoryBudget(long)}
+	 */
+	public IngestService(FileStore fileStore, int hashThreads, long leafMemoryBudget) {
+		if (fileStore.getBasePath() == null)
+			throw new FileStoreException("Files can only be ingested into a FileStore with a base path");
+		if (hashThreads < 1)
+			throw new IllegalArgumentException("At least one hashing thread is required");
+
+		this.fileStore = fileStore;
+		this.ioExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("dmedia-ingest-io-",
+				IO_THREAD_STACK_SIZE));
+		this.hashExecutor = Executors.newFixedThreadPool(hashThreads, new NamedThreadFactory("dmedia-ingest-hash-", 0));
+		this.activeImports = new AtomicInteger();
+
+		this.previousExecutor = fileStore.getExecutor();
+		this.previousLeafBufferPool = fileStore.getLeafBufferPool();
+		this.previousInlineHashing = fileStore.getInlineHashing();
+		fileStore.setLeafMemoryBudget(leafMemoryBudget);
+		fileStore.setExecutor(this.hashExecutor);
+		// a single leaf is hashed on the I/O thread, so the number of such threads hashing at once is bounded instead
+		fileStore.setInlineHashing(new Semaphore(hashThreads));
+	}
+
+	/**
+	 * @return the {@link FileStore} into which the files are imported
+	 */
+	public FileStore getFileStore() {
+		return this.fileStore;
+	}
+
+	/**
+	 * @return the number of imports which have been submitted and are not yet complete
+	 */
+	public int getActiveImports() {
+		return this.activeImports.get();
+	}
+
+	/**
+	 * Imports the given file on an I/O thread
+	 * 
+	 * @param file
+	 *            the file to import
+	 * @return the {@link Future} of the stored {@link DmediaFile}, which fails with a {@link FileStoreException} if the
+	 *         file could not be imported
+	 */
+	public Future<DmediaFile> submit(final File file) {
+		this.activeImports.incrementAndGet();
+		try {
+			return this.ioExecutor.submit(new Callable<DmediaFile>() {
+				@Override
+				public DmediaFile call() throws Exception {
+					try {
+						return IngestService.this.fileStore.hashAndStoreFile(file);
+					} finally {
+						IngestService.this.activeImports.decrementAndGet();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			this.activeImports.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops accepting imports, waits for the submitted imports to complete and restores the previous executor and leaf
+	 * memory budget of the {@link FileStore}
+	 */
+	@Override
+	public void close() {
+		this.ioExecutor.shutdown();
+		try {
+			while (!this.ioExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+				logger.info("Waiting for " + this.activeImports.get() + " imports to complete");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while waiting for imports to complete");
+		} finally {
+			this.fileStore.setExecutor(this.previousExecutor);
+			this.fileStore.setLeafBufferPool(this.previousLeafBufferPool);
+			this.fileStore.setInlineHashing(this.previousInlineHashing);
+			this.hashExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Creates daemon threads with a name prefix and the given stack size, 0 being the default stack size
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final long stackSize;
+		private final AtomicInteger count;
+
+		NamedThreadFactory(String prefix, long stackSize) {
+			this.prefix = prefix;
+			this.stackSize = stackSize;
+			this.count = new AtomicInteger();
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(null, r, this.prefix + this.count.incrementAndGet(), this.stackSize);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
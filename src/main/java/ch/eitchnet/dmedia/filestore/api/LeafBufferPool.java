@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of leaf buffers of {@link FileStoreConstants#LEAF_SIZE} bytes, which bounds the memory used for leaf buffers
+ * by all files being hashed concurrently. Buffers are acquired for a file all at once, so that files waiting for
+ * buffers never hold some while waiting for more. Returned buffers are reused
+ * <p>
+ * Asynchronous operations must not block while waiting for buffers, so they are queued with
+ * {@link #acquireOrWait(int, Waiter)} instead, and are handed their buffers by the thread which releases them
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+class LeafBufferPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(LeafBufferPool.class);
+
+	private final int capacity;
+	private final Semaphore permits;
+	private final ConcurrentLinkedQueue<byte[]> free;
+	private final Queue<Waiting> waiting;
+
+	/**
+	 * Notified once the buffers it waits for have been acquired
+	 */
+	interface Waiter {
+
+		/**
+		 * Called by the thread which released the buffers, so it may not block
+		 * 
+		 * @param buffers
+		 *            the acquired buffers, which must be released again
+		 */
+		void acquired(byte[][] buffers);
+	}
+
+	private static class Waiting {
+		private final int count;
+		private final Waiter waiter;
+		private byte[][] buffers;
+
+		Waiting(int count, Waiter waiter) {
+			this.count = count;
+			this.waiter = waiter;
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of leaf buffers in use at any time
+	 */
+	LeafBufferPool(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("At least one leaf buffer is required");
+		this.capacity = capacity;
+		this.permits = new Semaphore(capacity, true);
+		this.free = new ConcurrentLinkedQueue<>();
+		this.waiting = new ArrayDeque<>();
+	}
+
+	/**
+	 * @return the maximum number of leaf buffers in use at any time
+	 */
+	int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return the number of leaf buffers which may currently be acquired without waiting
+	 */
+	int getAvailable() {
+		return this.permits.availablePermits();
+	}
+
+	/**
+	 * Acquires the given number of buffers, waiting until they are all available
+	 * 
+	 * @param count
+	 *            the number of buffers, at most the capacity
+	 * @return the buffers
+	 * @throws InterruptedException
+	 */
+	byte[][] acquire(int count) throws InterruptedException {
+		if (count > this.capacity)
+			throw new IllegalArgumentException("Can not acquire " + count + " of " + this.capacity + " leaf buffers");
+		this.permits.acquire(count);
+		return take(count);
+	}
+
+	/**
+	 * Acquires the given number of buffers if they are available and no other waiter is queued, otherwise queues the
+	 * waiter, which is handed the buffers as soon as they are released
+	 * 
+	 * @param count
+	 *            the number of buffers, at most the capacity
+	 * @param waiter
+	 *            notified of the buffers if they are not available now
+	 * @return the buffers, or null if the waiter was queued
+	 */
+	byte[][] acquireOrWait(int count, Waiter waiter) {
+		if (count > this.capacity)
+			throw new IllegalArgumentException("Can not acquire " + count + " of " + this.capacity + " leaf buffers");
+		synchronized (this.waiting) {
+			if (this.waiting.isEmpty() && this.permits.tryAcquire(count))
+				return take(count);
+			this.waiting.add(new Waiting(count, waiter));
+			return null;
+		}
+	}
+
+	private byte[][] take(int count) {
+		byte[][] buffers = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			byte[] buffer = this.free.poll();
+			buffers[i] = buffer != null ? buffer : new byte[FileStoreConstants.LEAF_SIZE];
+		}
+		return buffers;
+	}
+
+	/**
+	 * Returns buffers to the pool. Buffers which are possibly still in use after a failure are not returned, but their
+	 * permits are still released
+	 * 
+	 * @param buffers
+	 *            the buffers which may be reused
+	 * @param acquired
+	 *            the number of buffers which were acquired
+	 */
+	void release(Collection<byte[]> buffers, int acquired) {
+		this.free.addAll(buffers);
+		this.permits.release(acquired);
+
+		// the waiters are notified outside of the lock, as they may start reading and release buffers again
+		List<Waiting> ready = new ArrayList<>();
+		synchronized (this.waiting) {
+			Waiting next;
+			while ((next = this.waiting.peek()) != null && this.permits.tryAcquire(next.count)) {
+				this.waiting.poll();
+				next.buffers = take(next.count);
+				ready.add(next);
+			}
+		}
+		for (Waiting next : ready) {
+			try {
+				next.waiter.acquired(next.buffers);
+			} catch (RuntimeException e) {
+				logger.error("Failed to hand leaf buffers to a waiter: " + e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the Skein chaining values used when hashing leaves. The chaining value after processing the key
+ * (the leaf index), the personalization and the configuration is the same for a given leaf index in every file, so
+ * caching it saves these compressions for every leaf hashed
+ * 
+ * <p>
+ * This class is thread safe
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class LeafChainCache {
+
+	private final Map<Key, long[]> cache;
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of chaining values to keep
+	 */
+	public LeafChainCache(final int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("The cache must be able to hold at least one entry");
+
+		this.cache = new LinkedHashMap<Key, long[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, long[]> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param blockSize
+	 * @param digestSize
+	 * @param withKey
+	 * @param withPers
+	 * @param leafIndex
+	 * @return the cached chaining value, or null if it is not in the cache. The returned array may not be modified
+	 */
+	public synchronized long[] get(int blockSize, int digestSize, boolean withKey, boolean withPers, int leafIndex) {
+		return this.cache.get(new Key(blockSize, digestSize, withKey, withPers, leafIndex));
+	}
+
+	/**
+	 * @param blockSize
+	 * @param digestSize
+	 * @param withKey
+	 * @param withPers
+	 * @param leafIndex
+	 * @param chain
+	 *            the chaining value to cache, which may not be modified afterwards
+	 */
+	public synchronized void put(int blockSize, int digestSize, boolean withKey, boolean withPers, int leafIndex,
+			long[] chain) {
+		this.cache.put(new Key(blockSize, digestSize, withKey, withPers, leafIndex), chain);
+	}
+
+	/**
+	 * @return the number of cached chaining values
+	 */
+	public synchronized int size() {
+		return this.cache.size();
+	}
+
+	/**
+	 * Removes all cached chaining values
+	 */
+	public synchronized void clear() {
+		this.cache.clear();
+	}
+
+	private static class Key {
+		private final int blockSize;
+		private final int digestSize;
+		private final boolean withPers;
+		private final int leafIndex;
+
+		public Key(int blockSize, int digestSize, boolean withKey, boolean withPers, int leafIndex) {
+			this.blockSize = blockSize;
+			this.digestSize = digestSize;
+			this.withPers = withPers;
+			// without a key, the chaining value is the same for all leaves
+			this.leafIndex = withKey ? leafIndex : -1;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = this.leafIndex;
+			result = 31 * result + this.blockSize;
+			result = 31 * result + this.digestSize;
+			result = 31 * result + (this.withPers ? 1 : 0);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return this.leafIndex == other.leafIndex && this.blockSize == other.blockSize
+					&& this.digestSize == other.digestSize && this.withPers == other.withPers;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+/**
+ * Receives the leaf hashes of a file as soon as each leaf has been hashed, see
+ * {@link FileStore#publishLeaves(java.io.File, LeafHashListener)}. The signals are never concurrent: first
+ * {@link #onSubscribe(LeafHashSubscription)}, then {@link #onLeaf(DmediaFileSlice)} for each leaf, at most as many as
+ * requested, and finally either {@link #onComplete(DmediaFile)} or {@link #onError(Throwable)}, unless the
+ * subscription was cancelled
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public interface LeafHashListener {
+
+	/**
+	 * Called before hashing starts. No leaves are delivered until they are requested from the subscription
+	 * 
+	 * @param subscription
+	 *            the subscription with which leaves are requested and hashing is cancelled
+	 */
+	void onSubscribe(LeafHashSubscription subscription);
+
+	/**
+	 * Called for each hashed leaf. When the leaves are hashed in parallel they may be delivered out of order
+	 * 
+	 * @param slice
+	 *            the hashed leaf
+	 */
+	void onLeaf(DmediaFileSlice slice);
+
+	/**
+	 * Called once all leaves have been delivered
+	 * 
+	 * @param dmediaFile
+	 *            the hashed file
+	 */
+	void onComplete(DmediaFile dmediaFile);
+
+	/**
+	 * Called if hashing failed
+	 * 
+	 * @param e
+	 *            the reason
+	 */
+	void onError(Throwable e);
+}
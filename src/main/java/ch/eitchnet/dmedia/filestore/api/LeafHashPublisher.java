@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@link LeafHashSubscription} of a single {@link FileStore#publishLeaves(java.io.File, LeafHashListener)} call,
+ * which delivers the leaves from the hashing threads. A hashing thread waits while there is no demand, and delivering
+ * is synchronized so that the listener is never called concurrently
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+class LeafHashPublisher implements LeafHashSubscription, FileStore.LeafCallback {
+
+	private final LeafHashListener listener;
+	private long demand;
+	private boolean cancelled;
+
+	/**
+	 * @param listener
+	 */
+	LeafHashPublisher(LeafHashListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public synchronized void request(long n) {
+		if (n < 1)
+			throw new IllegalArgumentException("At least one leaf must be requested: " + n);
+		this.demand = n > Long.MAX_VALUE - this.demand ? Long.MAX_VALUE : this.demand + n;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void cancel() {
+		this.cancelled = true;
+		notifyAll();
+	}
+
+	/**
+	 * Ends the subscription with the given failure, unless it was cancelled. Hashing threads waiting for demand are
+	 * woken and stop, and as the failure is delivered while holding the same lock as the leaves, no leaf can be
+	 * delivered during or after it
+	 * 
+	 * @param e
+	 *            the reason hashing failed
+	 */
+	synchronized void fail(Throwable e) {
+		if (this.cancelled)
+			return;
+		this.cancelled = true;
+		notifyAll();
+		this.listener.onError(e);
+	}
+
+	/**
+	 * @return true if the subscription was cancelled
+	 */
+	synchronized boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	@Override
+	public synchronized boolean leafHashed(int leafIndex, byte[] digest) {
+		try {
+			while (this.demand == 0 && !this.cancelled) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.cancelled = true;
+		}
+		if (this.cancelled)
+			return false;
+
+		if (this.demand != Long.MAX_VALUE)
+			this.demand--;
+		String hash = new String(Dbase32.db32Enc(digest), StandardCharsets.US_ASCII);
+		this.listener.onLeaf(new DmediaFileSlice(leafIndex, (long) leafIndex * FileStoreConstants.LEAF_SIZE, hash));
+		return !this.cancelled;
+	}
+}
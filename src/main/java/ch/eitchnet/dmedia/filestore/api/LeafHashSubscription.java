@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+/**
+ * Controls the delivery of leaf hashes to a {@link LeafHashListener}. Hashing waits while no leaves are requested, so
+ * that a slow listener holds back reading, and a cancelled subscription stops reading within one leaf. The methods may
+ * be called from any thread
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public interface LeafHashSubscription {
+
+	/**
+	 * Requests the given number of further leaves
+	 * 
+	 * @param n
+	 *            the number of leaves, at least 1, {@link Long#MAX_VALUE} for all leaves
+	 */
+	void request(long n);
+
+	/**
+	 * Stops hashing, after which no further leaves are delivered
+	 */
+	void cancel();
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Compact representation of the leaf hashes of a file. The binary digests of all leaves are kept in contiguous byte
+ * arrays, instead of a {@link DmediaFileSlice} object with a D-Base32 encoded {@link String} for every leaf. The slices
+ * and their encoded hashes are only created when they are requested through {@link #asSlices(DmediaFile)}
+ * 
+ * <p>
+ * The digests are stored in pages of {@link #PAGE_SIZE} leaves, so that even the maximum number of leaves
+ * {@link FileStoreConstants#MAX_LEAF_COUNT} can be held. Setting digests of different leaves concurrently is allowed,
+ * as long as the digests are published safely to the readers
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class LeafHashes {
+
+	private static final int PAGE_SHIFT = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private final int count;
+	private final int digestBytes;
+	private final byte[][] pages;
+
+	/**
+	 * @param count
+	 *            the number of leaves
+	 * @param digestBytes
+	 *            the size of a leaf digest in bytes
+	 */
+	public LeafHashes(int count, int digestBytes) {
+		if (count < 0 || count > FileStoreConstants.MAX_LEAF_COUNT)
+			throw new IllegalArgumentException("Invalid number of leaves " + count);
+		if (digestBytes < 1)
+			throw new IllegalArgumentException("Invalid digest size " + digestBytes);
+
+		this.count = count;
+		this.digestBytes = digestBytes;
+
+		int nrOfPages = (count + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+		this.pages = new byte[nrOfPages][];
+		for (int i = 0; i < nrOfPages; i++) {
+			int leavesInPage = Math.min(PAGE_SIZE, count - (i << PAGE_SHIFT));
+			this.pages[i] = new byte[leavesInPage * digestBytes];
+		}
+	}
+
+	/**
+	 * Creates the compact representation of the given slices by decoding their hashes
+	 * 
+	 * @param fileSlices
+	 *            the slices in order of their index
+	 * @return the {@link LeafHashes}
+	 */
+	public static LeafHashes fromSlices(List<DmediaFileSlice> fileSlices) {
+		if (fileSlices instanceof SliceList)
+			return ((SliceList) fileSlices).leafHashes;
+
+		int digestBytes = fileSlices.isEmpty() ? FileStoreConstants.DIGEST_BYTES : Dbase32.decodedLength(fileSlices
+				.get(0).getHash().length());
+		LeafHashes leafHashes = new LeafHashes(fileSlices.size(), digestBytes);
+		byte[] digest = new byte[digestBytes];
+		for (int i = 0; i < fileSlices.size(); i++) {
+			byte[] hash = fileSlices.get(i).getHash().getBytes(StandardCharsets.US_ASCII);
+			if (Dbase32.decodedLength(hash.length) != digestBytes)
+				throw new FileStoreException("The leaf hash " + i + " has a different length than the other leaves");
+			Dbase32.decode(hash, 0, hash.length, digest, 0);
+			leafHashes.setDigest(i, digest, 0);
+		}
+		return leafHashes;
+	}
+
+	/**
+	 * @return the number of leaves
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 * @return the size of a leaf digest in bytes
+	 */
+	public int getDigestBytes() {
+		return this.digestBytes;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= this.count)
+			throw new IndexOutOfBoundsException("Leaf index " + index + " is not in the range 0 - " + this.count);
+	}
+
+	/**
+	 * @param index
+	 *            the leaf index
+	 * @param digest
+	 *            the array containing the binary digest
+	 * @param offset
+	 *            the offset of the digest in the array
+	 */
+	public void setDigest(int index, byte[] digest, int offset) {
+		checkIndex(index);
+		System.arraycopy(digest, offset, this.pages[index >>> PAGE_SHIFT], (index & PAGE_MASK) * this.digestBytes,
+				this.digestBytes);
+	}
+
+	/**
+	 * @param index
+	 *            the leaf index
+	 * @param dst
+	 *            the array to copy the binary digest to
+	 * @param offset
+	 *            the offset in the array to copy the digest to
+	 */
+	public void getDigest(int index, byte[] dst, int offset) {
+		checkIndex(index);
+		System.arraycopy(this.pages[index >>> PAGE_SHIFT], (index & PAGE_MASK) * this.digestBytes, dst, offset,
+				this.digestBytes);
+	}
+
+	/**
+	 * @param index
+	 *            the leaf index
+	 * @return a copy of the binary digest of the leaf
+	 */
+	public byte[] getDigest(int index) {
+		byte[] digest = new byte[this.digestBytes];
+		getDigest(index, digest, 0);
+		return digest;
+	}
+
+	/**
+	 * @param index
+	 *            the leaf index
+	 * @param digest
+	 *            the array containing the binary digest to compare with
+	 * @param offset
+	 *            the offset of the digest in the array
+	 * @return true if the digest of the leaf is equal to the given digest
+	 */
+	public boolean digestEquals(int index, byte[] digest, int offset) {
+		checkIndex(index);
+		byte[] page = this.pages[index >>> PAGE_SHIFT];
+		int pos = (index & PAGE_MASK) * this.digestBytes;
+		for (int i = 0; i < this.digestBytes; i++) {
+			if (page[pos + i] != digest[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param index
+	 *            the leaf index
+	 * @return the D-Base32 encoded hash of the leaf
+	 */
+	public String getHash(int index) {
+		checkIndex(index);
+		byte[] hash = new byte[Dbase32.encodedLength(this.digestBytes)];
+		Dbase32.encode(this.pages[index >>> PAGE_SHIFT], (index & PAGE_MASK) * this.digestBytes, this.digestBytes, hash,
+				0);
+		return new String(hash, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @param index
+	 *            the leaf index
+	 * @return the {@link DmediaId} of the leaf
+	 */
+	public DmediaId getId(int index) {
+		checkIndex(index);
+		return DmediaId.fromDigest(this.pages[index >>> PAGE_SHIFT], (index & PAGE_MASK) * this.digestBytes,
+				this.digestBytes);
+	}
+
+	/**
+	 * @return the D-Base32 encoded hashes of all leaves concatenated, as used to calculate the root hash
+	 * @throws FileStoreException
+	 *             if there are too many leaves for the encoded hashes to fit into a single array, use
+	 *             {@link #getEncodedHashes(int, int, byte[], int)} to encode them in parts
+	 */
+	public byte[] getEncodedHashes() {
+		int encodedLength = Dbase32.encodedLength(this.digestBytes);
+		long length = (long) this.count * encodedLength;
+		if (length > Integer.MAX_VALUE - 8) {
+			String msg = String.format("The encoded hashes of %d leaves are too large for a single array", this.count);
+			throw new FileStoreException(msg);
+		}
+		byte[] encoded = new byte[(int) length];
+		getEncodedHashes(0, this.count, encoded, 0);
+		return encoded;
+	}
+
+	/**
+	 * Encodes the hashes of a range of leaves
+	 * 
+	 * @param index
+	 *            the index of the first leaf
+	 * @param length
+	 *            the number of leaves to encode
+	 * @param dst
+	 *            the array to write the concatenated D-Base32 encoded hashes to
+	 * @param offset
+	 *            the offset in the array to write the first hash to
+	 * @return the number of bytes written
+	 */
+	public int getEncodedHashes(int index, int length, byte[] dst, int offset) {
+		if (index < 0 || length < 0 || index > this.count - length)
+			throw new IndexOutOfBoundsException("Leaf range " + index + " + " + length + " is not in the range 0 - "
+					+ this.count);
+		int encodedLength = Dbase32.encodedLength(this.digestBytes);
+		for (int i = index; i < index + length; i++) {
+			Dbase32.encode(this.pages[i >>> PAGE_SHIFT], (i & PAGE_MASK) * this.digestBytes, this.digestBytes, dst,
+					offset + (i - index) * encodedLength);
+		}
+		return length * encodedLength;
+	}
+
+	/**
+	 * Returns a read only view of the leaves as {@link DmediaFileSlice}s. The slices are created on access and their
+	 * hash is only encoded when requested
+	 * 
+	 * @param dmediaFile
+	 *            the file the slices belong to, may be null
+	 * @return the slices in order of their index
+	 */
+	public List<DmediaFileSlice> asSlices(DmediaFile dmediaFile) {
+		return new SliceList(this, dmediaFile);
+	}
+
+	private static class SliceList extends AbstractList<DmediaFileSlice> implements RandomAccess {
+
+		private final LeafHashes leafHashes;
+		private final DmediaFile dmediaFile;
+
+		public SliceList(LeafHashes leafHashes, DmediaFile dmediaFile) {
+			this.leafHashes = leafHashes;
+			this.dmediaFile = dmediaFile;
+		}
+
+		@Override
+		public DmediaFileSlice get(int index) {
+			this.leafHashes.checkIndex(index);
+			DmediaFileSlice slice = new DmediaFileSlice(this.leafHashes, index);
+			slice.setDmediaFile(this.dmediaFile);
+			return slice;
+		}
+
+		@Override
+		public int size() {
+			return this.leafHashes.size();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper to release memory mapped buffers deterministically, instead of waiting for the garbage collector to unmap
+ * them. Java has no public API for this, so the JDK internal cleaner is used through reflection: up to Java 8 by
+ * calling cleaner().clean() on the buffer, on later versions through sun.misc.Unsafe.invokeCleaner(). If neither is
+ * available, the buffers are left to the garbage collector
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class MappedBufferHelper {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedBufferHelper.class);
+
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+
+	static {
+		Object theUnsafe = null;
+		Method cleanerMethod = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			cleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			theUnsafe = field.get(null);
+		} catch (Exception e) {
+			// not available before Java 9, where the cleaner of the buffer is used
+			cleanerMethod = null;
+			theUnsafe = null;
+		}
+		unsafe = theUnsafe;
+		invokeCleaner = cleanerMethod;
+	}
+
+	/**
+	 * Releases the given direct or mapped buffer. The buffer may not be used afterwards
+	 * 
+	 * @param buffer
+	 *            the buffer to release
+	 * 
+	 * @return true if the buffer was released, false if it is left to the garbage collector
+	 */
+	public static boolean unmap(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect())
+			return false;
+
+		try {
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, buffer);
+				return true;
+			}
+
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner == null)
+				return false;
+			Method cleanMethod = cleaner.getClass().getMethod("clean");
+			cleanMethod.setAccessible(true);
+			cleanMethod.invoke(cleaner);
+			return true;
+
+		} catch (Exception e) {
+			logger.debug("Failed to unmap buffer, leaving it to the garbage collector: " + e.getMessage());
+			return false;
+		}
+	}
+}
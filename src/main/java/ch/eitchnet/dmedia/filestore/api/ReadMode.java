@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+/**
+ * The modes in which the {@link FileStore} reads the leaves of a file
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public enum ReadMode {
+
+	/**
+	 * The file is read with a stream into leaf buffers on the heap
+	 */
+	STREAM,
+
+	/**
+	 * Each leaf is memory mapped and hashed directly from the mapped region, which is released as soon as the leaf is
+	 * hashed
+	 */
+	MAPPED,
+
+	/**
+	 * A dedicated reader thread reads the file into a bounded ring of leaf buffers, while the leaves are hashed on the
+	 * calling thread, or with the executor if one is set. This way reading and hashing overlap, even with a single
+	 * hashing thread
+	 */
+	PIPELINED,
+
+	/**
+	 * Each leaf is read with a positional read on a shared {@link java.nio.channels.FileChannel}, using 64 bit offsets.
+	 * With an executor, each worker claims the next leaf and reads it into its own buffer, so that different leaves of
+	 * the same file are read concurrently without sharing a stream position
+	 */
+	POSITIONAL;
+}
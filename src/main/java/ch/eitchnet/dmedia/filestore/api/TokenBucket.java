@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate at which bytes are read. Tokens are added at the configured rate up to the size of
+ * the bucket. A caller acquiring more tokens than are available takes them on credit and sleeps until the bucket has
+ * been refilled, so that callers reading whole leaves are limited to the configured average rate
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class TokenBucket {
+
+	private static final double NANOS_PER_SECOND = 1000000000d;
+
+	private final long bytesPerSecond;
+	private final long capacity;
+
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param bytesPerSecond
+	 *            the average rate in bytes per second
+	 * @param capacity
+	 *            the maximum number of bytes which may be read in a burst after being idle
+	 */
+	public TokenBucket(long bytesPerSecond, long capacity) {
+		if (bytesPerSecond <= 0)
+			throw new IllegalArgumentException("The rate must be positive: " + bytesPerSecond);
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		this.bytesPerSecond = bytesPerSecond;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * @return the average rate in bytes per second
+	 */
+	public long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	/**
+	 * @return the maximum number of bytes which may be read in a burst
+	 */
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Takes the given number of tokens from the bucket, sleeping until the bucket is no longer in debt
+	 * 
+	 * @param bytes
+	 *            the number of bytes to be read
+	 * 
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+		long waitNanos;
+		synchronized (this) {
+			long now = System.nanoTime();
+			this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.bytesPerSecond
+					/ NANOS_PER_SECOND);
+			this.lastRefill = now;
+			this.tokens -= bytes;
+			waitNanos = this.tokens < 0 ? (long) (-this.tokens * NANOS_PER_SECOND / this.bytesPerSecond) : 0;
+		}
+		if (waitNanos > 0)
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read only {@link SeekableByteChannel} on a stored file which only returns data after the leaf containing it has
+ * been hashed and compared to the expected leaf hash. Only the leaves covering the bytes read are hashed, so seeking
+ * into a large file costs one or two leaf hashes, not the whole file. The last verified leaf is kept, so that
+ * sequential reads hash each leaf only once
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+class VerifiedChannel implements SeekableByteChannel {
+
+	private final FileStore fileStore;
+	private final DmediaFile dmediaFile;
+	private final File file;
+	private final FileChannel channel;
+	private final long fileSize;
+
+	private byte[] leaf;
+	private int leafIndex;
+	private int leafLength;
+	private long position;
+
+	/**
+	 * @param fileStore
+	 *            the {@link FileStore} with which to hash the leaves
+	 * @param dmediaFile
+	 *            the expected file
+	 * @param file
+	 *            the file to read
+	 * 
+	 * @throws IOException
+	 */
+	VerifiedChannel(FileStore fileStore, DmediaFile dmediaFile, File file) throws IOException {
+		this.fileStore = fileStore;
+		this.dmediaFile = dmediaFile;
+		this.file = file;
+		this.fileSize = dmediaFile.getFileSize();
+		this.leafIndex = -1;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		if (this.channel.size() != this.fileSize) {
+			this.channel.close();
+			throw new FileStoreException("The file " + file.getAbsolutePath() + " does not have the expected size "
+					+ this.fileSize + " of " + dmediaFile.getRootHash());
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+		this.leaf = null;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!isOpen())
+			throw new ClosedChannelException();
+		if (this.position >= this.fileSize)
+			return -1;
+
+		int read = 0;
+		while (dst.hasRemaining() && this.position < this.fileSize) {
+			int index = (int) (this.position / FileStoreConstants.LEAF_SIZE);
+			if (index != this.leafIndex)
+				readLeaf(index);
+			int offset = (int) (this.position - (long) index * FileStoreConstants.LEAF_SIZE);
+			int length = Math.min(dst.remaining(), this.leafLength - offset);
+			dst.put(this.leaf, offset, length);
+			this.position += length;
+			read += length;
+		}
+		return read;
+	}
+
+	/**
+	 * Reads the complete leaf with the given index and verifies its hash, so that its data may be returned
+	 * 
+	 * @param index
+	 * @throws IOException
+	 */
+	private void readLeaf(int index) throws IOException {
+
+		// invalidate the current leaf, in case reading or verifying fails
+		this.leafIndex = -1;
+
+		long offset = (long) index * FileStoreConstants.LEAF_SIZE;
+		int length = (int) Math.min(FileStoreConstants.LEAF_SIZE, this.fileSize - offset);
+		if (this.leaf == null)
+			this.leaf = new byte[(int) Math.min(FileStoreConstants.LEAF_SIZE, this.fileSize)];
+
+		ByteBuffer buffer = ByteBuffer.wrap(this.leaf, 0, length);
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer, offset + buffer.position()) == -1)
+				throw new FileStoreException("The file " + this.file.getAbsolutePath() + " was truncated while reading");
+		}
+
+		byte[] digest = this.fileStore.digestLeaf(index, this.leaf, 0, length);
+		if (!this.dmediaFile.getLeafHashes().digestEquals(index, digest, 0)) {
+			String msg = String.format("Leaf %d of %s at %s is corrupt", index, this.dmediaFile.getRootHash(),
+					this.file.getAbsolutePath());
+			throw new FileStoreException(msg);
+		}
+
+		this.leafIndex = index;
+		this.leafLength = length;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long position() throws IOException {
+		if (!isOpen())
+			throw new ClosedChannelException();
+		return this.position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		if (newPosition < 0)
+			throw new IllegalArgumentException("The position may not be negative: " + newPosition);
+		if (!isOpen())
+			throw new ClosedChannelException();
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		if (!isOpen())
+			throw new ClosedChannelException();
+		return this.fileSize;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+}
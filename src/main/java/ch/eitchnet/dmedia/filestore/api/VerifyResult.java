@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * The result of verifying a file against its expected {@link DmediaFile}, see
+ * {@link FileStore#verify(File, DmediaFile, boolean)}
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class VerifyResult {
+
+	private final File file;
+	private final DmediaFile expected;
+	private final boolean sizeMismatch;
+	private final boolean rootMismatch;
+	private final int[] corruptLeaves;
+	private final int verifiedLeaves;
+
+	/**
+	 * @param file
+	 * @param expected
+	 * @param sizeMismatch
+	 * @param rootMismatch
+	 * @param corruptLeaves
+	 * @param verifiedLeaves
+	 */
+	public VerifyResult(File file, DmediaFile expected, boolean sizeMismatch, boolean rootMismatch,
+			int[] corruptLeaves, int verifiedLeaves) {
+		this.file = file;
+		this.expected = expected;
+		this.sizeMismatch = sizeMismatch;
+		this.rootMismatch = rootMismatch;
+		this.corruptLeaves = corruptLeaves.clone();
+		Arrays.sort(this.corruptLeaves);
+		this.verifiedLeaves = verifiedLeaves;
+	}
+
+	/**
+	 * @return true if the size and all leaves of the file match the expected file
+	 */
+	public boolean isValid() {
+		return !this.sizeMismatch && !this.rootMismatch && this.corruptLeaves.length == 0
+				&& this.verifiedLeaves == this.expected.getLeafCount();
+	}
+
+	/**
+	 * @return true if the file itself was found to differ from the expected file, i.e. it has a different size or
+	 *         corrupt leaves. This is false if the expected file is inconsistent, or if verifying was stopped before
+	 *         finding a corrupt leaf
+	 */
+	public boolean isCorrupt() {
+		return this.sizeMismatch || this.corruptLeaves.length > 0;
+	}
+
+	/**
+	 * @return the verified file
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * @return the expected file
+	 */
+	public DmediaFile getExpected() {
+		return this.expected;
+	}
+
+	/**
+	 * @return true if the file does not have the expected size, in which case no leaves were verified
+	 */
+	public boolean isSizeMismatch() {
+		return this.sizeMismatch;
+	}
+
+	/**
+	 * @return true if the expected leaf hashes do not result in the expected root hash, i.e. the expected file itself
+	 *         is inconsistent
+	 */
+	public boolean isRootMismatch() {
+		return this.rootMismatch;
+	}
+
+	/**
+	 * @return the indices of the leaves found to be corrupt, in ascending order
+	 */
+	public int[] getCorruptLeaves() {
+		return this.corruptLeaves.clone();
+	}
+
+	/**
+	 * @return the lowest index of the leaves found to be corrupt, or -1 if none were found
+	 */
+	public int getFirstCorruptLeaf() {
+		return this.corruptLeaves.length == 0 ? -1 : this.corruptLeaves[0];
+	}
+
+	/**
+	 * @return the number of leaves which were hashed and compared, which is less than the leaf count if verifying was
+	 *         stopped at the first corrupt leaf
+	 */
+	public int getVerifiedLeaves() {
+		return this.verifiedLeaves;
+	}
+
+	@Override
+	public String toString() {
+		if (isValid())
+			return "File " + this.file + " is valid";
+		if (this.sizeMismatch)
+			return "File " + this.file + " does not have the expected size " + this.expected.getFileSize();
+		if (this.rootMismatch)
+			return "The leaves of " + this.expected.getRootHash() + " do not match its root hash";
+		return "File " + this.file + " has corrupt leaves " + Arrays.toString(this.corruptLeaves) + " after verifying "
+				+ this.verifiedLeaves + " of " + this.expected.getLeafCount() + " leaves";
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the XXX.
+ *
+ *  XXX is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  XXX is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with XXX.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package ch.eitchnet.dmedia.filestore.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the root hash of a file in its extended attributes, so that a file can be identified again without
+ * reading it. On Linux the attributes are in the <code>user.</code> namespace:
+ * 
+ * <ul>
+ * <li><code>user.dmedia.root</code>: the root hash, the leaf count and the stamp, i.e. the size and the modification
+ * time in nanoseconds of the file when it was hashed, separated by spaces</li>
+ * <li><code>user.dmedia.leaves</code>: the binary leaf digests, only written if they are at most
+ * {@link #MAX_LEAVES_SIZE} bytes, as file systems limit the size of extended attributes</li>
+ * </ul>
+ * 
+ * The attributes are only valid as long as the size and modification time of the file match the stamp, and the leaf
+ * digests only if they hash to the root hash. If the file system does not support extended attributes, nothing is
+ * written and nothing is found
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class XattrHelper {
+
+	private static final Logger logger = LoggerFactory.getLogger(XattrHelper.class);
+
+	public static final String ATTR_ROOT = "dmedia.root";
+	public static final String ATTR_LEAVES = "dmedia.leaves";
+
+	/**
+	 * The maximum size of the leaf digests written to {@link #ATTR_LEAVES}, so that all attributes fit into a single
+	 * 4 KiB block as required by ext4
+	 */
+	public static final int MAX_LEAVES_SIZE = 2048;
+
+	private static final int MAX_ROOT_SIZE = 256;
+
+	/**
+	 * Writes the attributes of the given hashed file
+	 * 
+	 * @param file
+	 *            the file to write the attributes to
+	 * @param dmediaFile
+	 *            the hashed file
+	 * @return true if the attributes were written, false if the file system does not support extended attributes or
+	 *         the file changed since it was hashed
+	 */
+	public static boolean write(File file, DmediaFile dmediaFile) {
+		return write(file, dmediaFile, -1);
+	}
+
+	/**
+	 * Writes the attributes of the given hashed file, if the file was not modified since it was hashed
+	 * 
+	 * @param file
+	 *            the file to write the attributes to
+	 * @param dmediaFile
+	 *            the hashed file
+	 * @param mtimeNanos
+	 *            the modification time in nanoseconds of the file before it was hashed, or -1 if unknown
+	 * @return true if the attributes were written, false if the file system does not support extended attributes or
+	 *         the file changed since it was hashed
+	 */
+	public static boolean write(File file, DmediaFile dmediaFile, long mtimeNanos) {
+		Path path = file.toPath();
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+		if (view == null)
+			return false;
+
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			long mtime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+			if (attributes.size() != dmediaFile.getFileSize() || (mtimeNanos != -1 && mtime != mtimeNanos))
+				return false;
+
+			LeafHashes leafHashes = dmediaFile.getLeafHashes();
+			int leavesSize = leafHashes.size() * leafHashes.getDigestBytes();
+			if (leavesSize <= MAX_LEAVES_SIZE) {
+				byte[] leaves = new byte[leavesSize];
+				for (int i = 0; i < leafHashes.size(); i++) {
+					leafHashes.getDigest(i, leaves, i * leafHashes.getDigestBytes());
+				}
+				view.write(ATTR_LEAVES, ByteBuffer.wrap(leaves));
+			} else if (view.list().contains(ATTR_LEAVES)) {
+				view.delete(ATTR_LEAVES);
+			}
+
+			// the root is written last, as it validates the leaves
+			String root = dmediaFile.getRootHash() + " " + leafHashes.size() + " " + attributes.size() + " "
+					+ mtime;
+			view.write(ATTR_ROOT, ByteBuffer.wrap(root.getBytes(StandardCharsets.US_ASCII)));
+			return true;
+
+		} catch (IOException | UnsupportedOperationException e) {
+			logger.debug("Could not write extended attributes to " + file.getAbsolutePath() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return the root ID of the file, or null if it has no valid attributes
+	 */
+	public static DmediaId readRootId(File file) {
+		String[] root = readRoot(file);
+		return root == null ? null : DmediaId.parse(root[0]);
+	}
+
+	/**
+	 * @param file
+	 * @param fileStore
+	 *            the {@link FileStore} which wrote the attributes, used to verify the leaf digests against the root hash
+	 * @return the {@link DmediaFile} of the file if it has valid attributes including its leaf digests, otherwise null
+	 */
+	public static DmediaFile read(File file, FileStore fileStore) {
+		String[] root = readRoot(file);
+		if (root == null)
+			return null;
+
+		String rootHash = root[0];
+		int leafCount = Integer.parseInt(root[1]);
+		long fileSize = Long.parseLong(root[2]);
+		int digestBytes = Dbase32.decodedLength(rootHash.length());
+		int leavesSize = leafCount * digestBytes;
+		if (leavesSize > MAX_LEAVES_SIZE || leafCount != (fileSize - 1) / FileStoreConstants.LEAF_SIZE + 1)
+			return null;
+
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+				UserDefinedFileAttributeView.class);
+		try {
+			ByteBuffer leaves = ByteBuffer.allocate(leavesSize + 1);
+			if (view.read(ATTR_LEAVES, leaves) != leavesSize)
+				return null;
+
+			LeafHashes leafHashes = new LeafHashes(leafCount, digestBytes);
+			for (int i = 0; i < leafCount; i++) {
+				leafHashes.setDigest(i, leaves.array(), i * digestBytes);
+			}
+
+			// the attributes can be changed by anyone who can write the file, so the leaves are only trusted if they
+			// hash to the root
+			if (!fileStore.hashRoot(fileSize, leafHashes).equals(rootHash))
+				return null;
+			return new DmediaFile(file.getAbsolutePath(), fileSize, rootHash, leafHashes);
+
+		} catch (IOException | UnsupportedOperationException | FileStoreException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the fields of the root attribute if it exists, is well formed and its stamp matches the file
+	 */
+	private static String[] readRoot(File file) {
+		Path path = file.toPath();
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+		if (view == null)
+			return null;
+
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(MAX_ROOT_SIZE);
+			int read = view.read(ATTR_ROOT, buffer);
+			String[] root = new String(buffer.array(), 0, read, StandardCharsets.US_ASCII).split(" ");
+			if (root.length != 4 || !Dbase32.isDb32Id(root[0])
+					|| Dbase32.decodedLength(root[0].length()) > DmediaId.MAX_LENGTH)
+				return null;
+
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			if (attributes.size() != Long.parseLong(root[2])
+					|| attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) != Long.parseLong(root[3]))
+				return null;
+
+			Integer.parseInt(root[1]);
+			return root;
+
+		} catch (IOException | UnsupportedOperationException | NumberFormatException e) {
+			// no attribute, no support for extended attributes, or a malformed attribute
+			return null;
+		}
+	}
+}
@@ -8,24 +8,33 @@
  */
 package nl.warper.skein;
 
-import nl.warper.threefish.ThreefishImpl;
+import java.nio.ByteBuffer;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import nl.warper.threefish.Threefish512;
+import nl.warper.threefish.ThreefishImpl;
 
 /**
  * The main class for the Skein hash algorithm by Niels Ferguson, Stefan Lucks, Bruce Schneier, Doug Whiting, Mihir
  * Bellare, Tadayoshi Kohno, Jon Callas and Jesse Walker.
  * 
+ * <p>
+ * The message can either be hashed in one go using {@link #doSkein(byte[])}, or incrementally using the
+ * {@link #update(byte[], int, int)}, {@link #update(ByteBuffer)} and {@link #digest(byte[], int)} methods. When
+ * hashing incrementally, at most one block of the message is buffered internally, as the last block can only be
+ * processed once it is known that no more data follows
+ * </p>
+ * 
+ * <p>
+ * This class is <strong>not thread safe</strong>
+ * </p>
+ * 
  * @since 4 nov 2008
  * @author Maarten Bodewes
  * @author Robert von Burg - simplified API so that using the full skein implementation is easier and there is only one
- *         method to perform the Skein Hash
+ *         method to perform the Skein Hash. Added the incremental API
  */
 public class Skein {
 
-	private static final Logger logger = LoggerFactory.getLogger(Skein.class);
-
 	// input data
 	private final int blockSize;
 	private final int blockSizeBytes;
@@ -38,7 +47,19 @@ public class Skein {
 	private byte[] kdf;
 	private byte[] nonce;
 
-	private Ubi64 ubi;
+	// cipher and chaining
+	private final ThreefishImpl threefish;
+	private final Ubi64 ubi;
+
+	// chaining value after processing the configuration, null if it must be (re)calculated
+	private long[] initialChain;
+
+	// message state, preallocated so that processing a block does not allocate any memory
+	private final byte[] blockBuffer;
+	private final long[] blockWords;
+	private final long[] outputChain;
+	private int bufferPos;
+	private long bytesProcessed;
 
 	/**
 	 * @param blockSize
@@ -53,6 +74,12 @@ public class Skein {
 		this.blockSize = blockSize;
 		this.blockSizeBytes = blockSize / Byte.SIZE;
 		this.outputSize = outputSize;
+
+		this.threefish = createBlockCipher();
+		this.ubi = new Ubi64(this.threefish);
+		this.blockBuffer = new byte[this.blockSizeBytes];
+		this.blockWords = new long[this.blockSizeBytes / SkeinUtil.BYTES_IN_LONG];
+		this.outputChain = new long[this.blockWords.length];
 	}
 
 	/**
@@ -61,6 +88,7 @@ public class Skein {
 	 */
 	public void setKey(byte[] key) {
 		this.key = key;
+		this.initialChain = null;
 	}
 
 	/**
@@ -69,6 +97,7 @@ public class Skein {
 	 */
 	public void setPersonalization(byte[] personalization) {
 		this.pers = personalization;
+		this.initialChain = null;
 	}
 
 	/**
@@ -77,6 +106,7 @@ public class Skein {
 	 */
 	public void setPk(byte[] pk) {
 		this.pk = pk;
+		this.initialChain = null;
 	}
 
 	/**
@@ -85,6 +115,7 @@ public class Skein {
 	 */
 	public void setKdf(byte[] kdf) {
 		this.kdf = kdf;
+		this.initialChain = null;
 	}
 
 	/**
@@ -93,145 +124,336 @@ public class Skein {
 	 */
 	public void setNonce(byte[] nonce) {
 		this.nonce = nonce;
+		this.initialChain = null;
+	}
+
+	/**
+	 * @return the size of the digest in bytes
+	 */
+	public int getDigestSizeBytes() {
+		return this.outputSize / Byte.SIZE;
+	}
+
+	/**
+	 * Creates the Threefish block cipher for the configured block size. Skein-512 uses the unrolled
+	 * {@link Threefish512} implementation, all other block sizes use the generic {@link ThreefishImpl}
+	 * 
+	 * @return the block cipher to use in the UBI chaining
+	 */
+	private ThreefishImpl createBlockCipher() {
+		if (this.blockSize == ThreefishImpl.BLOCK_SIZE_BITS_512)
+			return new Threefish512();
+		return new ThreefishImpl(this.blockSize);
 	}
 
 	/**
-	 * Updates the internal state of the UBI
+	 * Processes the current content of the block buffer as one block of the UBI chaining
 	 * 
-	 * @param ubi
-	 * @param blockBuffer
 	 * @param last
 	 * @param first
 	 * @param type
-	 * @param data
-	 * @param offset
-	 * @param count
+	 * @param position
+	 *            the number of bytes processed so far for this type, including the bytes in this block
 	 */
-	private void update(byte[] blockBuffer, boolean last, boolean first, int type, byte[] data, int offset, int count) {
+	private void processBlock(boolean last, boolean first, int type, long position) {
 
-		final int available = data.length - offset;
-		final int toblock = Math.min(blockBuffer.length, available);
-		System.arraycopy(data, offset, blockBuffer, 0, toblock);
+		SkeinUtil.lsbBytesToArrayOfLong(this.blockBuffer, 0, this.blockWords);
+		this.ubi.update(this.blockWords, position, SkeinTweak.getT1(last, first, type));
+	}
 
-		// pad block itself (not the bits)
-		if (toblock != blockBuffer.length) {
-			for (int i = toblock; i < blockBuffer.length; i++) {
-				blockBuffer[i] = 0;
-			}
-		}
+	/**
+	 * Performs a complete UBI with the given data, e.g. the key or the personalization
+	 * 
+	 * @param type
+	 * @param data
+	 */
+	private void processUbi(int type, byte[] data) {
 
-		long[] blockWords = SkeinUtil.lsbBytesToArrayOfLong(blockBuffer);
+		int offset = 0;
+		do {
+			int toblock = Math.min(this.blockSizeBytes, data.length - offset);
+			System.arraycopy(data, offset, this.blockBuffer, 0, toblock);
 
-		SkeinTweak tweak = new SkeinTweak(last, first, type, false, 0, count);
+			// pad block itself (not the bits)
+			for (int i = toblock; i < this.blockSizeBytes; i++) {
+				this.blockBuffer[i] = 0;
+			}
 
-		// update UBI with configuration
-		//System.out.println("full update: "+blockWords+" "+tweak.getT0()+" "+tweak.getT1());
-		this.ubi.update(blockWords, new long[] { tweak.getT0(), tweak.getT1() });
+			processBlock(offset + toblock == data.length, offset == 0, type, offset + toblock);
+			offset += toblock;
+		} while (offset < data.length);
 	}
 
 	/**
-	 * Performs the actual Skein hash with the given input message
+	 * Performs a UBI with only the first block of the given data, while the tweak still holds the length of all the
+	 * data. This is how the personalization has always been processed, and it is kept so that the IDs of FileStores
+	 * with a personalization longer than the block size, e.g. 256 bit blocks, stay the same
 	 * 
-	 * @param message
-	 *            the data to hash
-	 * 
-	 * @return the digest result
+	 * @param type
+	 * @param data
 	 */
-	public byte[] doSkein(final byte[] message) {
-		if (message == null) {
-			throw new IllegalArgumentException("Please provide a message, even one of 0 bytes to process");
+	private void processFirstBlockUbi(int type, byte[] data) {
+
+		int toblock = Math.min(this.blockSizeBytes, data.length);
+		System.arraycopy(data, 0, this.blockBuffer, 0, toblock);
+
+		// pad block itself (not the bits)
+		for (int i = toblock; i < this.blockSizeBytes; i++) {
+			this.blockBuffer[i] = 0;
 		}
 
-		// create buffer
-		byte[] blockBuffer = new byte[this.blockSizeBytes];
+		processBlock(true, true, type, data.length);
+	}
+
+	/**
+	 * Calculates the chaining value after the key, the other optional parameters and the configuration have been
+	 * processed. This value is the same for every message hashed with this configuration
+	 */
+	private void initChain() {
 
-		// create cipher with UBI
-		ThreefishImpl threefish = new ThreefishImpl(this.blockSize);
-		this.ubi = new Ubi64(threefish);
 		this.ubi.init();
 
-		if (this.key != null) {
-			update(blockBuffer, true, true, SkeinConstants.T_KEY, this.key, 0, this.key.length);
+		// an empty key is the same as no key
+		if (this.key != null && this.key.length != 0) {
+			processUbi(SkeinConstants.T_KEY, this.key);
 		}
 
+		// only the first block of the personalization is used, see processFirstBlockUbi
 		if (this.pers != null) {
-			update(blockBuffer, true, true, SkeinConstants.T_PRS, this.pers, 0, this.pers.length);
+			processFirstBlockUbi(SkeinConstants.T_PRS, this.pers);
 		}
 
 		if (this.pk != null) {
-			update(blockBuffer, true, true, SkeinConstants.T_PK, this.pk, 0, this.pk.length);
+			processUbi(SkeinConstants.T_PK, this.pk);
 		}
 
 		if (this.kdf != null) {
-			update(blockBuffer, true, true, SkeinConstants.T_KDF, this.kdf, 0, this.kdf.length);
+			processUbi(SkeinConstants.T_KDF, this.kdf);
 		}
 
 		if (this.nonce != null) {
-			update(blockBuffer, true, true, SkeinConstants.T_NON, this.nonce, 0, this.nonce.length);
+			processUbi(SkeinConstants.T_NON, this.nonce);
 		}
 
-		// create tweak for configuration
-		// used configEncoding.length, but it seems the entire block should 
-		// be in the tweak value (???) -> see question on site
+		// the configuration is processed last, so that existing digests stay the same
 		SkeinConfiguration config = new SkeinConfiguration(this.outputSize, 0, 0, 0);
-		byte[] configEncoding = config.getEncoded();
-		update(blockBuffer, true, true, SkeinConstants.T_CFG, configEncoding, 0, configEncoding.length);
+		processUbi(SkeinConstants.T_CFG, config.getEncoded());
 
-		// padded automatically, block is still filled with 00h values
-		// System.arraycopy(configEncoding, 0, blockBuffer, 0, configEncoding.length);
+		this.initialChain = this.ubi.getOutput();
+	}
 
-		// process message in blocks
-		int bytesProcessed = 0;
-		while (bytesProcessed < message.length) {
-			int available = message.length - bytesProcessed;
-			int toblock = Math.min(blockBuffer.length, available);
-			//System.out.println("full tweak: "+(bytesProcessed+toblock)+" "+message.length);
-			update(blockBuffer, bytesProcessed + toblock == message.length,
-					bytesProcessed + toblock <= this.blockSizeBytes, SkeinConstants.T_MSG, message, bytesProcessed,
-					bytesProcessed + toblock);
-			bytesProcessed += toblock;
+	/**
+	 * Returns the chaining value after the key, the other optional parameters and the configuration have been
+	 * processed, i.e. the state just before the message. It can be passed to {@link #setInitialChainingValue(long[])}
+	 * of another instance with the same parameters to skip their processing
+	 * 
+	 * @return a copy of the initial chaining value
+	 */
+	public long[] getInitialChainingValue() {
+		if (this.initialChain == null)
+			reset();
+		return this.initialChain.clone();
+	}
+
+	/**
+	 * Sets the chaining value as returned by {@link #getInitialChainingValue()} so that the key, the other optional
+	 * parameters and the configuration need not be processed again. Any message data already added is discarded
+	 * 
+	 * @param initialChain
+	 *            the initial chaining value to start hashing messages from
+	 */
+	public void setInitialChainingValue(long[] initialChain) {
+		final int nb = this.blockSize / Long.SIZE;
+		if (initialChain == null || initialChain.length != nb) {
+			throw new IllegalArgumentException("The initial chaining value must be an array of " + nb + " longs");
 		}
 
-		final int outputBlocks = (this.outputSize - 1) / this.blockSize + 1;
+		this.initialChain = initialChain.clone();
+		reset();
+	}
 
-		// create a new set of longs of the same size (terrible hack, but whatever)
-		long[] blockWords = SkeinUtil.lsbBytesToArrayOfLong(blockBuffer);
-		long[] inputForOutput = new long[blockWords.length];
-		for (int i = 0; i < outputBlocks; i++) {
-			// create input for the OUTPUT function
-			inputForOutput[0] = i;
+	/**
+	 * Resets this instance so that a new message can be hashed. The key and other parameters are kept
+	 */
+	public void reset() {
+		if (this.initialChain == null)
+			initChain();
+		else
+			this.ubi.setChainingValue(this.initialChain);
+
+		this.bufferPos = 0;
+		this.bytesProcessed = 0;
+	}
+
+	/**
+	 * Makes sure the configuration has been processed before message data is handled
+	 */
+	private void ensureInitialized() {
+		if (this.initialChain == null)
+			reset();
+	}
 
-			SkeinTweak tweak = new SkeinTweak(i == outputBlocks - 1, i == 0, SkeinConstants.T_OUT, false, 0, 8);
-			this.ubi.update(inputForOutput, new long[] { tweak.getT0(), tweak.getT1() });
+	/**
+	 * Processes the buffered block if it is full. This is only done when more message data is available, as the last
+	 * block of the message must be processed with the final flag set
+	 */
+	private void flushFullBlock() {
+		if (this.bufferPos == this.blockSizeBytes) {
+			this.bytesProcessed += this.blockSizeBytes;
+			processBlock(false, this.bytesProcessed == this.blockSizeBytes, SkeinConstants.T_MSG, this.bytesProcessed);
+			this.bufferPos = 0;
+		}
+	}
+
+	/**
+	 * Adds the given part of the message to the hash
+	 * 
+	 * @param data
+	 *            the message data
+	 * @param offset
+	 *            the offset in the data from where to start
+	 * @param length
+	 *            the number of bytes to process
+	 */
+	public void update(final byte[] data, int offset, int length) {
+		if (data == null) {
+			throw new IllegalArgumentException("Please provide some data to process");
+		}
+		if (offset < 0 || length < 0 || offset + length > data.length) {
+			String msg = String.format("Invalid offset %d and length %d for data of length %d", offset, length,
+					data.length);
+			throw new IllegalArgumentException(msg);
+		}
+
+		ensureInitialized();
+
+		while (length > 0) {
+			flushFullBlock();
+
+			int toblock = Math.min(this.blockSizeBytes - this.bufferPos, length);
+			System.arraycopy(data, offset, this.blockBuffer, this.bufferPos, toblock);
+			this.bufferPos += toblock;
+			offset += toblock;
+			length -= toblock;
+		}
+	}
+
+	/**
+	 * Adds the given message data to the hash
+	 * 
+	 * @param data
+	 *            the message data
+	 */
+	public void update(final byte[] data) {
+		update(data, 0, data.length);
+	}
+
+	/**
+	 * Adds the remaining bytes of the given buffer to the hash. Upon return the position of the buffer is set to its
+	 * limit
+	 * 
+	 * @param data
+	 *            the message data
+	 */
+	public void update(final ByteBuffer data) {
+		if (data == null) {
+			throw new IllegalArgumentException("Please provide some data to process");
+		}
+
+		ensureInitialized();
+
+		while (data.hasRemaining()) {
+			flushFullBlock();
+
+			int toblock = Math.min(this.blockSizeBytes - this.bufferPos, data.remaining());
+			data.get(this.blockBuffer, this.bufferPos, toblock);
+			this.bufferPos += toblock;
+		}
+	}
+
+	/**
+	 * Finishes the hash and writes the digest to the given array. Afterwards this instance is reset so that a new
+	 * message can be hashed
+	 * 
+	 * @param out
+	 *            the array to write the digest to
+	 * @param offset
+	 *            the offset in the array from where to write the digest
+	 * 
+	 * @return the number of bytes written
+	 */
+	public int digest(final byte[] out, final int offset) {
+		final int outputSizeBytes = this.outputSize / Byte.SIZE;
+		if (out == null || offset < 0 || offset + outputSizeBytes > out.length) {
+			throw new IllegalArgumentException("The output array must have room for " + outputSizeBytes + " bytes");
 		}
 
-		final long[] outputWords = this.ubi.getOutput();
+		ensureInitialized();
 
-		final byte[] output = SkeinUtil.lsbArrayOfLongToBytes(outputWords);
+		// process the last block, which is zero padded and might also be the first and empty
+		for (int i = this.bufferPos; i < this.blockSizeBytes; i++) {
+			this.blockBuffer[i] = 0;
+		}
+		boolean first = this.bytesProcessed == 0;
+		this.bytesProcessed += this.bufferPos;
+		processBlock(true, first, SkeinConstants.T_MSG, this.bytesProcessed);
 
-		// TODO This is a hack because for some reason the digest is the size of the blockSize
-		// and not the digest. Needs debugging...
-		int outputSizeBytes = this.outputSize / 8;
-		if (output.length == outputSizeBytes) {
-			return output;
-		} else if (output.length < outputSizeBytes) {
+		// the output function uses the chaining value as key for each output block
+		final long[] chain = this.outputChain;
+		this.ubi.getOutput(chain);
+		final int outputBlocks = (this.outputSize - 1) / this.blockSize + 1;
+		int written = 0;
+		for (int i = 0; i < outputBlocks; i++) {
 
-			String msg = String.format(
-					"Hashing error: Expected digest size is %d bytes (%d bits), but it is %d bytes (%d bits)",
-					outputSizeBytes, this.outputSize, output.length, (output.length * 8));
-			//throw new SkeinException(msg);
-			logger.warn(msg);
-			return output;
+			// create input for the OUTPUT function, which is the block counter
+			for (int j = 0; j < this.blockSizeBytes; j++) {
+				this.blockBuffer[j] = 0;
+			}
+			long counter = i;
+			for (int j = 0; j < SkeinUtil.BYTES_IN_LONG; j++) {
+				this.blockBuffer[j] = (byte) (counter >>> (j * Byte.SIZE));
+			}
+
+			this.ubi.setChainingValue(chain);
+			processBlock(true, true, SkeinConstants.T_OUT, SkeinUtil.BYTES_IN_LONG);
+
+			this.ubi.getOutput(this.blockWords);
+			int toCopy = Math.min(this.blockSizeBytes, outputSizeBytes - written);
+			SkeinUtil.lsbArrayOfLongToBytes(this.blockWords, out, offset + written, toCopy);
+			written += toCopy;
 		}
 
-		String warn = String
-				.format("Hash warning: Expected digest size is %d bytes (%d bits), but it is %d bytes (%d bits). Trimming digest as it is larger.",
-						outputSizeBytes, this.outputSize, output.length, (output.length * 8));
-		Skein.logger.warn(warn);
+		reset();
+
+		return written;
+	}
+
+	/**
+	 * Finishes the hash and returns the digest. Afterwards this instance is reset so that a new message can be hashed
+	 * 
+	 * @return the digest result
+	 */
+	public byte[] digest() {
+		byte[] digest = new byte[this.outputSize / Byte.SIZE];
+		digest(digest, 0);
+		return digest;
+	}
+
+	/**
+	 * Performs the actual Skein hash with the given input message
+	 * 
+	 * @param message
+	 *            the data to hash
+	 * 
+	 * @return the digest result
+	 */
+	public byte[] doSkein(final byte[] message) {
+		if (message == null) {
+			throw new IllegalArgumentException("Please provide a message, even one of 0 bytes to process");
+		}
 
-		// so we trim it, if it is larger (this seems to work as a workaround)
-		byte[] trimmed = new byte[this.outputSize / 8];
-		System.arraycopy(output, 0, trimmed, 0, trimmed.length);
-		return trimmed;
+		reset();
+		update(message, 0, message.length);
+		return digest();
 	}
 }
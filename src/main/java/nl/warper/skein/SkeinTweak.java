@@ -23,6 +23,30 @@ public class SkeinTweak {
 	private final long t0;
 	private final long t1;
 
+	/**
+	 * Calculates the high tweak word T1 for the given fields, for the range of positions [0..2^64-1]. This is used on
+	 * the hot path, where no {@link SkeinTweak} should be created for every block
+	 * 
+	 * @param isFinal
+	 *            indicates this is the tweak value of the final block to be processed
+	 * @param isFirst
+	 *            indicates this is the tweak value of the fist block to be processed
+	 * @param type
+	 *            the type contained in the block
+	 * 
+	 * @return the high tweak word T1
+	 */
+	public static long getT1(final boolean isFinal, final boolean isFirst, final int type) {
+		long highTweak = ((long) type) << SkeinConstants.TYPE_LOCATION_IN_T1;
+		if (isFinal) {
+			highTweak |= 1L << SkeinConstants.FINAL_LOCATION_IN_T1;
+		}
+		if (isFirst) {
+			highTweak |= 1L << SkeinConstants.FIRST_LOCATION_IN_T1;
+		}
+		return highTweak;
+	}
+
 	/**
 	 * Convenience constructor that works for values in the range [0..2^64-1], encoded in the long parameter position as
 	 * an unsigned value.
@@ -61,6 +61,48 @@ public final class SkeinUtil {
 		return la;
 	}
 
+	/**
+	 * Converts the bytes starting at the given offset into the given array of longs, without allocating any memory
+	 * 
+	 * @param ba
+	 *            the bytes to convert
+	 * @param offset
+	 *            the offset of the first byte
+	 * @param la
+	 *            the array to fill, la.length * 8 bytes are converted
+	 */
+	public static void lsbBytesToArrayOfLong(final byte[] ba, final int offset, final long[] la) {
+		for (int i = 0; i < la.length; i++) {
+			final int pos = offset + i * BYTES_IN_LONG;
+			la[i] = (ba[pos] & 0xFFL) //
+					| (ba[pos + 1] & 0xFFL) << 8 //
+					| (ba[pos + 2] & 0xFFL) << 16 //
+					| (ba[pos + 3] & 0xFFL) << 24 //
+					| (ba[pos + 4] & 0xFFL) << 32 //
+					| (ba[pos + 5] & 0xFFL) << 40 //
+					| (ba[pos + 6] & 0xFFL) << 48 //
+					| (ba[pos + 7] & 0xFFL) << 56;
+		}
+	}
+
+	/**
+	 * Converts the longs into the given byte array starting at the given offset, without allocating any memory
+	 * 
+	 * @param la
+	 *            the longs to convert
+	 * @param ba
+	 *            the array to write to
+	 * @param offset
+	 *            the offset of the first byte to write
+	 * @param length
+	 *            the number of bytes to write, at most la.length * 8
+	 */
+	public static void lsbArrayOfLongToBytes(final long[] la, final byte[] ba, final int offset, final int length) {
+		for (int i = 0; i < length; i++) {
+			ba[offset + i] = (byte) (la[i / BYTES_IN_LONG] >>> ((i % BYTES_IN_LONG) * Byte.SIZE));
+		}
+	}
+
 	public static byte[] lsbArrayOfLongToBytes(final long[] la) {
 		if (la == null) {
 			throw new IllegalArgumentException("Whoops");
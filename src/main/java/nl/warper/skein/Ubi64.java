@@ -9,7 +9,6 @@
 package nl.warper.skein;
 
 import nl.warper.threefish.ThreefishImpl;
-import nl.warper.threefish.ThreefishSecretKey;
 
 /**
  * Implementation of the UBI function that can be used to chain the three parts of the Skein hash algorithm together.
@@ -60,8 +59,37 @@ public class Ubi64 {
 		this.hi = new long[nb]; // set H{0} to all zero's
 	}
 
+	/**
+	 * Sets the intermediate result to a copy of the given chaining value, reusing the existing state array
+	 * 
+	 * @param g
+	 *            the chaining value to continue from
+	 */
+	public void setChainingValue(final long[] g) {
+		if (this.hi == null || this.hi.length != g.length) {
+			init(g.clone());
+		} else {
+			System.arraycopy(g, 0, this.hi, 0, g.length);
+		}
+	}
+
 	public void update(long[] mi, long[] ti) {
-		this.blockCipher.init(new ThreefishSecretKey(this.hi), ti);
+		update(mi, ti[0], ti[1]);
+	}
+
+	/**
+	 * Processes one block. The intermediate result is used as key directly and is then replaced with the result, so
+	 * that no memory is allocated
+	 * 
+	 * @param mi
+	 *            the message block
+	 * @param t0
+	 *            the low tweak word
+	 * @param t1
+	 *            the high tweak word
+	 */
+	public void update(long[] mi, long t0, long t1) {
+		this.blockCipher.init(this.hi, t0, t1);
 		this.blockCipher.blockEncrypt(mi, this.hi);
 		for (int i = 0; i < this.hi.length; i++) {
 			this.hi[i] ^= mi[i];
@@ -72,6 +100,14 @@ public class Ubi64 {
 		return this.hi.clone();
 	}
 
+	/**
+	 * @param output
+	 *            the array to copy the intermediate result to
+	 */
+	public void getOutput(long[] output) {
+		System.arraycopy(this.hi, 0, output, 0, this.hi.length);
+	}
+
 	@Override
 	public String toString() {
 		return String.format(" --- UBI state ---%n") + SkeinUtil.tohex(this.hi);
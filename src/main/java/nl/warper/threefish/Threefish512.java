@@ -0,0 +1,928 @@
+/*
+ * Copyright (c) 2012, Robert von Burg
+ *
+ * All rights reserved.
+ *
+ * This file is part of the nl.warper.skein.
+ *
+ *  nl.warper.skein is free software: you can redistribute 
+ *  it and/or modify it under the terms of the GNU General Public License as 
+ *  published by the Free Software Foundation, either version 3 of the License, 
+ *  or (at your option) any later version.
+ *
+ *  nl.warper.skein is distributed in the hope that it will 
+ *  be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with nl.warper.skein.  If not, see 
+ *  <http://www.gnu.org/licenses/>.
+ */
+package nl.warper.threefish;
+
+/**
+ * Specialized implementation of Threefish-512 used on the hot path of Skein-512. All 72 rounds are unrolled, the
+ * rotation constants and the word permutation are hard coded and the state is kept in local variables, so that no
+ * arrays are accessed and nothing is logged while encrypting a block.
+ * 
+ * <p>
+ * Encryption must be bit-exact with {@link ThreefishImpl} for a block size of 512 bits. Decryption is not on the hot
+ * path and is delegated to the generic implementation
+ * </p>
+ * 
+ * <p>
+ * As with {@link ThreefishImpl}, this class is <strong>not thread safe</strong>
+ * </p>
+ * 
+ * @author Robert von Burg <eitch@eitchnet.ch>
+ */
+public class Threefish512 extends ThreefishImpl {
+
+	private static final long EXTENDED_KEY_SCHEDULE_CONST = 0x1BD11BDAA9FC1A22L;
+
+	// key words including k8
+	private long k0, k1, k2, k3, k4, k5, k6, k7, k8;
+
+	// tweak words including t2
+	private long t0, t1, t2;
+
+	/**
+	 * Constructs a Threefish-512 implementation with the default of 72 rounds
+	 */
+	public Threefish512() {
+		super(BLOCK_SIZE_BITS_512);
+	}
+
+	@Override
+	public void init(final long[] key, final long[] tweak) {
+		init(key, tweak[0], tweak[1]);
+	}
+
+	@Override
+	public void init(final long[] key, final long tweak0, final long tweak1) {
+		if (key.length != 8) {
+			throw new IllegalArgumentException("Threefish-512 requires a key of 8 words, but got " + key.length);
+		}
+		this.k0 = key[0];
+		this.k1 = key[1];
+		this.k2 = key[2];
+		this.k3 = key[3];
+		this.k4 = key[4];
+		this.k5 = key[5];
+		this.k6 = key[6];
+		this.k7 = key[7];
+		this.k8 = EXTENDED_KEY_SCHEDULE_CONST ^ this.k0 ^ this.k1 ^ this.k2 ^ this.k3 ^ this.k4 ^ this.k5 ^ this.k6
+				^ this.k7;
+
+		this.t0 = tweak0;
+		this.t1 = tweak1;
+		this.t2 = tweak0 ^ tweak1;
+	}
+
+	@Override
+	public void blockEncrypt(final long[] p, final long[] c) {
+
+		final long k0 = this.k0, k1 = this.k1, k2 = this.k2, k3 = this.k3, k4 = this.k4;
+		final long k5 = this.k5, k6 = this.k6, k7 = this.k7, k8 = this.k8;
+		final long t0 = this.t0, t1 = this.t1, t2 = this.t2;
+
+		long b0 = p[0], b1 = p[1], b2 = p[2], b3 = p[3], b4 = p[4], b5 = p[5], b6 = p[6], b7 = p[7];
+
+		// key injection s = 0
+		b0 += k0;
+		b1 += k1;
+		b2 += k2;
+		b3 += k3;
+		b4 += k4;
+		b5 += k5 + t0;
+		b6 += k6 + t1;
+		b7 += k7;
+		// round 0
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 1
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 2
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 3
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 1
+		b0 += k1;
+		b1 += k2;
+		b2 += k3;
+		b3 += k4;
+		b4 += k5;
+		b5 += k6 + t1;
+		b6 += k7 + t2;
+		b7 += k8 + 1L;
+		// round 4
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 5
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 6
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 7
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 2
+		b0 += k2;
+		b1 += k3;
+		b2 += k4;
+		b3 += k5;
+		b4 += k6;
+		b5 += k7 + t2;
+		b6 += k8 + t0;
+		b7 += k0 + 2L;
+		// round 8
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 9
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 10
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 11
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 3
+		b0 += k3;
+		b1 += k4;
+		b2 += k5;
+		b3 += k6;
+		b4 += k7;
+		b5 += k8 + t0;
+		b6 += k0 + t1;
+		b7 += k1 + 3L;
+		// round 12
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 13
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 14
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 15
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 4
+		b0 += k4;
+		b1 += k5;
+		b2 += k6;
+		b3 += k7;
+		b4 += k8;
+		b5 += k0 + t1;
+		b6 += k1 + t2;
+		b7 += k2 + 4L;
+		// round 16
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 17
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 18
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 19
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 5
+		b0 += k5;
+		b1 += k6;
+		b2 += k7;
+		b3 += k8;
+		b4 += k0;
+		b5 += k1 + t2;
+		b6 += k2 + t0;
+		b7 += k3 + 5L;
+		// round 20
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 21
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 22
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 23
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 6
+		b0 += k6;
+		b1 += k7;
+		b2 += k8;
+		b3 += k0;
+		b4 += k1;
+		b5 += k2 + t0;
+		b6 += k3 + t1;
+		b7 += k4 + 6L;
+		// round 24
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 25
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 26
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 27
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 7
+		b0 += k7;
+		b1 += k8;
+		b2 += k0;
+		b3 += k1;
+		b4 += k2;
+		b5 += k3 + t1;
+		b6 += k4 + t2;
+		b7 += k5 + 7L;
+		// round 28
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 29
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 30
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 31
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 8
+		b0 += k8;
+		b1 += k0;
+		b2 += k1;
+		b3 += k2;
+		b4 += k3;
+		b5 += k4 + t2;
+		b6 += k5 + t0;
+		b7 += k6 + 8L;
+		// round 32
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 33
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 34
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 35
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 9
+		b0 += k0;
+		b1 += k1;
+		b2 += k2;
+		b3 += k3;
+		b4 += k4;
+		b5 += k5 + t0;
+		b6 += k6 + t1;
+		b7 += k7 + 9L;
+		// round 36
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 37
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 38
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 39
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 10
+		b0 += k1;
+		b1 += k2;
+		b2 += k3;
+		b3 += k4;
+		b4 += k5;
+		b5 += k6 + t1;
+		b6 += k7 + t2;
+		b7 += k8 + 10L;
+		// round 40
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 41
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 42
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 43
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 11
+		b0 += k2;
+		b1 += k3;
+		b2 += k4;
+		b3 += k5;
+		b4 += k6;
+		b5 += k7 + t2;
+		b6 += k8 + t0;
+		b7 += k0 + 11L;
+		// round 44
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 45
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 46
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 47
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 12
+		b0 += k3;
+		b1 += k4;
+		b2 += k5;
+		b3 += k6;
+		b4 += k7;
+		b5 += k8 + t0;
+		b6 += k0 + t1;
+		b7 += k1 + 12L;
+		// round 48
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 49
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 50
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 51
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 13
+		b0 += k4;
+		b1 += k5;
+		b2 += k6;
+		b3 += k7;
+		b4 += k8;
+		b5 += k0 + t1;
+		b6 += k1 + t2;
+		b7 += k2 + 13L;
+		// round 52
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 53
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 54
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 55
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 14
+		b0 += k5;
+		b1 += k6;
+		b2 += k7;
+		b3 += k8;
+		b4 += k0;
+		b5 += k1 + t2;
+		b6 += k2 + t0;
+		b7 += k3 + 14L;
+		// round 56
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 57
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 58
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 59
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 15
+		b0 += k6;
+		b1 += k7;
+		b2 += k8;
+		b3 += k0;
+		b4 += k1;
+		b5 += k2 + t0;
+		b6 += k3 + t1;
+		b7 += k4 + 15L;
+		// round 60
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 61
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 62
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 63
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 16
+		b0 += k7;
+		b1 += k8;
+		b2 += k0;
+		b3 += k1;
+		b4 += k2;
+		b5 += k3 + t1;
+		b6 += k4 + t2;
+		b7 += k5 + 16L;
+		// round 64
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 46) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 36) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 19) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 37) ^ b6;
+		// round 65
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 33) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 27) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 14) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 42) ^ b0;
+		// round 66
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 17) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 49) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 36) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 39) ^ b2;
+		// round 67
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 44) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 9) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 54) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 56) ^ b4;
+		// key injection s = 17
+		b0 += k8;
+		b1 += k0;
+		b2 += k1;
+		b3 += k2;
+		b4 += k3;
+		b5 += k4 + t2;
+		b6 += k5 + t0;
+		b7 += k6 + 17L;
+		// round 68
+		b0 += b1;
+		b1 = Long.rotateLeft(b1, 39) ^ b0;
+		b2 += b3;
+		b3 = Long.rotateLeft(b3, 30) ^ b2;
+		b4 += b5;
+		b5 = Long.rotateLeft(b5, 34) ^ b4;
+		b6 += b7;
+		b7 = Long.rotateLeft(b7, 24) ^ b6;
+		// round 69
+		b2 += b1;
+		b1 = Long.rotateLeft(b1, 13) ^ b2;
+		b4 += b7;
+		b7 = Long.rotateLeft(b7, 50) ^ b4;
+		b6 += b5;
+		b5 = Long.rotateLeft(b5, 10) ^ b6;
+		b0 += b3;
+		b3 = Long.rotateLeft(b3, 17) ^ b0;
+		// round 70
+		b4 += b1;
+		b1 = Long.rotateLeft(b1, 25) ^ b4;
+		b6 += b3;
+		b3 = Long.rotateLeft(b3, 29) ^ b6;
+		b0 += b5;
+		b5 = Long.rotateLeft(b5, 39) ^ b0;
+		b2 += b7;
+		b7 = Long.rotateLeft(b7, 43) ^ b2;
+		// round 71
+		b6 += b1;
+		b1 = Long.rotateLeft(b1, 8) ^ b6;
+		b0 += b7;
+		b7 = Long.rotateLeft(b7, 35) ^ b0;
+		b2 += b5;
+		b5 = Long.rotateLeft(b5, 56) ^ b2;
+		b4 += b3;
+		b3 = Long.rotateLeft(b3, 22) ^ b4;
+		// key injection s = 18
+		b0 += k0;
+		b1 += k1;
+		b2 += k2;
+		b3 += k3;
+		b4 += k4;
+		b5 += k5 + t0;
+		b6 += k6 + t1;
+		b7 += k7 + 18L;
+		c[0] = b0;
+		c[1] = b1;
+		c[2] = b2;
+		c[3] = b3;
+		c[4] = b4;
+		c[5] = b5;
+		c[6] = b6;
+		c[7] = b7;
+	}
+
+	@Override
+	public void blockDecrypt(final long[] c, final long[] p) {
+		// the generic implementation holds its own key schedule, so initialize it before decrypting
+		initKeySchedule(new long[] { this.k0, this.k1, this.k2, this.k3, this.k4, this.k5, this.k6, this.k7 },
+				this.t0, this.t1);
+		super.blockDecrypt(c, p);
+	}
+}
@@ -253,7 +253,39 @@ public class ThreefishImpl {
 	 *            the tweak values to use
 	 */
 	public void init(final long[] key, final long[] tweak) {
-		logger.debug(" === Starting Threefish (blocksize = %d, rounds = %d) === %n", this.blockSize, this.nr);
+		init(key, tweak[0], tweak[1]);
+	}
+
+	/**
+	 * Initialize the cipher using the key and the two tweak words. This method does not allocate any memory, unless
+	 * the key size changes
+	 * 
+	 * @param key
+	 *            the Threefish key to use
+	 * @param tweak0
+	 *            the low tweak word T0
+	 * @param tweak1
+	 *            the high tweak word T1
+	 */
+	public void init(final long[] key, final long tweak0, final long tweak1) {
+		initKeySchedule(key, tweak0, tweak1);
+	}
+
+	/**
+	 * Initializes the key and tweak words used by the generic implementation of this class. This is separate from
+	 * {@link #init(long[], long, long)} so that specialized sub classes can still use the generic implementation
+	 * 
+	 * @param key
+	 *            the Threefish key to use
+	 * @param tweak0
+	 *            the low tweak word T0
+	 * @param tweak1
+	 *            the high tweak word T1
+	 */
+	protected final void initKeySchedule(final long[] key, final long tweak0, final long tweak1) {
+		if (logger.isDebugEnabled())
+			logger.debug(String.format(" === Starting Threefish (blocksize = %d, rounds = %d) === %n", this.blockSize,
+					this.nr));
 
 		final int newNw = key.length;
 
@@ -302,8 +334,8 @@ public class ThreefishImpl {
 		logBlock("keys k", null, 0, this.k);
 
 		// set tweak values
-		this.t[0] = tweak[0];
-		this.t[1] = tweak[1];
+		this.t[0] = tweak0;
+		this.t[1] = tweak1;
 		this.t[2] = this.t[0] ^ this.t[1];
 		logBlock("tweaks t", null, 0, this.t);
 	}
@@ -343,7 +375,8 @@ public class ThreefishImpl {
 			}
 			logBlock("e{d, i}", "d", d, this.ed);
 
-			logger.debug("d %% DEPTH_OF_D_IN_R : %d%n", d % DEPTH_OF_D_IN_R);
+			if (logger.isDebugEnabled())
+				logger.debug(String.format("d %% DEPTH_OF_D_IN_R : %d%n", d % DEPTH_OF_D_IN_R));
 
 			for (int j = 0; j < this.nw / 2; j++) {
 				this.x[0] = this.ed[j * 2];
@@ -430,7 +463,8 @@ public class ThreefishImpl {
 			}
 			logBlock("e{d, i}", "d", d, this.ed);
 
-			logger.debug("d %% DEPTH_OF_D_IN_R : %d%n", d % DEPTH_OF_D_IN_R);
+			if (logger.isDebugEnabled())
+				logger.debug(String.format("d %% DEPTH_OF_D_IN_R : %d%n", d % DEPTH_OF_D_IN_R));
 
 			for (int j = 0; j < this.nw / 2; j++) {
 				this.y[0] = this.ed[j * 2];
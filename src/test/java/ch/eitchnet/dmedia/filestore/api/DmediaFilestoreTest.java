@@ -21,10 +21,40 @@
  */
 package ch.eitchnet.dmedia.filestore.api;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nl.warper.skein.Skein;
 
@@ -35,6 +65,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ch.eitchnet.utils.helper.BaseEncoding;
 import ch.eitchnet.utils.helper.FileHelper;
 import ch.eitchnet.utils.helper.StringHelper;
 
@@ -151,6 +182,101 @@ public class DmediaFilestoreTest {
 		}
 	}
 
+	@Test
+	public void testDbase32Buffers() {
+
+		Random random = new Random(1);
+		byte[] data = new byte[30];
+		byte[] encoded = new byte[4 + 48];
+		byte[] decoded = new byte[2 + 30];
+		for (int i = 0; i < 100; i++) {
+			random.nextBytes(data);
+			Assert.assertEquals(48, Dbase32.encode(data, 0, data.length, encoded, 4));
+			byte[] expected = BaseEncoding.toBase32Dmedia(data);
+			Assert.assertArrayEquals(expected, Arrays.copyOfRange(encoded, 4, encoded.length));
+			Assert.assertTrue(Dbase32.isValid(encoded, 4, 48));
+
+			Assert.assertEquals(30, Dbase32.decode(encoded, 4, 48, decoded, 2));
+			Assert.assertArrayEquals(data, Arrays.copyOfRange(decoded, 2, decoded.length));
+		}
+
+		// every alphabet character must survive a round trip
+		byte[] alphabet = "3456789ABCDEFGHIJKLMNOPQRSTUVWXY".getBytes();
+		Assert.assertArrayEquals(alphabet, Dbase32.db32Enc(Dbase32.db32Dec(alphabet)));
+
+		byte[] invalid = "AAAAAAAAAAAAAAA=".getBytes();
+		Assert.assertFalse(Dbase32.isValid(invalid, 0, invalid.length));
+		Assert.assertTrue(Dbase32.isValid(invalid, 0, 8));
+		try {
+			Dbase32.decode(invalid, 0, invalid.length, decoded, 0);
+			Assert.fail("The padding character is invalid and should throw an exception");
+		} catch (Dbase32Exception e) {
+			// good
+		}
+		try {
+			Dbase32.encode(data, 0, 29, encoded, 0);
+			Assert.fail("The length is not a multiple of 5 and should throw an exception");
+		} catch (Dbase32Exception e) {
+			// good
+		}
+	}
+
+	@Test
+	public void testDmediaId() {
+
+		Random random = new Random(2);
+		List<DmediaId> ids = new ArrayList<>();
+		List<String> strings = new ArrayList<>();
+		for (int length : new int[] { 15, 30, 35, 40 }) {
+			for (int i = 0; i < 50; i++) {
+				byte[] digest = new byte[length];
+				random.nextBytes(digest);
+				if (i % 10 == 0)
+					digest[0] = 0;
+
+				DmediaId id = DmediaId.fromDigest(digest);
+				String encoded = Dbase32.db32EncAsString(digest);
+				Assert.assertEquals(encoded, id.toString());
+				Assert.assertArrayEquals(digest, id.getDigest());
+
+				DmediaId parsed = DmediaId.parse(encoded);
+				Assert.assertEquals(id, parsed);
+				Assert.assertEquals(id.hashCode(), parsed.hashCode());
+				Assert.assertEquals(0, id.compareTo(parsed));
+				Assert.assertEquals(length, parsed.length());
+				Assert.assertArrayEquals(digest, parsed.getDigest());
+
+				ids.add(id);
+				strings.add(encoded);
+			}
+		}
+
+		// the IDs must sort the same way as their D-Base32 strings
+		Collections.sort(ids);
+		Collections.sort(strings);
+		for (int i = 0; i < ids.size(); i++) {
+			Assert.assertEquals(strings.get(i), ids.get(i).toString());
+		}
+
+		Assert.assertFalse(DmediaId.parse("AAAAAAAA").equals(DmediaId.parse("AAAAAAAB")));
+		Assert.assertTrue(DmediaId.parse("AAAAAAAA").compareTo(DmediaId.parse("AAAAAAAB")) < 0);
+		Assert.assertTrue(DmediaId.parse("AAAAAAAA33333333").compareTo(DmediaId.parse("AAAAAAAA")) > 0);
+		try {
+			DmediaId.parse("AAAAAAAZ");
+			Assert.fail("This value is invalid and should throw an exception");
+		} catch (Dbase32Exception e) {
+			// good
+		}
+
+		FileStore fileStore = new FileStore();
+		DmediaFile dmediaFile = fileStore.hashAndStoreFile(new File(TEST_VECTOR_PATH + TEST_VECTOR_CB));
+		Assert.assertEquals(dmediaFile.getRootHash(), dmediaFile.getRootId().toString());
+		for (DmediaFileSlice slice : dmediaFile.getFileSlices()) {
+			Assert.assertEquals(slice.getHash(), slice.getId().toString());
+			Assert.assertEquals(DmediaId.parse(slice.getHash()), slice.getId());
+		}
+	}
+
 	@Test
 	public void testMd5DebugValues() {
 
@@ -370,6 +496,1303 @@ public class DmediaFilestoreTest {
 		data = FileHelper.readFile(new File(TEST_VECTOR_PATH + TEST_VECTOR_CC));
 	}
 
+	@Test
+	public void shouldKeepIdsWithPersLongerThanBlock() {
+
+		// the personalization is longer than a 256 bit block, these IDs must stay the same
+		FileStore fileStore = new FileStore(256, FileStoreConstants.DIGEST_BITS, true, true);
+
+		byte[] data = generateTestVectorA();
+		String a0 = fileStore.hashLeafToString(0, data);
+		Assert.assertEquals("MBKX5W8OTAMN6KJM8WGPXFFTTWYYIIKHWSXC8Y7X8T37P3KM", a0);
+		Assert.assertEquals("YLRT6C7MYMLHGQ64ISYCIUXO8K8AR4OA46BDVDHPGYDVSU4Y", fileStore.hashLeafToString(1, data));
+		Assert.assertEquals("8JJWF38RP5R69NVC6BRR6CCVGX359YAJOITYM5PD4OIM49KC",
+				fileStore.hashRootToString(data.length, a0.getBytes()));
+
+		data = generateTestVectorB();
+		String b0 = fileStore.hashLeafToString(0, data);
+		Assert.assertEquals("SSYXKG3JHTM8FSB8MFO6BTNNNKKXWOH5UEL9CPCCF5TPESC6", b0);
+		Assert.assertEquals("B435JPW5GC765DKHDEGRJ3S74WBW7DG5WD48WLOLAGV8SNSW", fileStore.hashLeafToString(1, data));
+		Assert.assertEquals("A7CJPFSRN6VHBT4UQSRMAJMNTUG5EW8YLRK8OHFY64J38YTO",
+				fileStore.hashRootToString(data.length, b0.getBytes()));
+	}
+
+	@Test
+	public void shouldHashLeavesWithCachedChain() {
+
+		FileStore fileStore = new FileStore();
+		FileStore.getLeafChainCache().clear();
+
+		byte[] data = generateTestVectorA();
+		for (int leafIndex = 0; leafIndex < 3; leafIndex++) {
+
+			Skein skein = new Skein(FileStoreConstants.BLOCK_BITS, FileStoreConstants.DIGEST_BITS);
+			skein.setKey(Integer.toString(leafIndex).getBytes());
+			skein.setPersonalization(FileStoreConstants.PERS_LEAF.getBytes());
+			String expected = Dbase32.db32EncAsString(skein.doSkein(data));
+
+			// first call fills the cache, second call uses it
+			Assert.assertEquals(expected, fileStore.hashLeafToString(leafIndex, data));
+			Assert.assertEquals(expected, fileStore.hashLeafToString(leafIndex, data));
+		}
+		Assert.assertEquals(3, FileStore.getLeafChainCache().size());
+
+		// a differently configured store may not use the same chaining values
+		FileStore noKeyStore = new FileStore(FileStoreConstants.BLOCK_BITS, FileStoreConstants.DIGEST_BITS, false,
+				false);
+		Skein skein = new Skein(FileStoreConstants.BLOCK_BITS, FileStoreConstants.DIGEST_BITS);
+		String expected = Dbase32.db32EncAsString(skein.doSkein(data));
+		Assert.assertEquals(expected, noKeyStore.hashLeafToString(0, data));
+		Assert.assertEquals(expected, noKeyStore.hashLeafToString(1, data));
+		Assert.assertEquals(4, FileStore.getLeafChainCache().size());
+	}
+
+	@Test
+	public void shouldHashLeavesInParallel() {
+
+		FileStore sequential = new FileStore();
+		FileStore parallel = new FileStore();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			parallel.setExecutor(executor);
+			parallel.setMaxLeafBuffers(2);
+
+			String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_C, TEST_VECTOR_CA, TEST_VECTOR_CB, TEST_VECTOR_CC };
+			for (String vector : vectors) {
+				File file = new File(TEST_VECTOR_PATH + vector);
+				List<DmediaFileSlice> expected = sequential.hashLeaves(file);
+				List<DmediaFileSlice> actual = parallel.hashLeaves(file);
+
+				Assert.assertEquals(expected.size(), actual.size());
+				Assert.assertEquals(sequential.getNrOfSlices(file), actual.size());
+				for (int i = 0; i < expected.size(); i++) {
+					Assert.assertEquals(i, actual.get(i).getIndex());
+					Assert.assertEquals(expected.get(i).getBytesOffset(), actual.get(i).getBytesOffset());
+					Assert.assertEquals(expected.get(i).getHash(), actual.get(i).getHash());
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldHashLeavesMapped() {
+
+		FileStore sequential = new FileStore();
+		FileStore mapped = new FileStore();
+		mapped.setReadMode(ReadMode.MAPPED);
+		FileStore mappedParallel = new FileStore();
+		mappedParallel.setReadMode(ReadMode.MAPPED);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			mappedParallel.setExecutor(executor);
+			mappedParallel.setMaxLeafBuffers(2);
+
+			String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_C, TEST_VECTOR_CA, TEST_VECTOR_CB, TEST_VECTOR_CC };
+			for (String vector : vectors) {
+				File file = new File(TEST_VECTOR_PATH + vector);
+				String expected = sequential.hashAndStoreFile(file).getRootHash();
+				Assert.assertEquals(expected, mapped.hashAndStoreFile(file).getRootHash());
+				Assert.assertEquals(expected, mappedParallel.hashAndStoreFile(file).getRootHash());
+			}
+
+			// a rejected leaf fails the hashing only once the leaves already mapped have been hashed
+			final AtomicInteger executed = new AtomicInteger();
+			final AtomicBoolean leafStarted = new AtomicBoolean();
+			final ExecutorService leafExecutor = executor;
+			FileStore rejecting = new FileStore();
+			rejecting.setReadMode(ReadMode.MAPPED);
+			rejecting.setMaxLeafBuffers(2);
+			rejecting.setExecutor(new Executor() {
+				@Override
+				public void execute(final Runnable command) {
+					if (executed.incrementAndGet() > 1)
+						throw new RejectedExecutionException("Only the first leaf is hashed");
+					leafExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								Thread.sleep(200L);
+								leafStarted.set(true);
+								command.run();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+					});
+				}
+			});
+			try {
+				rejecting.hashLeaves(new File(TEST_VECTOR_PATH + TEST_VECTOR_CC));
+				Assert.fail("Hashing should fail when a leaf is rejected");
+			} catch (FileStoreException e) {
+				Assert.assertTrue("The channel was closed before the mapped leaf was hashed", leafStarted.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldHashLeavesPipelined() {
+
+		FileStore sequential = new FileStore();
+		FileStore pipelined = new FileStore();
+		pipelined.setReadMode(ReadMode.PIPELINED);
+		FileStore pipelinedParallel = new FileStore();
+		pipelinedParallel.setReadMode(ReadMode.PIPELINED);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			pipelinedParallel.setExecutor(executor);
+			pipelinedParallel.setMaxLeafBuffers(3);
+
+			// the buffers come from the memory budget, which may only have room for a single buffer
+			FileStore pipelinedBudget = new FileStore();
+			pipelinedBudget.setReadMode(ReadMode.PIPELINED);
+			pipelinedBudget.setExecutor(executor);
+			pipelinedBudget.setLeafMemoryBudget(FileStoreConstants.LEAF_SIZE);
+
+			String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_C, TEST_VECTOR_CA, TEST_VECTOR_CB, TEST_VECTOR_CC };
+			for (String vector : vectors) {
+				File file = new File(TEST_VECTOR_PATH + vector);
+				String expected = sequential.hashAndStoreFile(file).getRootHash();
+				Assert.assertEquals(expected, pipelined.hashAndStoreFile(file).getRootHash());
+				Assert.assertEquals(expected, pipelinedParallel.hashAndStoreFile(file).getRootHash());
+				Assert.assertEquals(expected, pipelinedBudget.hashAndStoreFile(file).getRootHash());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldVerifyAndStopAtFirstCorruptLeaf() throws IOException {
+
+		byte[] bytes = new byte[3 * FileStoreConstants.LEAF_SIZE];
+		Arrays.fill(bytes, (byte) 'C');
+		File file = new File(TEST_VECTOR_PATH + "verify");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(bytes);
+		}
+
+		FileStore sequential = new FileStore();
+		DmediaFile expected = sequential.hashAndStoreFile(file);
+		Assert.assertTrue(sequential.verify(file, expected).isValid());
+
+		// corrupt the first and the last leaf
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(17);
+			raf.write('X');
+			raf.seek(2L * FileStoreConstants.LEAF_SIZE + 42);
+			raf.write('X');
+		}
+
+		VerifyResult result = sequential.verify(file, expected);
+		Assert.assertFalse(result.isValid());
+		Assert.assertFalse(result.isSizeMismatch());
+		Assert.assertEquals(0, result.getFirstCorruptLeaf());
+		Assert.assertEquals(1, result.getVerifiedLeaves());
+
+		result = sequential.verify(file, expected, true);
+		Assert.assertArrayEquals(new int[] { 0, 2 }, result.getCorruptLeaves());
+		Assert.assertEquals(3, result.getVerifiedLeaves());
+
+		FileStore mapped = new FileStore();
+		mapped.setReadMode(ReadMode.MAPPED);
+		FileStore pipelined = new FileStore();
+		pipelined.setReadMode(ReadMode.PIPELINED);
+		FileStore parallel = new FileStore();
+		FileStore mappedParallel = new FileStore();
+		mappedParallel.setReadMode(ReadMode.MAPPED);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			parallel.setExecutor(executor);
+			parallel.setMaxLeafBuffers(2);
+			mappedParallel.setExecutor(executor);
+			mappedParallel.setMaxLeafBuffers(2);
+
+			for (FileStore fileStore : new FileStore[] { mapped, pipelined, parallel, mappedParallel }) {
+				result = fileStore.verify(file, expected);
+				Assert.assertFalse(result.isValid());
+				Assert.assertEquals(0, result.getFirstCorruptLeaf());
+
+				result = fileStore.verify(file, expected, true);
+				Assert.assertArrayEquals(new int[] { 0, 2 }, result.getCorruptLeaves());
+				Assert.assertEquals(3, result.getVerifiedLeaves());
+			}
+			Assert.assertEquals(1, mapped.verify(file, expected).getVerifiedLeaves());
+		} finally {
+			executor.shutdown();
+		}
+
+		// a different size is detected without reading the file
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(bytes.length - 1);
+		}
+		result = sequential.verify(file, expected);
+		Assert.assertFalse(result.isValid());
+		Assert.assertTrue(result.isSizeMismatch());
+		Assert.assertEquals(0, result.getVerifiedLeaves());
+	}
+
+	@Test
+	public void shouldReadVerifiedRanges() throws IOException {
+
+		byte[] bytes = new byte[2 * FileStoreConstants.LEAF_SIZE + 1000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		File file = new File(TEST_VECTOR_PATH + "range");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(bytes);
+		}
+
+		FileStore fileStore = new FileStore();
+		DmediaFile dmediaFile = fileStore.hashAndStoreFile(file);
+
+		int boundary = FileStoreConstants.LEAF_SIZE;
+		Assert.assertArrayEquals(Arrays.copyOfRange(bytes, 10, 20), fileStore.readVerified(dmediaFile, 10, 20 - 10));
+		Assert.assertArrayEquals(Arrays.copyOfRange(bytes, boundary - 5, boundary + 5),
+				fileStore.readVerified(dmediaFile, boundary - 5, 10));
+		Assert.assertArrayEquals(Arrays.copyOfRange(bytes, bytes.length - 100, bytes.length),
+				fileStore.readVerified(dmediaFile, bytes.length - 100, 100));
+		Assert.assertEquals(0, fileStore.readVerified(dmediaFile, bytes.length, 0).length);
+
+		try (SeekableByteChannel channel = fileStore.openVerified(dmediaFile)) {
+			Assert.assertEquals(bytes.length, channel.size());
+			ByteBuffer buffer = ByteBuffer.allocate(1000);
+			channel.position(2L * boundary);
+			Assert.assertEquals(1000, channel.read(buffer));
+			Assert.assertArrayEquals(Arrays.copyOfRange(bytes, 2 * boundary, bytes.length), buffer.array());
+			buffer.clear();
+			Assert.assertEquals(-1, channel.read(buffer));
+		}
+
+		// leaf hashes not matching the root hash can not be trusted to verify the data
+		LeafHashes leafHashes = dmediaFile.getLeafHashes();
+		LeafHashes swapped = new LeafHashes(leafHashes.size(), leafHashes.getDigestBytes());
+		byte[] digest = new byte[leafHashes.getDigestBytes()];
+		for (int i = 0; i < leafHashes.size(); i++) {
+			leafHashes.getDigest(i, digest, 0);
+			swapped.setDigest(leafHashes.size() - 1 - i, digest, 0);
+		}
+		DmediaFile mismatched = new DmediaFile(dmediaFile.getFilePath(), dmediaFile.getFileSize(),
+				dmediaFile.getRootHash(), swapped);
+		try {
+			fileStore.openVerified(mismatched);
+			Assert.fail("Leaf hashes not matching the root hash should not be used");
+		} catch (FileStoreException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("do not match its root hash"));
+		}
+
+		// corrupt the last leaf, the other leaves can still be read
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(bytes.length - 1);
+			raf.write(bytes[bytes.length - 1] + 1);
+		}
+		Assert.assertArrayEquals(Arrays.copyOfRange(bytes, boundary, boundary + 10),
+				fileStore.readVerified(dmediaFile, boundary, 10));
+		try {
+			fileStore.readVerified(dmediaFile, boundary - 5, boundary + 10);
+			Assert.fail("Reading a corrupt leaf should fail");
+		} catch (FileStoreException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("Leaf 2"));
+		}
+		try {
+			fileStore.readVerified(dmediaFile, bytes.length - 10, 11);
+			Assert.fail("Reading beyond the end of the file should fail");
+		} catch (IllegalArgumentException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void shouldHashWhileStreaming() throws IOException {
+
+		FileStore fileStore = new FileStore();
+		Random random = new Random(42);
+		String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_B, TEST_VECTOR_C, TEST_VECTOR_CA, TEST_VECTOR_CB, TEST_VECTOR_CC };
+		for (String vector : vectors) {
+			File file = new File(TEST_VECTOR_PATH + vector);
+			DmediaFile expected = fileStore.hashAndStoreFile(file);
+			byte[] bytes = Files.readAllBytes(file.toPath());
+
+			ByteArrayOutputStream copy = new ByteArrayOutputStream();
+			try (DmediaHashingInputStream in = new DmediaHashingInputStream(new FileInputStream(file), fileStore,
+					file.getPath())) {
+				byte[] buffer = new byte[100000];
+				int read;
+				while ((read = in.read(buffer, 0, 1 + random.nextInt(buffer.length))) != -1) {
+					Assert.assertNull(in.getDmediaFile());
+					copy.write(buffer, 0, read);
+				}
+				DmediaFile dmediaFile = in.getDmediaFile();
+				Assert.assertEquals(expected.getRootHash(), dmediaFile.getRootHash());
+				Assert.assertEquals(expected.getFileSize(), dmediaFile.getFileSize());
+				Assert.assertArrayEquals(expected.getLeafHashes().getEncodedHashes(), dmediaFile.getLeafHashes()
+						.getEncodedHashes());
+				Assert.assertEquals(file.getPath(), dmediaFile.getFilePath());
+			}
+			Assert.assertArrayEquals(bytes, copy.toByteArray());
+
+			copy.reset();
+			DmediaHashingChannel channel = new DmediaHashingChannel(Channels.newChannel(copy), fileStore, null);
+			ByteBuffer src = ByteBuffer.wrap(bytes);
+			while (src.hasRemaining()) {
+				int chunk = Math.min(src.remaining(), 1 + random.nextInt(100000));
+				ByteBuffer slice = src.duplicate();
+				slice.limit(slice.position() + chunk);
+				channel.write(slice);
+				src.position(slice.position());
+			}
+			Assert.assertNull(channel.getDmediaFile());
+			channel.close();
+			Assert.assertEquals(expected.getRootHash(), channel.getDmediaFile().getRootHash());
+			Assert.assertEquals(bytes.length, channel.getBytesWritten());
+			Assert.assertArrayEquals(bytes, copy.toByteArray());
+		}
+
+		// empty uploads have no ID, but reading and closing them must still succeed
+		try (DmediaHashingInputStream in = new DmediaHashingInputStream(new ByteArrayInputStream(new byte[0]),
+				fileStore, null)) {
+			Assert.assertEquals(-1, in.read());
+			Assert.assertEquals(-1, in.read(new byte[10], 0, 10));
+			Assert.assertNull(in.getDmediaFile());
+		}
+		DmediaHashingChannel empty = new DmediaHashingChannel(Channels.newChannel(new ByteArrayOutputStream()),
+				fileStore, null);
+		empty.close();
+		empty.close();
+		Assert.assertNull(empty.getDmediaFile());
+
+		// single bytes are hashed like any other read
+		File single = new File(TEST_VECTOR_PATH + TEST_VECTOR_B);
+		try (DmediaHashingInputStream in = new DmediaHashingInputStream(new ByteArrayInputStream(
+				Files.readAllBytes(single.toPath())), fileStore, null)) {
+			while (in.read() != -1) {
+				// read to the end
+			}
+			Assert.assertEquals(fileStore.hashAndStoreFile(single).getRootHash(), in.getDmediaFile().getRootHash());
+		}
+
+		// streams are stored in a single pass
+		File storePath = new File(TEST_VECTOR_PATH + "streamstore");
+		FileStore store = new FileStore(storePath);
+		File file = new File(TEST_VECTOR_PATH + TEST_VECTOR_CB);
+		try (FileInputStream in = new FileInputStream(file)) {
+			DmediaFile dmediaFile = store.importStream(in);
+			Assert.assertEquals(fileStore.hashAndStoreFile(file).getRootHash(), dmediaFile.getRootHash());
+			Assert.assertArrayEquals(Files.readAllBytes(file.toPath()),
+					Files.readAllBytes(new File(dmediaFile.getFilePath()).toPath()));
+		}
+		try {
+			store.importStream(new ByteArrayInputStream(new byte[0]));
+			Assert.fail("An empty stream can not be stored");
+		} catch (FileStoreException e) {
+			// good
+		}
+		Assert.assertEquals("The tmp directory should be empty", 0, store.getTmpDir().list().length);
+	}
+
+	@Test
+	public void shouldResumeHashingFromCheckpoint() throws IOException {
+
+		File file = new File(TEST_VECTOR_PATH + "resumable");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(generateTestVectorCC());
+			out.write(generateTestVectorCA());
+		}
+		File checkpointFile = new File(TEST_VECTOR_PATH + "resumable.checkpoint");
+
+		FileStore fileStore = new FileStore();
+		fileStore.setCheckpointInterval(0);
+		DmediaFile expected = fileStore.hashAndStoreFile(file);
+		Assert.assertEquals(4, expected.getLeafCount());
+
+		// stop after two leaves, as if the process died
+		final List<Integer> hashed = new ArrayList<>();
+		FileStore.LeafCallback callback = new FileStore.LeafCallback() {
+			@Override
+			public boolean leafHashed(int leafIndex, byte[] digest) {
+				hashed.add(leafIndex);
+				return leafIndex < 1;
+			}
+		};
+		Assert.assertNull(fileStore.hashFileResumable(file, checkpointFile, callback));
+		Assert.assertTrue(checkpointFile.exists());
+
+		// resuming only hashes the missing leaves
+		hashed.clear();
+		callback = new FileStore.LeafCallback() {
+			@Override
+			public boolean leafHashed(int leafIndex, byte[] digest) {
+				hashed.add(leafIndex);
+				return true;
+			}
+		};
+		DmediaFile dmediaFile = fileStore.hashFileResumable(file, checkpointFile, callback);
+		Assert.assertEquals(Arrays.asList(2, 3), hashed);
+		Assert.assertEquals(expected.getRootHash(), dmediaFile.getRootHash());
+		Assert.assertArrayEquals(expected.getLeafHashes().getEncodedHashes(), dmediaFile.getLeafHashes()
+				.getEncodedHashes());
+		Assert.assertFalse(checkpointFile.exists());
+
+		// a checkpoint of a modified file is discarded
+		hashed.clear();
+		FileStore.LeafCallback stopping = new FileStore.LeafCallback() {
+			@Override
+			public boolean leafHashed(int leafIndex, byte[] digest) {
+				return false;
+			}
+		};
+		Assert.assertNull(fileStore.hashFileResumable(file, checkpointFile, stopping));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.write('X');
+		}
+		Assert.assertTrue(file.setLastModified(file.lastModified() + 2000));
+		dmediaFile = fileStore.hashFileResumable(file, checkpointFile, callback);
+		Assert.assertEquals(Arrays.asList(0, 1, 2, 3), hashed);
+		Assert.assertFalse(expected.getRootHash().equals(dmediaFile.getRootHash()));
+		Assert.assertEquals(fileStore.hashAndStoreFile(file).getRootHash(), dmediaFile.getRootHash());
+	}
+
+	@Test
+	public void shouldHashLeavesPositional() {
+
+		FileStore sequential = new FileStore();
+		FileStore positional = new FileStore();
+		positional.setReadMode(ReadMode.POSITIONAL);
+		FileStore positionalParallel = new FileStore();
+		positionalParallel.setReadMode(ReadMode.POSITIONAL);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			positionalParallel.setExecutor(executor);
+			positionalParallel.setMaxLeafBuffers(2);
+
+			String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_C, TEST_VECTOR_CA, TEST_VECTOR_CB, TEST_VECTOR_CC };
+			for (String vector : vectors) {
+				File file = new File(TEST_VECTOR_PATH + vector);
+				String expected = sequential.hashAndStoreFile(file).getRootHash();
+				Assert.assertEquals(expected, positional.hashAndStoreFile(file).getRootHash());
+				Assert.assertEquals(expected, positionalParallel.hashAndStoreFile(file).getRootHash());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldHashSparseFileLargerThan2GiB() throws IOException {
+
+		// a sparse file of zeros, whose last leaf starts beyond 2 GiB
+		long fileSize = 2L * 1024 * 1024 * 1024 + FileStoreConstants.LEAF_SIZE + 4321;
+		File file = new File(TEST_VECTOR_PATH + "sparse");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(fileSize);
+		}
+
+		FileStore fileStore = new FileStore();
+		fileStore.setReadMode(ReadMode.POSITIONAL);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		DmediaFile dmediaFile;
+		try {
+			fileStore.setExecutor(executor);
+			dmediaFile = fileStore.hashAndStoreFile(file);
+		} finally {
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(fileSize, dmediaFile.getFileSize());
+		Assert.assertEquals(258, dmediaFile.getLeafCount());
+		List<DmediaFileSlice> fileSlices = dmediaFile.getFileSlices();
+		DmediaFileSlice last = fileSlices.get(fileSlices.size() - 1);
+		Assert.assertEquals(257L * FileStoreConstants.LEAF_SIZE, last.getBytesOffset());
+
+		byte[] zeros = new byte[FileStoreConstants.LEAF_SIZE];
+		Assert.assertEquals(new String(fileStore.hashLeaf(0, zeros)), fileSlices.get(0).getHash());
+		Assert.assertEquals(new String(fileStore.hashLeaf(256, zeros)), fileSlices.get(256).getHash());
+		Assert.assertEquals(new String(fileStore.hashLeaf(257, zeros, 0, 4321)), last.getHash());
+		Assert.assertEquals(dmediaFile.getRootHash(),
+				new String(fileStore.hashRoot(fileSize, dmediaFile.getLeafHashes().getEncodedHashes())));
+
+		// seeking beyond 2 GiB only verifies the last leaf
+		Assert.assertArrayEquals(new byte[10], fileStore.readVerified(dmediaFile, fileSize - 10, 10));
+
+		Assert.assertTrue(file.delete());
+	}
+
+	@Test
+	public void shouldHashAsynchronously() throws Exception {
+
+		FileStore sequential = new FileStore();
+		FileStore async = new FileStore();
+		async.setMaxLeafBuffers(2);
+		async.setLeafMemoryBudget(2L * FileStoreConstants.LEAF_SIZE);
+		FileStore asyncWithExecutor = new FileStore();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			asyncWithExecutor.setExecutor(executor);
+
+			String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_C, TEST_VECTOR_CA, TEST_VECTOR_CB, TEST_VECTOR_CC };
+			for (String vector : vectors) {
+				File file = new File(TEST_VECTOR_PATH + vector);
+				DmediaFile expected = sequential.hashAndStoreFile(file);
+
+				final List<DmediaFile> completed = Collections.synchronizedList(new ArrayList<DmediaFile>());
+				final CountDownLatch latch = new CountDownLatch(1);
+				Future<DmediaFile> future = async.hashAsync(file, vector, new CompletionHandler<DmediaFile, String>() {
+					@Override
+					public void completed(DmediaFile result, String attachment) {
+						completed.add(result);
+						latch.countDown();
+					}
+
+					@Override
+					public void failed(Throwable e, String attachment) {
+						latch.countDown();
+					}
+				});
+				Assert.assertEquals(expected.getRootHash(), future.get().getRootHash());
+				Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+				Assert.assertEquals(expected.getRootHash(), completed.get(0).getRootHash());
+				Assert.assertEquals(expected.getRootHash(), asyncWithExecutor.hashAsync(file).get().getRootHash());
+
+				int lastLeaf = expected.getLeafCount() - 1;
+				Assert.assertEquals(expected.getFileSlices().get(lastLeaf).getHash(),
+						async.hashLeafAsync(file, lastLeaf).get());
+			}
+
+			// the buffers are returned to the budget once the last read is done
+			assertLeafBuffersReturned(async.getLeafBufferPool());
+
+			try {
+				async.hashAsync(new File(TEST_VECTOR_PATH + "missing")).get();
+				Assert.fail("Hashing a missing file should fail");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof FileStoreException);
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// cancelling stops the reads, here while they are still queued behind a blocking task
+		ExecutorService singleThread = Executors.newSingleThreadExecutor();
+		try {
+			final CountDownLatch blocked = new CountDownLatch(1);
+			singleThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						blocked.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			FileStore fileStore = new FileStore();
+			fileStore.setExecutor(singleThread);
+			fileStore.setLeafMemoryBudget(2L * FileStoreConstants.LEAF_SIZE);
+			final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+			Future<DmediaFile> future = fileStore.hashAsync(new File(TEST_VECTOR_PATH + TEST_VECTOR_CC), null,
+					new CompletionHandler<DmediaFile, Object>() {
+						@Override
+						public void completed(DmediaFile result, Object attachment) {
+							Assert.fail("Hashing should have been cancelled");
+						}
+
+						@Override
+						public void failed(Throwable e, Object attachment) {
+							failures.add(e);
+						}
+					});
+			Assert.assertTrue(fileStore.getLeafBufferPool().getAvailable() < 2);
+
+			// another file does not block the caller while the buffers are in use, and starts once they are returned
+			File queuedFile = new File(TEST_VECTOR_PATH + TEST_VECTOR_CB);
+			Future<DmediaFile> queued = fileStore.hashAsync(queuedFile);
+			Assert.assertFalse(queued.isDone());
+
+			Assert.assertTrue(future.cancel(false));
+			blocked.countDown();
+			Assert.assertTrue(future.isCancelled());
+			try {
+				future.get();
+				Assert.fail("The future should be cancelled");
+			} catch (CancellationException e) {
+				// good
+			}
+			Assert.assertEquals(1, failures.size());
+			Assert.assertTrue(failures.get(0) instanceof CancellationException);
+			Assert.assertEquals(sequential.hashAndStoreFile(queuedFile).getRootHash(),
+					queued.get(10, TimeUnit.SECONDS).getRootHash());
+			assertLeafBuffersReturned(fileStore.getLeafBufferPool());
+		} finally {
+			singleThread.shutdown();
+		}
+	}
+
+	private static void assertLeafBuffersReturned(LeafBufferPool pool) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getAvailable() != pool.getCapacity() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(pool.getCapacity(), pool.getAvailable());
+	}
+
+	/**
+	 * Requests a single leaf at a time and cancels after the given number of leaves
+	 */
+	private static class RecordingListener implements LeafHashListener {
+
+		private final int cancelAfter;
+		private final List<DmediaFileSlice> slices = Collections.synchronizedList(new ArrayList<DmediaFileSlice>());
+		private LeafHashSubscription subscription;
+		private DmediaFile completed;
+		private Throwable error;
+
+		RecordingListener(int cancelAfter) {
+			this.cancelAfter = cancelAfter;
+		}
+
+		@Override
+		public void onSubscribe(LeafHashSubscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onLeaf(DmediaFileSlice slice) {
+			this.slices.add(slice);
+			if (this.slices.size() == this.cancelAfter)
+				this.subscription.cancel();
+			else
+				this.subscription.request(1);
+		}
+
+		@Override
+		public void onComplete(DmediaFile dmediaFile) {
+			this.completed = dmediaFile;
+		}
+
+		@Override
+		public void onError(Throwable e) {
+			this.error = e;
+		}
+	}
+
+	@Test
+	public void shouldPublishLeafHashes() throws Exception {
+
+		File file = new File(TEST_VECTOR_PATH + "publish");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(generateTestVectorCC());
+			out.write(generateTestVectorCB());
+		}
+		FileStore sequential = new FileStore();
+		DmediaFile expected = sequential.hashAndStoreFile(file);
+
+		FileStore parallel = new FileStore();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			parallel.setExecutor(executor);
+			parallel.setMaxLeafBuffers(2);
+
+			for (FileStore fileStore : new FileStore[] { sequential, parallel }) {
+				RecordingListener listener = new RecordingListener(-1);
+				DmediaFile dmediaFile = fileStore.publishLeaves(file, listener);
+				Assert.assertEquals(expected.getRootHash(), dmediaFile.getRootHash());
+				Assert.assertSame(dmediaFile, listener.completed);
+				Assert.assertNull(listener.error);
+				Assert.assertEquals(4, listener.slices.size());
+				for (DmediaFileSlice slice : listener.slices) {
+					Assert.assertEquals(expected.getFileSlices().get(slice.getIndex()).getHash(), slice.getHash());
+					Assert.assertEquals((long) slice.getIndex() * FileStoreConstants.LEAF_SIZE, slice.getBytesOffset());
+				}
+
+				// cancelling stops after the current leaf
+				listener = new RecordingListener(1);
+				Assert.assertNull(fileStore.publishLeaves(file, listener));
+				Assert.assertEquals(1, listener.slices.size());
+				Assert.assertNull(listener.completed);
+				Assert.assertNull(listener.error);
+			}
+
+			// hashing waits until leaves are requested
+			final FileStore fileStore = parallel;
+			final File publishedFile = file;
+			final RecordingListener listener = new RecordingListener(-1) {
+				@Override
+				public void onSubscribe(LeafHashSubscription subscription) {
+					super.subscription = subscription;
+				}
+
+				@Override
+				public void onLeaf(DmediaFileSlice slice) {
+					super.slices.add(slice);
+				}
+			};
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					fileStore.publishLeaves(publishedFile, listener);
+				}
+			};
+			thread.start();
+			Thread.sleep(200L);
+			Assert.assertTrue(listener.slices.isEmpty());
+			listener.subscription.request(Long.MAX_VALUE);
+			thread.join(10000L);
+			Assert.assertEquals(4, listener.slices.size());
+			Assert.assertEquals(expected.getRootHash(), listener.completed.getRootHash());
+
+			RecordingListener failing = new RecordingListener(-1);
+			Assert.assertNull(fileStore.publishLeaves(new File(TEST_VECTOR_PATH + "missing"), failing));
+			Assert.assertTrue(failing.error instanceof FileStoreException);
+
+			// a failure while a leaf waits for demand wakes its hashing thread, and no leaf follows the failure
+			final CountDownLatch leafDone = new CountDownLatch(1);
+			final AtomicInteger executed = new AtomicInteger();
+			final ExecutorService leafExecutor = executor;
+			FileStore rejecting = new FileStore();
+			rejecting.setMaxLeafBuffers(2);
+			rejecting.setExecutor(new Executor() {
+				@Override
+				public void execute(final Runnable command) {
+					if (executed.incrementAndGet() > 1)
+						throw new RejectedExecutionException("Only the first leaf is hashed");
+					leafExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								command.run();
+							} finally {
+								leafDone.countDown();
+							}
+						}
+					});
+				}
+			});
+			RecordingListener waiting = new RecordingListener(-1) {
+				@Override
+				public void onSubscribe(LeafHashSubscription subscription) {
+					super.subscription = subscription;
+				}
+			};
+			Assert.assertNull(rejecting.publishLeaves(file, waiting));
+			Assert.assertTrue(waiting.error instanceof FileStoreException);
+			Assert.assertTrue(leafDone.await(10, TimeUnit.SECONDS));
+			Assert.assertTrue(waiting.slices.isEmpty());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldImportIntoStore() {
+
+		File storePath = new File(TEST_VECTOR_PATH + "store");
+		FileStore fileStore = new FileStore(storePath);
+		Assert.assertTrue(new File(storePath, ".dmedia/files").isDirectory());
+		Assert.assertTrue(fileStore.getTmpDir().isDirectory());
+		Assert.assertTrue(fileStore.getPartialDir().isDirectory());
+		Assert.assertTrue(fileStore.getCorruptDir().isDirectory());
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_CA };
+			for (String vector : vectors) {
+				File file = new File(TEST_VECTOR_PATH + vector);
+				String expected = new FileStore().hashAndStoreFile(file).getRootHash();
+
+				DmediaFile dmediaFile = fileStore.hashAndStoreFile(file);
+				Assert.assertEquals(expected, dmediaFile.getRootHash());
+
+				File storedFile = new File(storePath, ".dmedia/files/" + expected.substring(0, 2) + "/"
+						+ expected.substring(2));
+				Assert.assertEquals(storedFile.getAbsolutePath(), dmediaFile.getFilePath());
+				Assert.assertArrayEquals(FileHelper.readFile(file), FileHelper.readFile(storedFile));
+
+				// importing the same content again, now in parallel, finds the stored file
+				fileStore.setExecutor(executor);
+				Assert.assertEquals(expected, fileStore.hashAndStoreFile(file).getRootHash());
+				fileStore.setExecutor(null);
+			}
+
+			Assert.assertEquals("The tmp directory should be empty", 0, fileStore.getTmpDir().list().length);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldPersistCatalog() throws IOException {
+
+		File storePath = new File(TEST_VECTOR_PATH + "catalogstore");
+		FileStore fileStore = new FileStore(storePath);
+		File catalogFile = fileStore.getCatalogFile();
+
+		List<DmediaFile> imported = new ArrayList<>();
+		try (FileStoreCatalog catalog = new FileStoreCatalog(catalogFile)) {
+			fileStore.setCatalog(catalog);
+			for (String vector : new String[] { TEST_VECTOR_A, TEST_VECTOR_CA, TEST_VECTOR_CB }) {
+				imported.add(fileStore.hashAndStoreFile(new File(TEST_VECTOR_PATH + vector)));
+			}
+			Assert.assertEquals(3, catalog.size());
+		}
+		File indexFile = new File(catalogFile.getPath() + ".idx");
+		Assert.assertTrue(indexFile.length() > 0);
+		byte[] staleIndex = FileHelper.readFile(indexFile);
+
+		// append a torn record, as if the process crashed while writing it
+		try (RandomAccessFile raf = new RandomAccessFile(catalogFile, "rw")) {
+			long length = raf.length();
+			raf.seek(length);
+			raf.writeInt(1000);
+			raf.writeInt(42);
+			raf.write(new byte[100]);
+		}
+
+		try (FileStoreCatalog catalog = new FileStoreCatalog(catalogFile)) {
+			fileStore.setCatalog(catalog);
+			Assert.assertEquals(3, catalog.size());
+			for (DmediaFile dmediaFile : imported) {
+				DmediaFile cataloged = fileStore.lookup(dmediaFile.getRootId());
+				Assert.assertEquals(dmediaFile.getFilePath(), cataloged.getFilePath());
+				Assert.assertEquals(dmediaFile.getRootHash(), cataloged.getRootHash());
+				Assert.assertEquals(dmediaFile.getFileSize(), cataloged.getFileSize());
+				Assert.assertArrayEquals(dmediaFile.getLeafHashes().getEncodedHashes(), cataloged.getLeafHashes()
+						.getEncodedHashes());
+				Assert.assertEquals(new File(dmediaFile.getFilePath()).lastModified(),
+						catalog.getMtime(dmediaFile.getRootId()));
+			}
+
+			Assert.assertTrue(catalog.remove(imported.get(0).getRootId()));
+			Assert.assertFalse(catalog.remove(imported.get(0).getRootId()));
+			Assert.assertNull(fileStore.lookup(imported.get(0).getRootId()));
+		}
+
+		// an index which does not cover the latest records is brought up to date from the records after it
+		FileHelper.writeToFile(staleIndex, indexFile);
+		try (FileStoreCatalog catalog = new FileStoreCatalog(catalogFile)) {
+			Assert.assertEquals(2, catalog.size());
+			Assert.assertFalse(catalog.contains(imported.get(0).getRootId()));
+			Assert.assertTrue(catalog.contains(imported.get(1).getRootId()));
+
+			// adding it again makes it visible again
+			catalog.add(imported.get(0), 0);
+			Assert.assertEquals(3, catalog.size());
+			Assert.assertEquals(0, catalog.getMtime(imported.get(0).getRootId()));
+		}
+
+		// an index which does not match the catalog is rebuilt from all records
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+			raf.seek(12);
+			raf.writeInt(20);
+		}
+		try (FileStoreCatalog catalog = new FileStoreCatalog(catalogFile)) {
+			Assert.assertEquals(3, catalog.size());
+			Assert.assertEquals(0, catalog.getMtime(imported.get(0).getRootId()));
+			Assert.assertTrue(catalog.contains(imported.get(2).getRootId()));
+		}
+
+		// damage among the committed records must fail opening instead of erasing the records after it, which is only
+		// detected when the records are visited to rebuild the index
+		Assert.assertTrue(indexFile.delete());
+		try (RandomAccessFile raf = new RandomAccessFile(catalogFile, "rw")) {
+			raf.seek(16);
+			raf.writeInt(Integer.MAX_VALUE - 8);
+		}
+		byte[] damaged = FileHelper.readFile(catalogFile);
+		try {
+			new FileStoreCatalog(catalogFile).close();
+			Assert.fail("A damaged catalog may not be opened");
+		} catch (FileStoreException e) {
+			Assert.assertTrue(e.getMessage().contains("is corrupt at 16"));
+		}
+		Assert.assertArrayEquals(damaged, FileHelper.readFile(catalogFile));
+	}
+
+	@Test
+	public void shouldBulkImportTreeLargestFirst() throws IOException {
+
+		File tree = new File(TEST_VECTOR_PATH + "tree");
+		File subDir = new File(tree, "DCIM/100CANON");
+		Assert.assertTrue(subDir.mkdirs());
+		String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_B, TEST_VECTOR_C, TEST_VECTOR_CA, TEST_VECTOR_CB, TEST_VECTOR_CC };
+		for (int i = 0; i < vectors.length; i++) {
+			File dir = i % 2 == 0 ? tree : subDir;
+			Files.copy(new File(TEST_VECTOR_PATH + vectors[i]).toPath(), new File(dir, vectors[i]).toPath());
+		}
+		Assert.assertTrue(new File(subDir, "empty").createNewFile());
+
+		FileStore fileStore = new FileStore(new File(TEST_VECTOR_PATH + "bulkstore"));
+		ExecutorService leafExecutor = Executors.newFixedThreadPool(2);
+		ExecutorService importExecutor = Executors.newSingleThreadExecutor();
+		try {
+			fileStore.setExecutor(leafExecutor);
+			fileStore.setLeafMemoryBudget(2L * FileStoreConstants.LEAF_SIZE);
+
+			try {
+				new BulkImporter(fileStore, leafExecutor);
+				Assert.fail("The importer may not share the executor of the FileStore");
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+
+			BulkImporter importer = new BulkImporter(fileStore, importExecutor);
+			final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+			importer.setListener(new BulkImporter.Listener() {
+				@Override
+				public void imported(File file, DmediaFile dmediaFile) {
+					order.add(file.getName());
+				}
+
+				@Override
+				public void failed(File file, Exception e) {
+					order.add("failed " + file.getName());
+				}
+			});
+			BulkImportResult result = importer.importTree(tree);
+
+			Assert.assertEquals(6, result.getImported().size());
+			Assert.assertEquals(1, result.getErrors().size());
+			Assert.assertTrue(result.getErrors().containsKey(new File(subDir, "empty")));
+			Assert.assertFalse(result.isSuccessful());
+
+			// the small files are imported while walking, then the larger files largest first
+			Assert.assertEquals(Arrays.asList(TEST_VECTOR_CC, TEST_VECTOR_CB, TEST_VECTOR_CA),
+					order.subList(order.size() - 3, order.size()));
+
+			FileStore hashOnly = new FileStore();
+			for (String vector : vectors) {
+				String rootHash = hashOnly.hashAndStoreFile(new File(TEST_VECTOR_PATH + vector)).getRootHash();
+				Assert.assertTrue(fileStore.getStoredFile(rootHash).exists());
+			}
+		} finally {
+			leafExecutor.shutdown();
+			importExecutor.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldIngestConcurrently() throws Exception {
+
+		FileStore fileStore = new FileStore(new File(TEST_VECTOR_PATH + "ingeststore"));
+		fileStore.setLeafMemoryBudget(FileStoreConstants.LEAF_SIZE);
+		LeafBufferPool pool = fileStore.getLeafBufferPool();
+		String[] vectors = { TEST_VECTOR_A, TEST_VECTOR_B, TEST_VECTOR_C, TEST_VECTOR_CA, TEST_VECTOR_CB, TEST_VECTOR_CC };
+		List<Future<DmediaFile>> futures = new ArrayList<>();
+		try (IngestService ingestService = new IngestService(fileStore, 2, 3L * FileStoreConstants.LEAF_SIZE)) {
+			for (int i = 0; i < 3; i++) {
+				for (String vector : vectors) {
+					futures.add(ingestService.submit(new File(TEST_VECTOR_PATH + vector)));
+				}
+			}
+			futures.add(ingestService.submit(new File(TEST_VECTOR_PATH + "missing")));
+
+			FileStore hashOnly = new FileStore();
+			for (int i = 0; i < futures.size() - 1; i++) {
+				File file = new File(TEST_VECTOR_PATH + vectors[i % vectors.length]);
+				Assert.assertEquals(hashOnly.hashAndStoreFile(file).getRootHash(), futures.get(i).get().getRootHash());
+			}
+			try {
+				futures.get(futures.size() - 1).get();
+				Assert.fail("Importing a missing file should fail");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof FileStoreException);
+			}
+			Assert.assertEquals(2, fileStore.getInlineHashing().availablePermits());
+		}
+		Assert.assertEquals("The tmp directory should be empty", 0, fileStore.getTmpDir().list().length);
+
+		// closing the service hands the FileStore back as it was
+		Assert.assertNull(fileStore.getExecutor());
+		Assert.assertSame(pool, fileStore.getLeafBufferPool());
+		Assert.assertNull(fileStore.getInlineHashing());
+	}
+
+	@Test
+	public void shouldScrubStoreAndQuarantineCorruptFiles() throws IOException {
+
+		File storePath = new File(TEST_VECTOR_PATH + "scrubstore");
+		FileStore fileStore = new FileStore(storePath);
+
+		List<DmediaFile> imported = new ArrayList<>();
+		try (FileStoreCatalog catalog = new FileStoreCatalog(fileStore.getCatalogFile())) {
+			fileStore.setCatalog(catalog);
+			for (String vector : new String[] { TEST_VECTOR_A, TEST_VECTOR_CA, TEST_VECTOR_CB }) {
+				imported.add(fileStore.hashAndStoreFile(new File(TEST_VECTOR_PATH + vector)));
+			}
+
+			FileStoreScrubber scrubber = new FileStoreScrubber(fileStore);
+			scrubber.setBytesPerSecond(100 * FileStoreConstants.LEAF_SIZE);
+			Assert.assertTrue(scrubber.scrub().isEmpty());
+			Assert.assertTrue(fileStore.getScrubFile().exists());
+			for (DmediaFile dmediaFile : imported) {
+				Assert.assertTrue(scrubber.getLastVerified(dmediaFile.getRootHash()) > 0);
+			}
+
+			// corrupt the last leaf of a stored file
+			DmediaFile corrupted = imported.get(2);
+			File storedFile = new File(corrupted.getFilePath());
+			Assert.assertTrue(storedFile.setWritable(true));
+			try (RandomAccessFile raf = new RandomAccessFile(storedFile, "rw")) {
+				raf.seek(raf.length() - 1);
+				raf.write('X');
+			}
+
+			// the progress is resumed by a new scrubber
+			scrubber = new FileStoreScrubber(fileStore);
+			Assert.assertTrue(scrubber.getLastVerified(corrupted.getRootHash()) > 0);
+			Assert.assertEquals(Collections.singletonList(corrupted.getRootHash()), scrubber.scrub());
+			Assert.assertFalse(storedFile.exists());
+			Assert.assertTrue(new File(fileStore.getCorruptDir(), corrupted.getRootHash()).exists());
+			Assert.assertFalse(catalog.contains(corrupted.getRootId()));
+			Assert.assertEquals(0, scrubber.getLastVerified(corrupted.getRootHash()));
+
+			// without a catalog the files are rehashed and compared to their ID
+			fileStore.setCatalog(null);
+			Assert.assertTrue(new FileStoreScrubber(fileStore).scrub().isEmpty());
+		}
+	}
+
+	@Test
+	public void shouldNotQuarantineWhenScrubIsStopped() throws Exception {
+
+		byte[] bytes = new byte[3 * FileStoreConstants.LEAF_SIZE + 1000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		File file = new File(TEST_VECTOR_PATH + "stoppedscrub");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(bytes);
+		}
+
+		// without a catalog or attributes the whole file is rehashed, which is stopped half way
+		FileStore fileStore = new FileStore(new File(TEST_VECTOR_PATH + "stoppedscrubstore"));
+		DmediaFile dmediaFile = fileStore.hashAndStoreFile(file);
+		final FileStoreScrubber scrubber = new FileStoreScrubber(fileStore);
+		scrubber.setBytesPerSecond(FileStoreConstants.LEAF_SIZE);
+		Thread stopper = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					// stop anyway
+				}
+				scrubber.stop();
+			}
+		};
+		stopper.start();
+		Assert.assertTrue(scrubber.scrub().isEmpty());
+		stopper.join();
+
+		Assert.assertTrue(new File(dmediaFile.getFilePath()).exists());
+		Assert.assertFalse(new File(fileStore.getCorruptDir(), dmediaFile.getRootHash()).exists());
+		Assert.assertEquals(0, scrubber.getLastVerified(dmediaFile.getRootHash()));
+
+		// stopping only aborts the pass which was running
+		scrubber.setBytesPerSecond(0);
+		Assert.assertTrue(scrubber.scrub().isEmpty());
+		Assert.assertTrue(scrubber.getLastVerified(dmediaFile.getRootHash()) > 0);
+	}
+
+	@Test
+	public void shouldLimitRateWithTokenBucket() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(1000000L, 1000L);
+		long start = System.nanoTime();
+		bucket.acquire(1000L);
+		bucket.acquire(200000L);
+		long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+		Assert.assertTrue("Acquiring 200 kB at 1 MB/s took only " + elapsedMillis + "ms", elapsedMillis >= 150L);
+	}
+
+	@Test
+	public void shouldSkipUnchangedFilesWithHashCache() throws Exception {
+
+		File file = new File(TEST_VECTOR_PATH + "cached");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(generateTestVectorCA());
+		}
+
+		// a file modified just now is not cached, as a write in the same time stamp tick could go unnoticed
+		HashCache racyCache = new HashCache(16);
+		FileStore fileStore = new FileStore();
+		fileStore.setHashCache(racyCache);
+		DmediaFile dmediaFile = fileStore.hashAndStoreFile(file);
+		Assert.assertEquals(0, racyCache.size());
+
+		HashCache hashCache = new HashCache(16, 0);
+		fileStore.setHashCache(hashCache);
+		Assert.assertEquals(dmediaFile.getRootHash(), fileStore.hashAndStoreFile(file).getRootHash());
+		Assert.assertEquals(1, hashCache.size());
+
+		DmediaFile cached = fileStore.hashAndStoreFile(file);
+		Assert.assertEquals(dmediaFile.getRootHash(), cached.getRootHash());
+		Assert.assertEquals(file.getAbsolutePath(), cached.getFilePath());
+		Assert.assertSame(cached.getLeafHashes(), hashCache.get(file).getLeafHashes());
+		Assert.assertSame(cached.getLeafHashes(), fileStore.hashAsync(file).get().getLeafHashes());
+
+		// changing the content with the same size must be noticed
+		Thread.sleep(10);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.write('X');
+		}
+		Assert.assertNull(hashCache.get(file));
+		DmediaFile changed = fileStore.hashAndStoreFile(file);
+		Assert.assertFalse(dmediaFile.getRootHash().equals(changed.getRootHash()));
+		Assert.assertEquals(changed.getRootHash(), new FileStore().hashAndStoreFile(file).getRootHash());
+		Assert.assertEquals(2, hashCache.size());
+
+		hashCache.invalidate(file);
+		Assert.assertEquals(1, hashCache.size());
+
+		// hashing asynchronously caches the file as well
+		Assert.assertEquals(changed.getRootHash(), fileStore.hashAsync(file).get().getRootHash());
+		Assert.assertEquals(2, hashCache.size());
+		Assert.assertSame(hashCache.get(file).getLeafHashes(), fileStore.hashAsync(file).get().getLeafHashes());
+	}
+
+	@Test
+	public void shouldIdentifyFilesByXattrs() throws IOException {
+
+		File file = new File(TEST_VECTOR_PATH + "xattrs");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(generateTestVectorCA());
+		}
+
+		FileStore fileStore = new FileStore();
+		Assert.assertNull("Extended attributes are disabled by default", fileStore.identify(file));
+		fileStore.setUseXattrs(true);
+		DmediaFile dmediaFile = fileStore.hashAndStoreFile(file);
+
+		if (!XattrHelper.write(file, dmediaFile)) {
+			logger.info("Skipping extended attribute test as they are not supported");
+			Assert.assertNull(fileStore.identify(file));
+			return;
+		}
+
+		Assert.assertEquals(dmediaFile.getRootId(), fileStore.identify(file));
+		DmediaFile read = XattrHelper.read(file, fileStore);
+		Assert.assertEquals(dmediaFile.getRootHash(), read.getRootHash());
+		Assert.assertArrayEquals(dmediaFile.getLeafHashes().getEncodedHashes(), read.getLeafHashes()
+				.getEncodedHashes());
+		Assert.assertEquals(dmediaFile.getRootHash(), fileStore.hashAndStoreFile(file).getRootHash());
+
+		// leaf digests which do not hash to the root are not trusted
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+				UserDefinedFileAttributeView.class);
+		int digestBytes = FileStoreConstants.DIGEST_BYTES;
+		byte[] swapped = new byte[2 * digestBytes];
+		dmediaFile.getLeafHashes().getDigest(1, swapped, 0);
+		dmediaFile.getLeafHashes().getDigest(0, swapped, digestBytes);
+		view.write(XattrHelper.ATTR_LEAVES, ByteBuffer.wrap(swapped));
+		Assert.assertNull(XattrHelper.read(file, fileStore));
+		Assert.assertEquals(dmediaFile.getRootId(), fileStore.identify(file));
+
+		// nor is a root hash which is longer than any ID
+		ByteBuffer root = ByteBuffer.allocate(256);
+		view.read(XattrHelper.ATTR_ROOT, root);
+		String stamp = new String(root.array(), 0, root.position(), StandardCharsets.US_ASCII);
+		String tooLong = Dbase32.db32EncAsString(new byte[DmediaId.MAX_LENGTH + 5]);
+		stamp = tooLong + stamp.substring(stamp.indexOf(' '));
+		view.write(XattrHelper.ATTR_ROOT, ByteBuffer.wrap(stamp.getBytes(StandardCharsets.US_ASCII)));
+		Assert.assertNull(XattrHelper.readRootId(file));
+		Assert.assertNull(XattrHelper.read(file, fileStore));
+		Assert.assertTrue(XattrHelper.write(file, dmediaFile));
+
+		// once the file is modified, the attributes are stale
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.write('X');
+		}
+		Assert.assertTrue(file.setLastModified(file.lastModified() + 2000));
+		Assert.assertNull(fileStore.identify(file));
+		Assert.assertNull(XattrHelper.read(file, fileStore));
+		DmediaFile changed = fileStore.hashAndStoreFile(file);
+		Assert.assertFalse(dmediaFile.getRootHash().equals(changed.getRootHash()));
+		Assert.assertEquals(changed.getRootId(), fileStore.identify(file));
+
+		// writing the attributes changes the change time, which may not keep the file from being cached
+		HashCache hashCache = new HashCache(16, 0);
+		fileStore.setHashCache(hashCache);
+		Assert.assertTrue(file.setLastModified(file.lastModified() - 10000));
+		Assert.assertEquals(changed.getRootHash(), fileStore.hashAndStoreFile(file).getRootHash());
+		Assert.assertEquals(1, hashCache.size());
+		Assert.assertEquals(changed.getRootHash(), hashCache.get(file).getRootHash());
+		Assert.assertEquals(changed.getRootId(), fileStore.identify(file));
+
+		try {
+			new FileStore(512, 512, true, true).setUseXattrs(true);
+			Assert.fail("Extended attributes should only be supported with the Dmedia parameters");
+		} catch (FileStoreException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void shouldUnmapMappedBuffer() throws IOException {
+		File file = new File(TEST_VECTOR_PATH + TEST_VECTOR_CA);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			Assert.assertTrue("The mapped buffer should be released", MappedBufferHelper.unmap(buffer));
+		}
+		Assert.assertFalse(MappedBufferHelper.unmap(ByteBuffer.allocate(8)));
+	}
+
+	@Test
+	public void shouldKeepLeafHashesCompact() {
+
+		FileStore fileStore = new FileStore();
+		File file = new File(TEST_VECTOR_PATH + TEST_VECTOR_CB);
+		DmediaFile dmediaFile = fileStore.hashAndStoreFile(file);
+
+		LeafHashes leafHashes = dmediaFile.getLeafHashes();
+		Assert.assertEquals(2, dmediaFile.getLeafCount());
+		Assert.assertEquals(FileStoreConstants.DIGEST_BYTES, leafHashes.getDigestBytes());
+
+		List<DmediaFileSlice> fileSlices = dmediaFile.getFileSlices();
+		Assert.assertEquals(2, fileSlices.size());
+		for (int i = 0; i < fileSlices.size(); i++) {
+			DmediaFileSlice slice = fileSlices.get(i);
+			Assert.assertEquals(i, slice.getIndex());
+			Assert.assertEquals((long) i * FileStoreConstants.LEAF_SIZE, slice.getBytesOffset());
+			Assert.assertSame(dmediaFile, slice.getDmediaFile());
+			Assert.assertEquals(Dbase32.db32EncAsString(leafHashes.getDigest(i)), slice.getHash());
+			Assert.assertTrue(leafHashes.digestEquals(i, Dbase32.db32Dec(slice.getHash().getBytes()), 0));
+		}
+
+		// converting from slices with string hashes must result in the same root hash
+		List<DmediaFileSlice> copies = new ArrayList<>();
+		for (DmediaFileSlice slice : fileSlices) {
+			copies.add(new DmediaFileSlice(slice.getIndex(), slice.getBytesOffset(), slice.getHash()));
+		}
+		Assert.assertEquals(dmediaFile.getRootHash(), fileStore.hashRoot(file, copies).getRootHash());
+		Assert.assertArrayEquals(leafHashes.getEncodedHashes(), LeafHashes.fromSlices(copies).getEncodedHashes());
+
+		// more leaves than fit into a single page
+		LeafHashes many = new LeafHashes(70000, FileStoreConstants.DIGEST_BYTES);
+		byte[] digest = new byte[FileStoreConstants.DIGEST_BYTES];
+		digest[0] = 7;
+		many.setDigest(69999, digest, 0);
+		Assert.assertTrue(many.digestEquals(69999, digest, 0));
+		Assert.assertFalse(many.digestEquals(0, digest, 0));
+
+		// the root hash is streamed in parts of the encoded hashes, across the pages
+		for (int i = 0; i < many.size(); i += 997) {
+			digest[1] = (byte) i;
+			many.setDigest(i, digest, 0);
+		}
+		long manySize = (long) many.size() * FileStoreConstants.LEAF_SIZE;
+		byte[] encoded = many.getEncodedHashes();
+		Assert.assertEquals(new String(fileStore.hashRoot(manySize, encoded)), fileStore.hashRoot(manySize, many));
+		int encodedLength = FileStoreConstants.DIGEST_B32LEN;
+		byte[] range = new byte[3 * encodedLength];
+		Assert.assertEquals(range.length, many.getEncodedHashes(65535, 3, range, 0));
+		Assert.assertArrayEquals(Arrays.copyOfRange(encoded, 65535 * encodedLength, 65538 * encodedLength), range);
+	}
+
 	private static byte[] generateTestVectorCC() {
 		byte[] bytes;
 		bytes = new byte[FileStoreConstants.LEAF_SIZE + FileStoreConstants.LEAF_SIZE];
@@ -14,6 +14,8 @@ import static nl.warper.skein.SkeinUtil.toFormattedHex;
 import static nl.warper.skein.SkeinUtil.tohex;
 import static nl.warper.skein.SkeinUtil.zeroPad;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Arrays;
@@ -23,12 +25,15 @@ import nl.warper.skein.SkeinConfiguration;
 import nl.warper.skein.SkeinConstants;
 import nl.warper.skein.SkeinTweak;
 import nl.warper.skein.Ubi64;
+import nl.warper.threefish.Threefish512;
 import nl.warper.threefish.ThreefishImpl;
 import nl.warper.threefish.ThreefishSecretKey;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import ch.eitchnet.utils.helper.StringHelper;
+
 /**
  * SkeinTest is used to test the SimpleSkein, Ubi64 and Threefish implementations and to see that the test vectors,
  * including initial chaining vectors are correct. The output of the main() method has been used to successfully confirm
@@ -95,6 +100,185 @@ public class SkeinTest {
 		testThreefish(1024, 80);
 	}
 
+	@Test
+	public void threefish512ShouldMatchGenericImpl() throws GeneralSecurityException {
+
+		SecureRandom rnd = SecureRandom.getInstance("SHA1PRNG");
+		ThreefishImpl generic = new ThreefishImpl(ThreefishImpl.BLOCK_SIZE_BITS_512);
+		Threefish512 unrolled = new Threefish512();
+
+		long[] key = new long[8];
+		long[] plain = new long[8];
+		long[] expected = new long[8];
+		long[] actual = new long[8];
+		long[] decrypted = new long[8];
+
+		for (int i = 0; i < 1000; i++) {
+			for (int j = 0; j < 8; j++) {
+				key[j] = rnd.nextLong();
+				plain[j] = rnd.nextLong();
+			}
+			long[] tweak = new long[] { rnd.nextLong(), rnd.nextLong() };
+
+			generic.init(key, tweak);
+			generic.blockEncrypt(plain, expected);
+
+			unrolled.init(key, tweak);
+			unrolled.blockEncrypt(plain, actual);
+			Assert.assertArrayEquals("Threefish512 differs from ThreefishImpl!", expected, actual);
+
+			unrolled.blockDecrypt(actual, decrypted);
+			Assert.assertArrayEquals("Threefish512 decrypt does not return the plain text!", plain, decrypted);
+		}
+
+		// both init variants require a key of exactly 8 words
+		for (long[] badKey : new long[][] { new long[7], new long[9] }) {
+			try {
+				unrolled.init(badKey, 0L, 0L);
+				Assert.fail("A key of " + badKey.length + " words should be rejected");
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+			try {
+				unrolled.init(badKey, new long[2]);
+				Assert.fail("A key of " + badKey.length + " words should be rejected");
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+		}
+	}
+
+	@Test
+	public void incrementalSkeinShouldMatchDoSkein() {
+
+		int[] blockSizes = { 256, 512, 1024 };
+		int[] lengths = { 0, 1, 31, 32, 33, 63, 64, 65, 127, 128, 129, 1000 };
+		int[] chunkSizes = { 1, 7, 32, 64, 100 };
+
+		for (int blockSize : blockSizes) {
+			for (int length : lengths) {
+				byte[] data = createTestArray(length);
+
+				Skein skein = new Skein(blockSize, 240);
+				skein.setKey(createTestArray(blockSize / 8 + 3));
+				byte[] expected = skein.doSkein(data);
+
+				for (int chunkSize : chunkSizes) {
+					for (int offset = 0; offset < length; offset += chunkSize) {
+						skein.update(data, offset, Math.min(chunkSize, length - offset));
+					}
+					byte[] actual = new byte[expected.length + 2];
+					Assert.assertEquals(expected.length, skein.digest(actual, 2));
+					Assert.assertArrayEquals("Incremental digest differs for length " + length, expected,
+							Arrays.copyOfRange(actual, 2, actual.length));
+				}
+
+				ByteBuffer heap = ByteBuffer.wrap(data);
+				skein.update(heap);
+				Assert.assertFalse(heap.hasRemaining());
+				Assert.assertArrayEquals("ByteBuffer digest differs for length " + length, expected, skein.digest());
+
+				ByteBuffer direct = ByteBuffer.allocateDirect(length);
+				direct.put(data).flip();
+				skein.update(direct);
+				Assert.assertArrayEquals("Direct ByteBuffer digest differs for length " + length, expected,
+						skein.digest());
+
+				// reset discards data which was already added
+				skein.update(createTestArray(17));
+				skein.reset();
+				skein.update(data);
+				Assert.assertArrayEquals("Digest after reset differs for length " + length, expected, skein.digest());
+			}
+		}
+	}
+
+	/**
+	 * Pins the MAC handling of empty keys and of keys longer than one block to the golden KAT: an empty key is the same
+	 * as no key at all and every block of a long key is processed
+	 */
+	@Test
+	public void skeinKeysShouldMatchGoldenVectors() {
+
+		String key65 = "CB41F1706CDE09651203C2D0EFBADDF847A0D315CB2E53FF8BAC41DA0002672E"
+				+ "920244C66E02D5F0DAD3E94C42BB65F0D14157DECF4105EF5609D5B0984457C193";
+		String msg192 = "D3090C72167517F7C7AD82A70C2FD3F6443F608301591E59";
+
+		assertSkeinMac(256, 256, key65, "D3",
+				"979422A94E3AFAA46664124D4E5E8B9422B1D8BAF11C6AE6725992AC72A112CA");
+		assertSkeinMac(256, 256, key65.substring(0, 66), "D3090C72167517F7",
+				"41EF6B0F0FAD81C040284F3B1A91E9C44E4C26A6D7207F3AAC4362856EF12ACA");
+		assertSkeinMac(256, 256, "", msg192,
+				"DCBD5C8BD09021A840B0EA4AAA2F06E67D7EEBE882B49DE6B74BDC56B60CC48F");
+		assertSkeinMac(512, 512, "", "D3090C72",
+				"1259AFC2CB025EEF2F681E128F889BBCE57F9A502D57D1A17239A12E7160355916B72223790FD9A8B367EC96212A3ED2"
+						+ "39331ED72EF3DEB17685A8D5FD75158D");
+		assertSkeinMac(512, 512, key65, msg192,
+				"13C170BAC1DE35E5FB843F65FABECF214A54A6E0458A4FF6EA5DF91915468F4EFCD371EFFA8965A9E82C5388D8473049"
+						+ "0DCF3976AF157B8BAF550655A5A6AB78");
+
+		byte[] msg = StringHelper.fromHexString(msg192);
+		for (int blockSize : new int[] { 256, 512, 1024 }) {
+			byte[] unkeyed = new Skein(blockSize, 240).doSkein(msg);
+			Skein skein = new Skein(blockSize, 240);
+			skein.setKey(new byte[0]);
+			Assert.assertArrayEquals("An empty key must hash like no key for Skein-" + blockSize, unkeyed,
+					skein.doSkein(msg));
+		}
+	}
+
+	private static void assertSkeinMac(int blockSize, int outputSize, String key, String msg, String expected) {
+		Skein skein = new Skein(blockSize, outputSize);
+		skein.setKey(StringHelper.fromHexString(key));
+		byte[] digest = skein.doSkein(StringHelper.fromHexString(msg));
+		Assert.assertEquals("Skein-" + blockSize + "-" + outputSize + " with a key of " + key.length() / 2 + " bytes",
+				expected, StringHelper.getHexString(digest).toUpperCase());
+	}
+
+	@Test
+	public void skeinUpdateShouldNotAllocatePerBlock() {
+
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Skipping allocation test as the ThreadMXBean can not measure allocated bytes");
+			return;
+		}
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		if (!threadMXBean.isThreadAllocatedMemorySupported() || !threadMXBean.isThreadAllocatedMemoryEnabled()) {
+			System.out.println("Skipping allocation test as measuring allocated bytes is not enabled");
+			return;
+		}
+
+		long threadId = Thread.currentThread().getId();
+		byte[] data = new byte[1024 * 1024];
+		byte[] digest = new byte[30];
+
+		for (int blockSize : new int[] { 256, 512, 1024 }) {
+			Skein skein = new Skein(blockSize, 240);
+			skein.setKey("1".getBytes());
+
+			// warm up so that the configuration is processed and the code is compiled
+			for (int i = 0; i < 20; i++) {
+				skein.update(data, 0, data.length);
+				skein.digest(digest, 0);
+			}
+
+			long before = threadMXBean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < 8; i++) {
+				skein.update(data, 0, data.length);
+			}
+			skein.digest(digest, 0);
+			long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+			int blocks = 8 * data.length / (blockSize / 8);
+			System.out.printf("Skein-%d allocated %d bytes for %d blocks%n", blockSize, allocated, blocks);
+
+			// allow for a small constant overhead of the measurement itself, but nothing per block
+			Assert.assertTrue("Skein-" + blockSize + " allocated " + allocated + " bytes for " + blocks + " blocks",
+					allocated < 1024);
+		}
+	}
+
 	/**
 	 * @param blockSize
 	 * @param rounds